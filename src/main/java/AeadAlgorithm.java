@@ -0,0 +1,115 @@
+import COSE.AlgorithmID;
+import COSE.CoseException;
+
+/**
+ * The AEAD algorithms of a security context, with the COSE algorithm value,
+ * key, tag and nonce length. The COSE AlgorithmID has no ChaCha20-Poly1305,
+ * so the contexts use this instead.
+ *
+ * AES-CCM is the default for constrained devices. AES-GCM and ChaCha20-Poly1305
+ * are faster on servers and gateways, AES-GCM with AES instructions of the CPU,
+ * ChaCha20-Poly1305 without.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public enum AeadAlgorithm {
+
+    AES_CCM_16_64_128(10, Mode.CCM, 16, 8, 13),
+    AES_CCM_16_64_256(11, Mode.CCM, 32, 8, 13),
+    AES_CCM_64_64_128(12, Mode.CCM, 16, 8, 7),
+    AES_CCM_64_64_256(13, Mode.CCM, 32, 8, 7),
+    AES_CCM_16_128_128(30, Mode.CCM, 16, 16, 13),
+    AES_CCM_16_128_256(31, Mode.CCM, 32, 16, 13),
+    AES_CCM_64_128_128(32, Mode.CCM, 16, 16, 7),
+    AES_CCM_64_128_256(33, Mode.CCM, 32, 16, 7),
+    AES_GCM_128(1, Mode.GCM, 16, 16, 12),
+    AES_GCM_192(2, Mode.GCM, 24, 16, 12),
+    AES_GCM_256(3, Mode.GCM, 32, 16, 12),
+    CHACHA20_POLY1305(24, Mode.CHACHA20_POLY1305, 32, 16, 12);
+
+    public enum Mode {
+        CCM, GCM, CHACHA20_POLY1305
+    }
+
+    private final int value;
+    private final Mode mode;
+    private final int keyLength;
+    private final int tagLength;
+    private final int nonceLength;
+
+    AeadAlgorithm(int value, Mode mode, int keyLength, int tagLength, int nonceLength) {
+        this.value = value;
+        this.mode = mode;
+        this.keyLength = keyLength;
+        this.tagLength = tagLength;
+        this.nonceLength = nonceLength;
+    }
+
+    /**
+     * @return the COSE algorithm value, used in the external_aad and the key derivation
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return length of the key in bytes
+     */
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    /**
+     * @return length of the authentication tag in bytes
+     */
+    public int getTagLength() {
+        return tagLength;
+    }
+
+    /**
+     * @return length of the nonce and the context IV in bytes
+     */
+    public int getNonceLength() {
+        return nonceLength;
+    }
+
+    /**
+     * @return the COSE AlgorithmID, null for ChaCha20-Poly1305
+     */
+    public AlgorithmID getAlgorithmID() {
+        for (AlgorithmID algorithmID : AlgorithmID.values()) {
+            if (algorithmID.AsCBOR().AsInt32() == value) {
+                return algorithmID;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param value a COSE algorithm value
+     * @throws CoseException if it is no AEAD algorithm of this enum
+     */
+    public static AeadAlgorithm fromValue(int value) throws CoseException {
+        for (AeadAlgorithm algorithm : values()) {
+            if (algorithm.value == value) {
+                return algorithm;
+            }
+        }
+        throw new CoseException("No AEAD algorithm: " + value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if it is no AEAD algorithm
+     */
+    public static AeadAlgorithm fromAlgorithmID(AlgorithmID algorithm) {
+        try {
+            return fromValue(algorithm.AsCBOR().AsInt32());
+        } catch (CoseException e) {
+            throw new IllegalArgumentException("No AEAD algorithm: " + algorithm);
+        }
+    }
+}
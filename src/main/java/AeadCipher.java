@@ -0,0 +1,34 @@
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * AEAD cipher with a fixed key and algorithm, created by an AeadProvider.
+ * Not thread safe, it is used by one thread at a time (see AeadEngine).
+ * All input and output are byte ranges, the output may be the input.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public interface AeadCipher {
+
+    /**
+     * @return length of the authentication tag in bytes
+     */
+    int getTagLength();
+
+    /**
+     * Encrypts length bytes and writes ciphertext and tag to out.
+     * @return number of bytes written, length + tag length
+     * @throws IllegalArgumentException if nonce or input are not valid for the algorithm
+     */
+    int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                byte[] in, int offset, int length, byte[] out, int outOffset);
+
+    /**
+     * Decrypts length bytes of ciphertext and tag and writes the plaintext to out.
+     * The plaintext is not returned, if the tag is wrong.
+     * @return number of bytes written, length - tag length
+     * @throws InvalidCipherTextException if the tag is wrong
+     * @throws IllegalArgumentException if nonce or input are not valid for the algorithm
+     */
+    int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException;
+}
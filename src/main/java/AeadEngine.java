@@ -0,0 +1,168 @@
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * AEAD cipher with the key of a SenderContext or RecipientContext.
+ * Replaces the COSE Encrypt0Message, which creates a new cipher and expands
+ * the key for every message. The ciphers are created by an AeadProvider, which
+ * expands the key once per cipher. Input and output are byte ranges.
+ * The AAD is the Enc_structure of the message (see OscoapSerializer.writeAAD),
+ * so the ciphertext is the same as with Encrypt0Message.
+ *
+ * A cipher is used by one thread at a time. Free ciphers are kept in a few
+ * slots. A thread, which finds no free cipher, creates a new one.
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class AeadEngine {
+
+    private static final int SLOTS = 4;
+
+    private final AeadProvider provider;
+    private final AeadAlgorithm algorithm;
+    private final byte[] key;
+    private final int nonceLength;
+    private final int tagLength;
+
+    private final AtomicReferenceArray<AeadCipher> idle = new AtomicReferenceArray<>(SLOTS);
+
+    AeadEngine(AeadProvider provider, AeadAlgorithm algorithm, byte[] key) {
+        this.provider = provider;
+        this.algorithm = algorithm;
+        this.key = key;
+        this.nonceLength = algorithm.getNonceLength();
+        // the first cipher checks algorithm and key
+        AeadCipher cipher = provider.newCipher(algorithm, key);
+        this.tagLength = cipher.getTagLength();
+        release(cipher);
+    }
+
+    AeadProvider getProvider() {
+        return provider;
+    }
+
+    int getTagLength() {
+        return tagLength;
+    }
+
+    byte[] encrypt(byte[] nonce, byte[] aad, byte[] plaintext) {
+        byte[] ciphertext = new byte[plaintext.length + tagLength];
+        encrypt(nonce, aad, 0, aad.length, plaintext, 0, plaintext.length, ciphertext, 0);
+        return ciphertext;
+    }
+
+    byte[] decrypt(byte[] nonce, byte[] aad, byte[] ciphertext) throws InvalidCipherTextException {
+        if (ciphertext.length < tagLength) {
+            throw new InvalidCipherTextException("Ciphertext shorter than the tag");
+        }
+        byte[] plaintext = new byte[ciphertext.length - tagLength];
+        decrypt(nonce, aad, 0, aad.length, ciphertext, 0, ciphertext.length, plaintext, 0);
+        return plaintext;
+    }
+
+    /**
+     * See AeadCipher.encrypt
+     */
+    int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                byte[] in, int offset, int length, byte[] out, int outOffset) {
+        checkNonce(nonce);
+        AeadCipher cipher = take();
+        try {
+            return cipher.encrypt(nonce, aad, aadOffset, aadLength, in, offset, length, out, outOffset);
+        } finally {
+            release(cipher);
+        }
+    }
+
+    /**
+     * See AeadCipher.decrypt
+     */
+    int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+        checkNonce(nonce);
+        if (length < tagLength) {
+            throw new InvalidCipherTextException("Ciphertext shorter than the tag");
+        }
+        AeadCipher cipher = take();
+        try {
+            return cipher.decrypt(nonce, aad, aadOffset, aadLength, in, offset, length, out, outOffset);
+        } finally {
+            release(cipher);
+        }
+    }
+
+    private void checkNonce(byte[] nonce) {
+        if (nonce.length != nonceLength) {
+            throw new IllegalArgumentException("Nonce of " + algorithm + " must have " + nonceLength + " bytes");
+        }
+    }
+
+    private AeadCipher take() {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SLOTS; i++) {
+            AeadCipher cipher = idle.getAndSet((start + i) & (SLOTS - 1), null);
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+        return provider.newCipher(algorithm, key);
+    }
+
+    private void release(AeadCipher cipher) {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SLOTS; i++) {
+            if (idle.compareAndSet((start + i) & (SLOTS - 1), null, cipher)) {
+                return;
+            }
+        }
+        // all slots are used, the cipher is dropped
+    }
+
+    /**
+     * Writes B0, the first block of the CCM CBC-MAC (RFC 3610):
+     * flags | nonce | length of the plaintext.
+     * @throws IllegalArgumentException if the length does not fit into the length field
+     */
+    static void putCcmFirstBlock(byte[] block, int offset, byte[] nonce, int tagLength, int aadLength, int length) {
+        int lengthSize = 15 - nonce.length;
+        if (lengthSize < 4 && length >>> (8 * lengthSize) != 0) {
+            throw new IllegalArgumentException("Plaintext too long for a nonce of " + nonce.length + " bytes");
+        }
+        block[offset] = (byte) ((aadLength > 0 ? 0x40 : 0) | ((tagLength - 2) / 2) << 3 | (lengthSize - 1));
+        System.arraycopy(nonce, 0, block, offset + 1, nonce.length);
+        long value = length;
+        for (int i = 0; i < lengthSize; i++, value >>>= 8) {
+            block[offset + 15 - i] = (byte) value;
+        }
+    }
+
+    /**
+     * Writes the length of the AAD, which is prefixed to the AAD in the CCM CBC-MAC.
+     * @return number of bytes written, 2 or 6
+     */
+    static int putCcmAadLength(byte[] block, int offset, int aadLength) {
+        if (aadLength < 0xFF00) {
+            block[offset] = (byte) (aadLength >>> 8);
+            block[offset + 1] = (byte) aadLength;
+            return 2;
+        }
+        block[offset] = (byte) 0xFF;
+        block[offset + 1] = (byte) 0xFE;
+        block[offset + 2] = (byte) (aadLength >>> 24);
+        block[offset + 3] = (byte) (aadLength >>> 16);
+        block[offset + 4] = (byte) (aadLength >>> 8);
+        block[offset + 5] = (byte) aadLength;
+        return 6;
+    }
+
+    /**
+     * Writes A0, the first CCM counter block: flags | nonce | 0.
+     */
+    static void putCcmCounterBlock(byte[] block, byte[] nonce) {
+        block[0] = (byte) (14 - nonce.length);
+        System.arraycopy(nonce, 0, block, 1, nonce.length);
+        for (int i = 1 + nonce.length; i < block.length; i++) {
+            block[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Implementation of the AEAD algorithms, used by OscoapComposer and OscoapParser
+ * through the AeadEngine of a sender or recipient context.
+ * There is one with BouncyCastle (BouncyCastleAeadProvider) and one with
+ * javax.crypto (JcaAeadProvider), which uses the AES instructions of the CPU.
+ * AeadProviders.getDefault picks the faster one on this host, for each mode.
+ *
+ * An endpoint uses the provider of its NetworkConfig (OscoapEndpoint.AEAD_PROVIDER),
+ * or the one set with OscoapEndpoint.setAeadProvider.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public interface AeadProvider {
+
+    /**
+     * @return short name, e.g. for the NetworkConfig
+     */
+    String getName();
+
+    /**
+     * @param algorithm an AEAD algorithm
+     * @return true, if newCipher can create a cipher for the algorithm
+     */
+    boolean supports(AeadAlgorithm algorithm);
+
+    /**
+     * Creates a cipher with the key. Expensive work like the key expansion
+     * is done here, not for every message.
+     * @param algorithm an algorithm, which is supported
+     * @param key the key, it is not changed
+     * @return the cipher
+     * @throws IllegalArgumentException if the algorithm is not supported or the key has a wrong length
+     */
+    AeadCipher newCipher(AeadAlgorithm algorithm, byte[] key);
+}
@@ -0,0 +1,346 @@
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the AeadProvider. At the first call of getDefault all providers are
+ * tested with known answers and a round trip of every algorithm. The default
+ * provider uses for each mode (AES-CCM, AES-GCM, ChaCha20-Poly1305) the fastest
+ * correct provider, e.g. the JDK for AES-GCM and BouncyCastle for ChaCha20-Poly1305
+ * on Java 8. To find it, the providers encrypt messages for a short time in
+ * select. This takes a few hundred milliseconds per mode once per process,
+ * when the first OscoapEndpoint is created, so no message waits for it.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public final class AeadProviders {
+
+    private final static Logger LOGGER = Logger.getLogger(AeadProviders.class.getCanonicalName());
+
+    // name for getProvider, which selects the default provider
+    public static final String AUTO = "auto";
+
+    // the benchmark encrypts a small request, like a CoAP GET with a few options.
+    // One algorithm for each mode, in the order of AeadAlgorithm.Mode
+    private static final AeadAlgorithm[] BENCHMARK_ALGORITHMS = {
+            AeadAlgorithm.AES_CCM_64_64_128, AeadAlgorithm.AES_GCM_128, AeadAlgorithm.CHACHA20_POLY1305};
+    private static final int BENCHMARK_PLAINTEXT = 64;
+    private static final int BENCHMARK_AAD = 40;
+    private static final int WARM_UP_MESSAGES = 40000;
+    private static final int BENCHMARK_ROUNDS = 5;
+    private static final long ROUND_NANOS = 20000000L;
+
+    // known answer of AES-CCM-64-64-128, computed with the BouncyCastle CCMBlockCipher
+    private static final String CCM_64_64_128_CIPHERTEXT =
+            "9A5F0F61A1DCC770DE3ACDF521D3CB7F3BF93745FB7C1466380609A4063C15A3D134CCF539B4A504";
+
+    // RFC 8439, section 2.8.2
+    private static final String CHACHA20_POLY1305_PLAINTEXT =
+            "4C616469657320616E642047656E746C656D656E206F662074686520636C617373206F66202739393A20"
+            + "4966204920636F756C64206F6666657220796F75206F6E6C79206F6E652074697020666F722074686520"
+            + "6675747572652C2073756E73637265656E20776F756C642062652069742E";
+    private static final String CHACHA20_POLY1305_CIPHERTEXT =
+            "D31A8D34648E60DB7B86AFBC53EF7EC2A4ADED51296E08FEA9E2B5A736EE62D63DBEA45E8CA9671282FA"
+            + "FB69DA92728B1A71DE0A9E060B2905D6A5B67ECD3B3692DDBD7F2D778B8C9803AEE328091B58FAB324E4"
+            + "FAD675945585808B4831D7BC3FF4DEF08E4B7A9DE576D26586CEC64B6116"
+            + "1AE10B594F09E26A7E902ECBD0600691";
+
+    private AeadProviders() {
+    }
+
+    // selected at the first use, not when the class is loaded
+    private static final class Default {
+        static final AeadProvider PROVIDER = select(new JcaAeadProvider(), new BouncyCastleAeadProvider());
+    }
+
+    /**
+     * @return the provider, which uses the fastest provider of each mode on this host
+     */
+    public static AeadProvider getDefault() {
+        return Default.PROVIDER;
+    }
+
+    /**
+     * @param name name of a provider (e.g. "JCA" or "BouncyCastle"), or "auto"
+     * @return the provider, getDefault for "auto", null or an empty name
+     * @throws IllegalArgumentException if there is no provider with this name
+     */
+    public static AeadProvider getProvider(String name) {
+        if (name == null || name.isEmpty() || AUTO.equalsIgnoreCase(name)) {
+            return getDefault();
+        } else if (JcaAeadProvider.NAME.equalsIgnoreCase(name)) {
+            return new JcaAeadProvider();
+        } else if (BouncyCastleAeadProvider.NAME.equalsIgnoreCase(name)) {
+            return new BouncyCastleAeadProvider();
+        }
+        throw new IllegalArgumentException("Unknown AEAD provider " + name);
+    }
+
+    /**
+     * Tests the providers. The ones, which pass, are benchmarked for each mode.
+     * @return the provider, if only one passes the tests, otherwise one which
+     * uses the fastest provider of each mode
+     * @throws IllegalStateException if no provider passes the tests
+     */
+    public static AeadProvider select(AeadProvider... providers) {
+        List<AeadProvider> passed = new ArrayList<>();
+        for (AeadProvider provider : providers) {
+            String failure = test(provider);
+            if (failure == null) {
+                passed.add(provider);
+            } else {
+                LOGGER.warning("AEAD provider " + provider.getName() + " failed the self test: " + failure);
+            }
+        }
+        if (passed.isEmpty()) {
+            throw new IllegalStateException("No AEAD provider passed the self test");
+        }
+        if (passed.size() == 1) {
+            return passed.get(0);
+        }
+        return new Fastest(passed);
+    }
+
+    /**
+     * Benchmarks the providers, which support the algorithm.
+     * @return the fastest one, null if none supports the algorithm
+     */
+    static AeadProvider fastest(List<AeadProvider> providers, AeadAlgorithm algorithm) {
+        List<AeadProvider> supporting = new ArrayList<>();
+        for (AeadProvider provider : providers) {
+            if (provider.supports(algorithm)) {
+                supporting.add(provider);
+            }
+        }
+        if (supporting.size() < 2) {
+            return supporting.isEmpty() ? null : supporting.get(0);
+        }
+
+        long[] rates = benchmark(supporting, algorithm);
+        int best = 0;
+        StringBuilder log = new StringBuilder("AEAD providers for " + algorithm + ":");
+        for (int i = 0; i < supporting.size(); i++) {
+            log.append(' ').append(supporting.get(i).getName()).append(' ').append(rates[i]).append(" msg/s,");
+            if (rates[i] > rates[best]) {
+                best = i;
+            }
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info(log.append(" using ").append(supporting.get(best).getName()).toString());
+        }
+        return supporting.get(best);
+    }
+
+    /**
+     * Known answers of RFC 3610 (packet vector #1), of the GCM specification
+     * (test case 2) and of RFC 8439, a known answer of AES-CCM-64-64-128, and
+     * encryption, decryption and a forged tag for every supported algorithm.
+     * @return null, or the reason why the provider failed
+     */
+    static String test(AeadProvider provider) {
+        try {
+            if (provider.supports(AeadAlgorithm.AES_CCM_16_64_128) && !knownAnswer(provider, AeadAlgorithm.AES_CCM_16_64_128,
+                    "C0C1C2C3C4C5C6C7C8C9CACBCCCDCECF", "00000003020100A0A1A2A3A4A5", "0001020304050607",
+                    "08090A0B0C0D0E0F101112131415161718191A1B1C1D1E",
+                    "588C979A61C663D2F066D0C2C0F989806D5F6B61DAC38417E8D12CFDF926E0")) {
+                return "wrong AES-CCM-16-64-128";
+            }
+            if (provider.supports(AeadAlgorithm.AES_CCM_64_64_128) && !knownAnswer(provider, AeadAlgorithm.AES_CCM_64_64_128,
+                    "000102030405060708090A0B0C0D0E0F", "10111213141516", "202122232425262728292A2B2C2D2E2F",
+                    "303132333435363738393A3B3C3D3E3F404142434445464748494A4B4C4D4E4F",
+                    CCM_64_64_128_CIPHERTEXT)) {
+                return "wrong AES-CCM-64-64-128";
+            }
+            if (provider.supports(AeadAlgorithm.AES_GCM_128) && !knownAnswer(provider, AeadAlgorithm.AES_GCM_128,
+                    "00000000000000000000000000000000", "000000000000000000000000", "",
+                    "00000000000000000000000000000000",
+                    "0388DACE60B6A392F328C2B971B2FE78AB6E47D42CEC13BDF53A67B21257BDDF")) {
+                return "wrong AES-GCM-128";
+            }
+            if (provider.supports(AeadAlgorithm.CHACHA20_POLY1305) && !knownAnswer(provider, AeadAlgorithm.CHACHA20_POLY1305,
+                    "808182838485868788898A8B8C8D8E8F909192939495969798999A9B9C9D9E9F", "070000004041424344454647",
+                    "50515253C0C1C2C3C4C5C6C7", CHACHA20_POLY1305_PLAINTEXT, CHACHA20_POLY1305_CIPHERTEXT)) {
+                return "wrong ChaCha20-Poly1305";
+            }
+
+            Random random = new Random(1);
+            for (AeadAlgorithm algorithm : AeadAlgorithm.values()) {
+                if (!provider.supports(algorithm)) {
+                    continue;
+                }
+                byte[] key = new byte[algorithm.getKeyLength()];
+                byte[] nonce = new byte[algorithm.getNonceLength()];
+                byte[] aad = new byte[BENCHMARK_AAD];
+                byte[] plaintext = new byte[100];
+                random.nextBytes(key);
+                random.nextBytes(nonce);
+                random.nextBytes(aad);
+                random.nextBytes(plaintext);
+
+                AeadCipher cipher = provider.newCipher(algorithm, key);
+                byte[] ciphertext = new byte[plaintext.length + cipher.getTagLength()];
+                cipher.encrypt(nonce, aad, 0, aad.length, plaintext, 0, plaintext.length, ciphertext, 0);
+                byte[] decrypted = new byte[plaintext.length];
+                cipher.decrypt(nonce, aad, 0, aad.length, ciphertext, 0, ciphertext.length, decrypted, 0);
+                if (!Arrays.equals(plaintext, decrypted)) {
+                    return "round trip of " + algorithm;
+                }
+                ciphertext[ciphertext.length - 1] ^= 1;
+                try {
+                    cipher.decrypt(nonce, aad, 0, aad.length, ciphertext, 0, ciphertext.length, decrypted, 0);
+                    return "forged tag of " + algorithm + " accepted";
+                } catch (InvalidCipherTextException e) {
+                    // expected
+                }
+            }
+            return null;
+        } catch (InvalidCipherTextException | RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    private static boolean knownAnswer(AeadProvider provider, AeadAlgorithm algorithm, String key, String nonce,
+                                       String aad, String plaintext, String ciphertext) {
+        byte[] aadBytes = DatatypeConverter.parseHexBinary(aad);
+        byte[] plaintextBytes = DatatypeConverter.parseHexBinary(plaintext);
+        AeadCipher cipher = provider.newCipher(algorithm, DatatypeConverter.parseHexBinary(key));
+        byte[] result = new byte[plaintextBytes.length + cipher.getTagLength()];
+        cipher.encrypt(DatatypeConverter.parseHexBinary(nonce), aadBytes, 0, aadBytes.length,
+                plaintextBytes, 0, plaintextBytes.length, result, 0);
+        return Arrays.equals(DatatypeConverter.parseHexBinary(ciphertext), result);
+    }
+
+    /**
+     * The providers run in turns, so the JIT compiler and other threads disturb
+     * all of them alike. The best round of a provider counts.
+     * @param algorithm supported by all providers
+     * @return encrypted messages per second of every provider
+     */
+    static long[] benchmark(List<AeadProvider> providers, AeadAlgorithm algorithm) {
+        byte[] aad = new byte[BENCHMARK_AAD];
+        byte[] plaintext = new byte[BENCHMARK_PLAINTEXT];
+        byte[] ciphertext = new byte[BENCHMARK_PLAINTEXT + algorithm.getTagLength()];
+
+        AeadCipher[] ciphers = new AeadCipher[providers.size()];
+        byte[][] nonces = new byte[ciphers.length][];
+        for (int i = 0; i < ciphers.length; i++) {
+            ciphers[i] = providers.get(i).newCipher(algorithm, new byte[algorithm.getKeyLength()]);
+            nonces[i] = new byte[algorithm.getNonceLength()];
+        }
+
+        // by count, not by time, so a slow start does not mean less compiled code
+        for (int warmUp = 0; warmUp < WARM_UP_MESSAGES; warmUp += 1000) {
+            for (int i = 0; i < ciphers.length; i++) {
+                for (int message = 0; message < 1000; message++) {
+                    encrypt(ciphers[i], nonces[i], aad, plaintext, ciphertext);
+                }
+            }
+        }
+
+        long[] rates = new long[ciphers.length];
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (int i = 0; i < ciphers.length; i++) {
+                long count = run(ciphers[i], nonces[i], aad, plaintext, ciphertext, ROUND_NANOS);
+                rates[i] = Math.max(rates[i], count * 1000000000L / ROUND_NANOS);
+            }
+        }
+        return rates;
+    }
+
+    private static long run(AeadCipher cipher, byte[] nonce, byte[] aad, byte[] plaintext, byte[] ciphertext, long nanos) {
+        long count = 0;
+        long end = System.nanoTime() + nanos;
+        do {
+            for (int i = 0; i < 100; i++) {
+                encrypt(cipher, nonce, aad, plaintext, ciphertext);
+                count++;
+            }
+        } while (System.nanoTime() < end);
+        return count;
+    }
+
+    /**
+     * Another nonce for every message, like the sequence number. The JDK
+     * refuses AES-GCM and ChaCha20-Poly1305 with the nonce of the last message.
+     */
+    private static void encrypt(AeadCipher cipher, byte[] nonce, byte[] aad, byte[] plaintext, byte[] ciphertext) {
+        for (int i = 0; i < 4 && ++nonce[i] == 0; i++) {
+            // carry
+        }
+        cipher.encrypt(nonce, aad, 0, aad.length, plaintext, 0, plaintext.length, ciphertext, 0);
+    }
+
+    /**
+     * Uses for each mode the fastest of the providers. All modes are benchmarked
+     * by the constructor, so creating a cipher never waits for a benchmark.
+     * Only one algorithm of a mode is benchmarked, an algorithm which the
+     * fastest provider does not support (e.g. AES-256 on a JRE limited to
+     * 128 bit keys) goes to the first provider, which supports it.
+     */
+    private static final class Fastest implements AeadProvider {
+
+        private final List<AeadProvider> providers;
+        private final AeadProvider[] selected = new AeadProvider[AeadAlgorithm.Mode.values().length];
+
+        Fastest(List<AeadProvider> providers) {
+            this.providers = providers;
+            for (AeadAlgorithm.Mode mode : AeadAlgorithm.Mode.values()) {
+                this.selected[mode.ordinal()] = fastest(providers, BENCHMARK_ALGORITHMS[mode.ordinal()]);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return AUTO;
+        }
+
+        @Override
+        public boolean supports(AeadAlgorithm algorithm) {
+            for (AeadProvider provider : providers) {
+                if (provider.supports(algorithm)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public AeadCipher newCipher(AeadAlgorithm algorithm, byte[] key) {
+            AeadProvider provider = getProvider(algorithm);
+            if (provider == null) {
+                throw new IllegalArgumentException("No AEAD provider supports " + algorithm);
+            }
+            return provider.newCipher(algorithm, key);
+        }
+
+        private AeadProvider getProvider(AeadAlgorithm algorithm) {
+            AeadProvider provider = selected[algorithm.getMode().ordinal()];
+            if (provider != null && provider.supports(algorithm)) {
+                return provider;
+            }
+            for (AeadProvider fallback : providers) {
+                if (fallback.supports(algorithm)) {
+                    return fallback;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder(AUTO);
+            for (AeadAlgorithm.Mode mode : AeadAlgorithm.Mode.values()) {
+                if (selected[mode.ordinal()] != null) {
+                    result.append(' ').append(mode).append(": ").append(selected[mode.ordinal()].getName());
+                }
+            }
+            return result.toString();
+        }
+    }
+}
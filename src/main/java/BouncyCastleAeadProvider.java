@@ -0,0 +1,308 @@
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.ChaCha7539Engine;
+import org.bouncycastle.crypto.macs.Poly1305;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * AeadProvider with the BouncyCastle AES, which is pure Java.
+ *
+ * AES-CCM (RFC 3610) is done here on a keyed AES engine, because the BouncyCastle
+ * CCMBlockCipher expands the key twice per message. AES-GCM uses the BouncyCastle
+ * GCMBlockCipher, which keeps the key, if it is initialized without one.
+ * ChaCha20-Poly1305 (RFC 8439) is put together from ChaCha7539Engine and Poly1305,
+ * which are in older BouncyCastle versions than its ChaCha20Poly1305.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public final class BouncyCastleAeadProvider implements AeadProvider {
+
+    public static final String NAME = "BouncyCastle";
+
+    private static final int BLOCK_SIZE = 16;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(AeadAlgorithm algorithm) {
+        return true;
+    }
+
+    @Override
+    public AeadCipher newCipher(AeadAlgorithm algorithm, byte[] key) {
+        if (key.length != algorithm.getKeyLength()) {
+            throw new IllegalArgumentException("Key of " + algorithm + " must have " + algorithm.getKeyLength() + " bytes");
+        }
+        switch (algorithm.getMode()) {
+            case GCM:
+                return new GcmCipher(new KeyParameter(key), algorithm.getTagLength());
+            case CHACHA20_POLY1305:
+                return new ChaChaPolyCipher(new KeyParameter(key));
+            default:
+                return new CcmCipher(new KeyParameter(key), algorithm.getTagLength());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    private static final class CcmCipher implements AeadCipher {
+
+        // AES with the expanded key, CTR and CBC-MAC only encrypt
+        private final BlockCipher aes;
+        private final int tagLength;
+        private final byte[] mac = new byte[BLOCK_SIZE];
+        private final byte[] counter = new byte[BLOCK_SIZE];
+        private final byte[] stream = new byte[BLOCK_SIZE];
+        private final byte[] a0 = new byte[BLOCK_SIZE]; // encrypted A0, for the tag
+        private final byte[] tag = new byte[BLOCK_SIZE];
+
+        CcmCipher(KeyParameter key, int tagLength) {
+            this.aes = new AESEngine();
+            this.aes.init(true, key);
+            this.tagLength = tagLength;
+        }
+
+        @Override
+        public int getTagLength() {
+            return tagLength;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            mac(nonce, aad, aadOffset, aadLength, in, offset, length);
+            counter(nonce, in, offset, length, out, outOffset);
+            for (int i = 0; i < tagLength; i++) {
+                out[outOffset + length + i] = (byte) (mac[i] ^ a0[i]);
+            }
+            return length + tagLength;
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            int plaintextLength = length - tagLength;
+            // the tag may be overwritten, if out is in, so it is copied first
+            System.arraycopy(in, offset + plaintextLength, tag, 0, tagLength);
+            counter(nonce, in, offset, plaintextLength, out, outOffset);
+            mac(nonce, aad, aadOffset, aadLength, out, outOffset, plaintextLength);
+            int difference = 0;
+            for (int i = 0; i < tagLength; i++) {
+                difference |= mac[i] ^ a0[i] ^ tag[i];
+            }
+            if (difference != 0) {
+                for (int i = 0; i < plaintextLength; i++) {
+                    out[outOffset + i] = 0;
+                }
+                throw new InvalidCipherTextException("Authentication failed");
+            }
+            return plaintextLength;
+        }
+
+        /**
+         * CBC-MAC of B0, the AAD and the plaintext, result in mac.
+         */
+        private void mac(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                         byte[] plaintext, int offset, int length) {
+            AeadEngine.putCcmFirstBlock(mac, 0, nonce, tagLength, aadLength, length);
+            aes.processBlock(mac, 0, mac, 0);
+
+            if (aadLength > 0) {
+                // the length of the AAD is prefixed, then AAD and prefix are padded to blocks
+                int position = AeadEngine.putCcmAadLength(stream, 0, aadLength);
+                for (int i = 0; i < position; i++) {
+                    mac[i] ^= stream[i];
+                }
+                macBytes(aad, aadOffset, aadLength, position);
+            }
+            if (length > 0) {
+                macBytes(plaintext, offset, length, 0);
+            }
+        }
+
+        /**
+         * XORs the bytes into mac, from position of the current block, and encrypts
+         * every full block. The last block is padded with zeros.
+         */
+        private void macBytes(byte[] bytes, int offset, int length, int position) {
+            for (int i = 0; i < length; i++) {
+                mac[position++] ^= bytes[offset + i];
+                if (position == BLOCK_SIZE) {
+                    aes.processBlock(mac, 0, mac, 0);
+                    position = 0;
+                }
+            }
+            if (position != 0) {
+                aes.processBlock(mac, 0, mac, 0);
+            }
+        }
+
+        /**
+         * CTR encryption of the input with the counter blocks A1, A2 ...
+         * The encrypted A0 is left in a0, it encrypts the tag.
+         */
+        private void counter(byte[] nonce, byte[] in, int offset, int length, byte[] out, int outOffset) {
+            AeadEngine.putCcmCounterBlock(counter, nonce);
+            aes.processBlock(counter, 0, a0, 0);
+
+            for (int done = 0; done < length; done += BLOCK_SIZE) {
+                increment(counter, nonce.length);
+                aes.processBlock(counter, 0, stream, 0);
+                int n = Math.min(BLOCK_SIZE, length - done);
+                for (int i = 0; i < n; i++) {
+                    out[outOffset + done + i] = (byte) (in[offset + done + i] ^ stream[i]);
+                }
+            }
+        }
+
+        private static void increment(byte[] block, int nonceLength) {
+            for (int i = BLOCK_SIZE - 1; i > nonceLength; i--) {
+                if (++block[i] != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class GcmCipher implements AeadCipher {
+
+        private final KeyParameter key;
+        private final int tagLength;
+        private final GCMBlockCipher gcm = new GCMBlockCipher(new AESEngine());
+        private boolean keyed;
+
+        GcmCipher(KeyParameter key, int tagLength) {
+            this.key = key;
+            this.tagLength = tagLength;
+        }
+
+        @Override
+        public int getTagLength() {
+            return tagLength;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            init(true, nonce);
+            gcm.processAADBytes(aad, aadOffset, aadLength);
+            int written = gcm.processBytes(in, offset, length, out, outOffset);
+            try {
+                return written + gcm.doFinal(out, outOffset + written);
+            } catch (InvalidCipherTextException e) {
+                // only thrown when decrypting
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            init(false, nonce);
+            gcm.processAADBytes(aad, aadOffset, aadLength);
+            // GCM buffers the input until the tag is checked, so out may be in
+            int written = gcm.processBytes(in, offset, length, out, outOffset);
+            return written + gcm.doFinal(out, outOffset + written);
+        }
+
+        private void init(boolean forEncryption, byte[] nonce) {
+            // without key, the key schedule and the hash key are kept
+            gcm.init(forEncryption, new AEADParameters(keyed ? null : key, tagLength * 8, nonce));
+            keyed = true;
+        }
+    }
+
+    private static final class ChaChaPolyCipher implements AeadCipher {
+
+        private static final int TAG_LENGTH = 16;
+        private static final byte[] ZERO_PADDING = new byte[16];
+
+        private final KeyParameter key;
+        private final ChaCha7539Engine chacha = new ChaCha7539Engine();
+        private final Poly1305 poly1305 = new Poly1305();
+        // the first key stream block, which gives the Poly1305 key
+        private final byte[] block = new byte[64];
+        private final byte[] mac = new byte[TAG_LENGTH];
+        private boolean keyed;
+
+        ChaChaPolyCipher(KeyParameter key) {
+            this.key = key;
+        }
+
+        @Override
+        public int getTagLength() {
+            return TAG_LENGTH;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            init(nonce);
+            chacha.processBytes(in, offset, length, out, outOffset);
+            mac(aad, aadOffset, aadLength, out, outOffset, length);
+            System.arraycopy(mac, 0, out, outOffset + length, TAG_LENGTH);
+            return length + TAG_LENGTH;
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            int plaintextLength = length - TAG_LENGTH;
+            init(nonce);
+            // the tag is checked first, so out may be in
+            mac(aad, aadOffset, aadLength, in, offset, plaintextLength);
+            int difference = 0;
+            for (int i = 0; i < TAG_LENGTH; i++) {
+                difference |= mac[i] ^ in[offset + plaintextLength + i];
+            }
+            if (difference != 0) {
+                throw new InvalidCipherTextException("Authentication failed");
+            }
+            chacha.processBytes(in, offset, plaintextLength, out, outOffset);
+            return plaintextLength;
+        }
+
+        /**
+         * Sets the nonce, and the Poly1305 key from the key stream block 0.
+         * The ciphertext starts with block 1.
+         */
+        private void init(byte[] nonce) {
+            // without key, the key of the last message is kept
+            chacha.init(true, new ParametersWithIV(keyed ? null : key, nonce));
+            keyed = true;
+            for (int i = 0; i < block.length; i++) {
+                block[i] = 0;
+            }
+            chacha.processBytes(block, 0, block.length, block, 0);
+            poly1305.init(new KeyParameter(block, 0, 32));
+        }
+
+        /**
+         * Poly1305 of AAD and ciphertext, each padded to 16 bytes, and of both lengths.
+         * Result in mac.
+         */
+        private void mac(byte[] aad, int aadOffset, int aadLength, byte[] ciphertext, int offset, int length) {
+            poly1305.update(aad, aadOffset, aadLength);
+            poly1305.update(ZERO_PADDING, 0, (16 - aadLength % 16) % 16);
+            poly1305.update(ciphertext, offset, length);
+            poly1305.update(ZERO_PADDING, 0, (16 - length % 16) % 16);
+            // both lengths as 64 bit little endian
+            for (int i = 0; i < 8; i++) {
+                block[i] = (byte) ((long) aadLength >>> (8 * i));
+                block[8 + i] = (byte) ((long) length >>> (8 * i));
+            }
+            poly1305.update(block, 0, 16);
+            poly1305.doFinal(mac, 0);
+        }
+    }
+}
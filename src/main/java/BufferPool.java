@@ -0,0 +1,154 @@
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte arrays for the short-lived buffers of composing and parsing a message,
+ * e.g. the scratch output of a cipher, which must not work in place. Each
+ * thread has its own pool, so acquire and release do not lock. A buffer is
+ * released by the thread, which acquired it, when the step of the exchange
+ * is done (compose, parse), usually in a finally block.
+ *
+ * The buffers are in size classes of powers of two from 32 to 4096 bytes,
+ * acquire returns a buffer of the class, which fits the length, so it may be
+ * longer than requested. Longer buffers are allocated and not pooled.
+ * Buffers, which leave the step (datagram, payload, option values), are
+ * never taken from the pool.
+ *
+ * With leak detection (see OscoapEndpoint.BUFFER_LEAK_DETECTION) the pool
+ * remembers where each buffer was acquired. checkReleased logs buffers, which
+ * were not released at the end of a step, and release logs buffers, which
+ * were released twice. Without it, these checks cost nothing.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class BufferPool {
+
+    private final static Logger LOGGER = Logger.getLogger(BufferPool.class.getCanonicalName());
+
+    private static final int MIN_SIZE = 32;
+    private static final int SIZE_CLASSES = 8; // 32 to 4096
+    private static final int MAX_SIZE = MIN_SIZE << (SIZE_CLASSES - 1);
+
+    // free buffers per size class and thread, more are not kept
+    private static final int BUFFERS_PER_CLASS = 4;
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean leakDetection = false;
+
+    private static final ThreadLocal<BufferPool> POOLS = new ThreadLocal<BufferPool>() {
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool();
+        }
+    };
+
+    private final byte[][][] free = new byte[SIZE_CLASSES][BUFFERS_PER_CLASS][];
+    private final int[] freeCount = new int[SIZE_CLASSES];
+
+    // buffers of this thread, which are not released, with the place of acquire
+    private final Map<byte[], Throwable> acquired = new IdentityHashMap<byte[], Throwable>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @param length the needed length
+     * @return a buffer of at least this length, its content is undefined
+     */
+    static byte[] acquire(int length) {
+        if (!enabled) {
+            return new byte[length];
+        }
+        BufferPool pool = POOLS.get();
+        byte[] buffer;
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            buffer = new byte[length];
+        } else if (pool.freeCount[sizeClass] > 0) {
+            int index = --pool.freeCount[sizeClass];
+            buffer = pool.free[sizeClass][index];
+            pool.free[sizeClass][index] = null;
+        } else {
+            buffer = new byte[MIN_SIZE << sizeClass];
+        }
+        if (leakDetection) {
+            pool.acquired.put(buffer, new Throwable("Buffer of " + buffer.length + " bytes acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to the pool of this thread. It must not be used afterwards.
+     * @param buffer a buffer of acquire
+     */
+    static void release(byte[] buffer) {
+        if (!enabled) {
+            return;
+        }
+        BufferPool pool = POOLS.get();
+        if (leakDetection && pool.acquired.remove(buffer) == null) {
+            // the pool would hand it out twice
+            LOGGER.log(Level.WARNING, "Buffer of " + buffer.length + " bytes released twice, or not by the acquiring thread",
+                    new Throwable("Released here"));
+            return;
+        }
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass >= 0 && buffer.length == MIN_SIZE << sizeClass && pool.freeCount[sizeClass] < BUFFERS_PER_CLASS) {
+            pool.free[sizeClass][pool.freeCount[sizeClass]++] = buffer;
+        }
+    }
+
+    /**
+     * Called at the end of a step of the exchange. With leak detection, the
+     * buffers of this thread, which are not released, are logged and forgotten.
+     * @param step name of the step for the log, e.g. "compose"
+     * @return number of buffers not released, always 0 without leak detection
+     */
+    static int checkReleased(String step) {
+        if (!leakDetection) {
+            return 0;
+        }
+        Map<byte[], Throwable> acquired = POOLS.get().acquired;
+        int leaks = acquired.size();
+        for (Throwable place : acquired.values()) {
+            LOGGER.log(Level.WARNING, "Buffer not released after " + step, place);
+        }
+        acquired.clear();
+        return leaks;
+    }
+
+    /**
+     * Switches on leak detection for all threads. It is meant for debugging,
+     * every acquire records a stack trace.
+     */
+    static void setLeakDetection(boolean leakDetection) {
+        BufferPool.leakDetection = leakDetection;
+    }
+
+    static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Without pooling, every acquire allocates a new array, e.g. for comparing
+     * the allocations in OscoapBenchmark. Buffers of the pools are kept.
+     */
+    static void setEnabled(boolean enabled) {
+        BufferPool.enabled = enabled;
+    }
+
+    /**
+     * @return index of the smallest size class for the length, -1 if it is too long
+     */
+    private static int sizeClass(int length) {
+        if (length > MAX_SIZE) {
+            return -1;
+        }
+        if (length <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - 5;
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Hash key for byte arrays like recipient IDs or tokens. byte[] itself only
+ * has identity equality, so it can not be used as key in a HashMap.
+ * The hash is computed once, when the key is created.
+ *
+ * For lookups there is a reusable probe per thread (see probe()), so the
+ * hot paths do not have to allocate a new key per message. Probes are only
+ * used for reading, they must never be stored in a map.
+ */
+final class ByteArrayKey {
+
+    private static final ThreadLocal<ByteArrayKey> PROBE = new ThreadLocal<ByteArrayKey>() {
+        @Override
+        protected ByteArrayKey initialValue() {
+            return new ByteArrayKey();
+        }
+    };
+
+    private byte[] bytes;
+    private int hash;
+
+    private ByteArrayKey() {
+    }
+
+    ByteArrayKey(byte[] bytes) {
+        // copy, because callers may reuse their arrays
+        this.bytes = Arrays.copyOf(bytes, bytes.length);
+        this.hash = hash(this.bytes);
+    }
+
+    /**
+     * Returns the probe of the current thread, pointing to the given bytes.
+     * The bytes are not copied.
+     * @param bytes the bytes to look up
+     * @return the thread local probe
+     */
+    static ByteArrayKey probe(byte[] bytes) {
+        ByteArrayKey probe = PROBE.get();
+        probe.bytes = bytes;
+        probe.hash = hash(bytes);
+        return probe;
+    }
+
+    /**
+     * FNV-1a with a final mix. Arrays.hashCode is not used, because for short arrays
+     * like IDs which are counted up, many of its values are the same.
+     * @param bytes the bytes
+     * @return the hash
+     */
+    static int hash(byte[] bytes) {
+        int hash = 0x811C9DC5;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ByteArrayKey)) {
+            return false;
+        }
+        ByteArrayKey key = (ByteArrayKey) other;
+        return hash == key.hash && Arrays.equals(bytes, key.bytes);
+    }
+}
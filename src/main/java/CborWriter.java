@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Writes CBOR into a byte array, which is reused for the next message.
+ * Only what OSCOAP needs: unsigned and negative integers, byte strings,
+ * array headers and bytes, which are already encoded.
+ * All lengths and values are written in the shortest form, like
+ * CBORObject.EncodeToBytes does.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class CborWriter {
+
+    static final int UNSIGNED_INTEGER = 0;
+    static final int NEGATIVE_INTEGER = 1;
+    static final int BYTE_STRING = 2;
+    static final int TEXT_STRING = 3;
+    static final int ARRAY = 4;
+
+    private byte[] buffer;
+    private int size;
+
+    CborWriter(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return the buffer, the written bytes are from 0 to size
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    void writeByte(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    void writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    void writeInteger(long value) {
+        if (value >= 0) {
+            writeHeader(UNSIGNED_INTEGER, value);
+        } else {
+            writeHeader(NEGATIVE_INTEGER, -1L - value);
+        }
+    }
+
+    void writeByteString(byte[] bytes) {
+        writeHeader(BYTE_STRING, bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * Writes major type and value (or length) in the shortest form.
+     * @param value not negative
+     */
+    void writeHeader(int majorType, long value) {
+        ensure(9);
+        int major = majorType << 5;
+        if (value < 24) {
+            buffer[size++] = (byte) (major | value);
+        } else if (value < 0x100) {
+            buffer[size++] = (byte) (major | 24);
+            buffer[size++] = (byte) value;
+        } else if (value < 0x10000) {
+            buffer[size++] = (byte) (major | 25);
+            buffer[size++] = (byte) (value >> 8);
+            buffer[size++] = (byte) value;
+        } else if (value < 0x100000000L) {
+            buffer[size++] = (byte) (major | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >> shift);
+            }
+        } else {
+            buffer[size++] = (byte) (major | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >> shift);
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes writeHeader writes for the value
+     */
+    static int getHeaderLength(long value) {
+        if (value < 24) {
+            return 1;
+        } else if (value < 0x100) {
+            return 2;
+        } else if (value < 0x10000) {
+            return 3;
+        } else if (value < 0x100000000L) {
+            return 5;
+        }
+        return 9;
+    }
+
+    /**
+     * @return the CBOR encoding of an integer
+     */
+    static byte[] encodeInteger(long value) {
+        CborWriter writer = new CborWriter(9);
+        writer.writeInteger(value);
+        return writer.toByteArray();
+    }
+
+    private void ensure(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size + length, 2 * buffer.length));
+        }
+    }
+}
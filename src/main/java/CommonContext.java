@@ -1,9 +1,6 @@
 import COSE.AlgorithmID;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
-import static javax.xml.bind.DatatypeConverter.printHexBinary;
+import java.net.InetAddress;
 
 /**
  * Common Context build the context for an endpoint for communication with another endpoint.
@@ -13,7 +10,7 @@ import static javax.xml.bind.DatatypeConverter.printHexBinary;
 public class CommonContext {
 
     // All final, because they are immutable values
-    private final AlgorithmID algorithm; // "AES-CCM-64-64-128" is mandatory 26 in COSE
+    private final AeadAlgorithm algorithm; // "AES-CCM-64-64-128" is mandatory 26 in COSE
     private final byte[] masterSecret;
     private final byte[] masterSalt;
 
@@ -22,22 +19,41 @@ public class CommonContext {
 
     private final String targetResourceHost;
 
-    // String = Token, OscoapRequest = (sequnceNumber, senderID)
-    private HashMap<String, OscoapRequestParameter> requestList;
+    // CBOR of the algorithm, for the external_aad of every message
+    private final byte[] encodedAlgorithm;
+
+    // The manager this context was added to. The parameters of outstanding
+    // requests are stored in its RequestParameterTable, together with this context.
+    private volatile SecurityContextManager securityContextManager;
 
 
     CommonContext(AlgorithmID algorithm, byte[] masterSecret, byte[] masterSalt, String targetResourceHost){
+        this(AeadAlgorithm.fromAlgorithmID(algorithm), masterSecret, masterSalt, targetResourceHost);
+    }
+
+    CommonContext(AeadAlgorithm algorithm, byte[] masterSecret, byte[] masterSalt, String targetResourceHost){
         this.algorithm = algorithm;
         this.masterSecret = masterSecret;
         this.masterSalt = masterSalt;
         this.targetResourceHost = OscoapHelper.reducedIPv6Host(targetResourceHost);
-        this.requestList = new HashMap<>();
+        this.encodedAlgorithm = CborWriter.encodeInteger(algorithm.getValue());
     }
 
+    /**
+     * @return the COSE AlgorithmID, null for ChaCha20-Poly1305, which it does not know
+     */
     public AlgorithmID getAlgorithm() {
+        return algorithm.getAlgorithmID();
+    }
+
+    public AeadAlgorithm getAeadAlgorithm() {
         return algorithm;
     }
 
+    byte[] getEncodedAlgorithm() {
+        return encodedAlgorithm;
+    }
+
     public byte[] getMasterSecret() {
         return masterSecret;
     }
@@ -62,22 +78,65 @@ public class CommonContext {
         this.recipientContext = recipientContext;
     }
 
+    /**
+     * Creates the AEAD engines of sender and recipient context, which expand
+     * the keys, so the first message does not have to.
+     * @param provider the AEAD provider of the endpoint
+     */
+    public void warmUp(AeadProvider provider) {
+        senderContext.getEngine(algorithm, provider);
+        recipientContext.getEngine(algorithm, provider);
+    }
+
     public String getTargetResourceHost() {
         return targetResourceHost;
     }
 
-    public boolean hasCurrentToken(byte[] requestToken) {
-        String tokenString = printHexBinary(requestToken);
-        return this.requestList.containsKey(tokenString);
+    void setSecurityContextManager(SecurityContextManager securityContextManager) {
+        this.securityContextManager = securityContextManager;
+    }
+
+    public boolean hasCurrentToken(InetAddress peer, int port, byte[] requestToken) {
+        return getRequestParameterTable().get(peer, port, requestToken, null) == this;
+    }
+
+    /**
+     * Stores sequence number and kid of a request, to reuse them in the response.
+     * @param peer address of the other endpoint
+     * @param port port of the other endpoint
+     * @param token token of the request
+     * @param sequenceNumber sequence number of the request
+     * @param partialIV Partial IV of the request as received, null for the
+     *                  minimal encoding of the sequence number
+     * @param requestID kid of the request
+     */
+    public void addRequestParameters(InetAddress peer, int port, byte[] token,
+                                     long sequenceNumber, byte[] partialIV, byte[] requestID) {
+        getRequestParameterTable().put(peer, port, token, this, sequenceNumber, partialIV, requestID);
+    }
+
+    /**
+     * @param params is filled with the stored parameters
+     * @return false, if there are no parameters for this request
+     */
+    public boolean getAndRemoveRequestParameters(InetAddress peer, int port, byte[] token, OscoapRequestParameter params) {
+        return getRequestParameterTable().remove(peer, port, token, params) != null;
     }
 
-    public void addRequestParameters(byte[] token, OscoapRequestParameter params) {
-        String tokenString = printHexBinary(token);
-        this.requestList.put(tokenString, params);
+    /**
+     * The parameters of the request are kept for the observe lifetime (see
+     * SecurityContextManager.setRequestParameterLifetime). All notifications of
+     * an Observe relation use the token of the request, so each one keeps them again.
+     */
+    public void keepRequestParameters(InetAddress peer, int port, byte[] token) {
+        getRequestParameterTable().keep(peer, port, token);
     }
 
-    public OscoapRequestParameter getAndRemoveRequestParameters(byte[] token) {
-        String tokenString = printHexBinary(token);
-        return requestList.remove(tokenString);
+    private RequestParameterTable getRequestParameterTable() {
+        SecurityContextManager scm = this.securityContextManager;
+        if (scm == null) {
+            throw new IllegalStateException("Security context was not added to the SecurityContextManager");
+        }
+        return scm.getRequestParameterTable();
     }
 }
@@ -0,0 +1,359 @@
+import org.eclipse.californium.core.Utils;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of the contexts loaded from a ContextStore.
+ *
+ * The cache is split into segments, each a LinkedHashMap in access order with
+ * its own lock, so the least recently used context of a segment is evicted,
+ * when the segment is full. The state of an evicted context is stored.
+ *
+ * On a miss the context is loaded by a loader thread. Concurrent misses for
+ * the same recipient ID or host wait for the same load.
+ *
+ * An evicted context may still be used, e.g. by a thread which is parsing a
+ * message, or by the request parameters of an observe relation. So evicted
+ * contexts are remembered with a weak reference, and if one is needed again
+ * while it is still in memory, the same instance is put back into the cache.
+ * There is never more than one instance with the same recipient ID, which
+ * would use the same sequence numbers.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class ContextCache {
+
+    private final static Logger LOGGER = Logger.getLogger(ContextCache.class.getCanonicalName());
+
+    private static final int SEGMENTS = 16;
+    private static final int LOADER_THREADS = 2;
+
+    private final ContextStore store;
+    private final SecurityContextManager manager;
+
+    private final Segment[] segments;
+
+    // host -> cached context. Only contains contexts, which are in a segment
+    private final ConcurrentHashMap<String, CommonContext> contextsByHost;
+
+    // ByteArrayKey (recipient ID) or String (host) -> running load
+    private final ConcurrentHashMap<Object, CompletableFuture<CommonContext>> loading;
+
+    private final ConcurrentHashMap<ByteArrayKey, EvictedContext> evicted;
+    private final ReferenceQueue<CommonContext> evictedQueue;
+
+    private final ExecutorService loader;
+
+    ContextCache(ContextStore store, int maximumSize, SecurityContextManager manager) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.store = store;
+        this.manager = manager;
+        this.segments = new Segment[SEGMENTS];
+        int segmentSize = (maximumSize + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(segmentSize);
+        }
+        this.contextsByHost = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.evicted = new ConcurrentHashMap<>();
+        this.evictedQueue = new ReferenceQueue<>();
+        this.loader = Executors.newFixedThreadPool(LOADER_THREADS, new Utils.DaemonThreadFactory());
+    }
+
+    /**
+     * @return the cached context, or null if it is not cached
+     */
+    CommonContext getByRecipientID(byte[] recipientID) {
+        ByteArrayKey probe = ByteArrayKey.probe(recipientID);
+        Segment segment = segmentFor(probe);
+        synchronized (segment) {
+            return segment.get(probe);
+        }
+    }
+
+    /**
+     * @return the cached context, or null if it is not cached
+     */
+    CommonContext getByHost(String host) {
+        CommonContext context = this.contextsByHost.get(host);
+        if (context != null) {
+            // only to mark it as recently used
+            getByRecipientID(context.getRecipientContext().getRecipientID());
+        }
+        return context;
+    }
+
+    /**
+     * Loads the context from the store, if it is not cached.
+     * @return the future is completed with the context, or with null if the store does not know it
+     */
+    CompletableFuture<CommonContext> loadByRecipientID(byte[] recipientID) {
+        return load(new ByteArrayKey(recipientID));
+    }
+
+    /**
+     * Loads the context from the store, if it is not cached.
+     * @param host the reduced host
+     * @return the future is completed with the context, or with null if the store does not know it
+     */
+    CompletableFuture<CommonContext> loadByHost(String host) {
+        return load(host);
+    }
+
+    /**
+     * Waits for the load.
+     * @return the context, or null if it could not be loaded
+     */
+    static CommonContext await(CompletableFuture<CommonContext> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not load security context: " + e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+
+    private CompletableFuture<CommonContext> load(final Object key) {
+        CompletableFuture<CommonContext> future = this.loading.get(key);
+        if (future != null) {
+            return future;
+        }
+        final CompletableFuture<CommonContext> created = new CompletableFuture<>();
+        future = this.loading.putIfAbsent(key, created);
+        if (future != null) {
+            return future;
+        }
+
+        try {
+            this.loader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        created.complete(loadNow(key));
+                    } catch (Throwable t) {
+                        created.completeExceptionally(t);
+                    } finally {
+                        // after the context was put into the cache, so a following miss can not load it twice
+                        loading.remove(key, created);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the cache was shut down
+            this.loading.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private CommonContext loadNow(Object key) throws IOException {
+        CommonContext context;
+        if (key instanceof ByteArrayKey) {
+            byte[] recipientID = ((ByteArrayKey) key).getBytes();
+            context = getByRecipientID(recipientID);
+            if (context == null) {
+                context = peekEvicted(recipientID);
+            }
+            if (context == null) {
+                context = this.store.loadByRecipientID(recipientID);
+            }
+        } else {
+            context = getByHost((String) key);
+            if (context == null) {
+                context = this.store.loadByHost((String) key);
+            }
+        }
+        if (context == null) {
+            return null;
+        }
+        return insert(context);
+    }
+
+    /**
+     * Puts the context into the cache. If there is already an instance with the
+     * same recipient ID, in the cache or evicted but still in memory, that one is used.
+     * The indexes are only changed while holding the lock of the segment, so two
+     * loads of the same context can not both put their instance into the cache.
+     * @return the instance which is in the cache
+     */
+    private CommonContext insert(CommonContext context) {
+        ByteArrayKey key = new ByteArrayKey(context.getRecipientContext().getRecipientID());
+        Segment segment = segmentFor(key);
+        CommonContext eldest;
+        synchronized (segment) {
+            CommonContext cached = segment.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            CommonContext previous = takeEvicted(key);
+            if (previous != null) {
+                context = previous;
+            }
+            context.setSecurityContextManager(this.manager);
+            this.manager.register(context);
+            segment.put(key, context);
+            this.contextsByHost.put(context.getTargetResourceHost(), context);
+
+            eldest = segment.takeEvicted();
+            if (eldest != null) {
+                // remember it before storing, a load which starts meanwhile must use this instance
+                this.contextsByHost.remove(eldest.getTargetResourceHost(), eldest);
+                ByteArrayKey eldestKey = new ByteArrayKey(eldest.getRecipientContext().getRecipientID());
+                this.evicted.put(eldestKey, new EvictedContext(eldest, eldestKey, this.evictedQueue));
+            }
+        }
+
+        if (eldest != null) {
+            this.manager.unregister(eldest);
+            try {
+                this.store.storeState(eldest);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not store security context: " + e.getMessage(), e);
+            }
+        }
+        return context;
+    }
+
+    private CommonContext peekEvicted(byte[] recipientID) {
+        EvictedContext reference = this.evicted.get(ByteArrayKey.probe(recipientID));
+        return reference == null ? null : reference.get();
+    }
+
+    private CommonContext takeEvicted(ByteArrayKey key) {
+        // remove the references of collected contexts
+        EvictedContext collected;
+        while ((collected = (EvictedContext) this.evictedQueue.poll()) != null) {
+            this.evicted.remove(collected.key, collected);
+        }
+
+        EvictedContext reference = this.evicted.remove(key);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Removes the context from the cache, without storing it.
+     */
+    void remove(CommonContext context) {
+        byte[] recipientID = context.getRecipientContext().getRecipientID();
+        ByteArrayKey probe = ByteArrayKey.probe(recipientID);
+        Segment segment = segmentFor(probe);
+        synchronized (segment) {
+            if (segment.get(probe) == context) {
+                segment.remove(probe);
+            }
+            this.contextsByHost.remove(context.getTargetResourceHost(), context);
+            EvictedContext reference = this.evicted.get(probe);
+            if (reference != null && reference.get() == context) {
+                this.evicted.remove(reference.key, reference);
+            }
+        }
+    }
+
+    /**
+     * Stores the state of all cached contexts.
+     */
+    void storeAll() throws IOException {
+        for (CommonContext context : snapshot()) {
+            this.store.storeState(context);
+        }
+        this.store.flush();
+    }
+
+    /**
+     * Stores all contexts and stops the loader threads.
+     */
+    void shutdown() {
+        this.loader.shutdown();
+        try {
+            storeAll();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not store security contexts: " + e.getMessage(), e);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private List<CommonContext> snapshot() {
+        List<CommonContext> contexts = new ArrayList<>();
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                contexts.addAll(segment.values());
+            }
+        }
+        return contexts;
+    }
+
+    private Segment segmentFor(ByteArrayKey key) {
+        int hash = key.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * A LinkedHashMap in access order, which removes the eldest entry when it is full.
+     * Only used while holding its lock.
+     */
+    private static final class Segment extends LinkedHashMap<ByteArrayKey, CommonContext> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maximumSize;
+        private CommonContext evicted;
+
+        Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayKey, CommonContext> eldest) {
+            if (size() > this.maximumSize) {
+                this.evicted = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+
+        CommonContext takeEvicted() {
+            CommonContext context = this.evicted;
+            this.evicted = null;
+            return context;
+        }
+    }
+
+    private static final class EvictedContext extends WeakReference<CommonContext> {
+
+        private final ByteArrayKey key;
+
+        EvictedContext(CommonContext context, ByteArrayKey key, ReferenceQueue<CommonContext> queue) {
+            super(context, queue);
+            this.key = key;
+        }
+    }
+}
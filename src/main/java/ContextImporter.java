@@ -0,0 +1,305 @@
+import COSE.CoseException;
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Imports many security contexts from a provisioning file. The file is read
+ * record by record, every batch of records is derived by the executor while
+ * the next batch is read. The result is published with
+ * SecurityContextManager.setSecurityContexts, which replaces all contexts at once.
+ *
+ * CSV: one context per line, '#' starts a comment line. Byte strings are hex.
+ *   host,senderID,recipientID,masterSecret,masterSalt,algorithm
+ * The master salt may be empty, the algorithm is the COSE value (e.g. 12 for AES-CCM-64-64-128,
+ * 24 for ChaCha20-Poly1305).
+ *
+ * CBOR: a sequence of arrays, one per context.
+ *   [ host : tstr, senderID : bstr, recipientID : bstr, masterSecret : bstr, masterSalt : bstr / null, alg : int ]
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class ContextImporter {
+
+    private final static Logger LOGGER = Logger.getLogger(ContextImporter.class.getCanonicalName());
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final SecurityContextFactory factory;
+    private final ExecutorService executor;
+    private final int batchSize;
+
+    /**
+     * Derives with the common ForkJoinPool. The factory has no cache, every
+     * imported context is derived once.
+     */
+    public ContextImporter() {
+        this(new SecurityContextFactory(0), ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    public ContextImporter(SecurityContextFactory factory, ExecutorService executor, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.factory = factory;
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Result of an import.
+     */
+    public static final class Result {
+
+        private final int count;
+        private final long nanos;
+
+        Result(int count, long nanos) {
+            this.count = count;
+            this.nanos = nanos;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getMillis() {
+            return nanos / 1000000;
+        }
+
+        public long getContextsPerSecond() {
+            return nanos == 0 ? 0 : count * 1000000000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return count + " contexts in " + getMillis() + " ms (" + getContextsPerSecond() + " contexts/s)";
+        }
+    }
+
+    /**
+     * Reads the CSV file and replaces all contexts of the manager.
+     * Nothing is replaced, if the file is invalid.
+     * @throws IOException if the file could not be read or is invalid
+     */
+    public Result importCsv(Reader reader, SecurityContextManager manager) throws IOException {
+        long start = System.nanoTime();
+        List<CommonContext> contexts = readCsv(reader);
+        return publish(contexts, manager, start);
+    }
+
+    /**
+     * Reads the CBOR sequence and replaces all contexts of the manager.
+     * Nothing is replaced, if the file is invalid.
+     * @throws IOException if the file could not be read or is invalid
+     */
+    public Result importCbor(InputStream in, SecurityContextManager manager) throws IOException {
+        long start = System.nanoTime();
+        List<CommonContext> contexts = readCbor(in);
+        return publish(contexts, manager, start);
+    }
+
+    /**
+     * Reads the contexts of a CSV file, e.g. to add them to a ContextStore.
+     * @return the contexts, in the order of the file
+     * @throws IOException if the file could not be read or is invalid
+     */
+    public List<CommonContext> readCsv(Reader reader) throws IOException {
+        final BufferedReader lines = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader, 65536);
+        return read(new Source() {
+            private int number = 0;
+
+            @Override
+            public SecurityContextFactory.Parameters next() throws IOException, CoseException {
+                String line;
+                do {
+                    line = lines.readLine();
+                    number++;
+                    if (line == null) {
+                        return null;
+                    }
+                    line = line.trim();
+                } while (line.isEmpty() || line.charAt(0) == '#');
+
+                String[] fields = line.split(",", -1);
+                if (fields.length != 6) {
+                    throw new IllegalArgumentException("Expected 6 fields, found " + fields.length);
+                }
+                String salt = fields[4].trim();
+                return parameters(fields[0].trim(), bytes(fields[1]), bytes(fields[2]), bytes(fields[3]),
+                        salt.isEmpty() ? null : bytes(salt), Integer.parseInt(fields[5].trim()));
+            }
+
+            @Override
+            public String position() {
+                return "line " + number;
+            }
+        });
+    }
+
+    /**
+     * Reads the contexts of a CBOR sequence, e.g. to add them to a ContextStore.
+     * @return the contexts, in the order of the file
+     * @throws IOException if the file could not be read or is invalid
+     */
+    public List<CommonContext> readCbor(InputStream in) throws IOException {
+        final InputStream items = in.markSupported() ? in : new BufferedInputStream(in, 65536);
+        return read(new Source() {
+            private int number = 0;
+
+            @Override
+            public SecurityContextFactory.Parameters next() throws IOException, CoseException {
+                // CBORObject.Read fails at the end of the stream, so look ahead one byte
+                items.mark(1);
+                if (items.read() < 0) {
+                    return null;
+                }
+                items.reset();
+                number++;
+
+                CBORObject item = CBORObject.Read(items);
+                if (item.getType() != CBORType.Array || item.size() != 6) {
+                    throw new IllegalArgumentException("Expected an array of 6 items");
+                }
+                CBORObject salt = item.get(4);
+                return parameters(item.get(0).AsString(), item.get(1).GetByteString(), item.get(2).GetByteString(),
+                        item.get(3).GetByteString(), salt.isNull() ? null : salt.GetByteString(), item.get(5).AsInt32());
+            }
+
+            @Override
+            public String position() {
+                return "item " + number;
+            }
+        });
+    }
+
+    private interface Source {
+
+        /**
+         * @return the parameters of the next context, null at the end
+         */
+        SecurityContextFactory.Parameters next() throws IOException, CoseException;
+
+        /**
+         * @return position of the last record, for error messages
+         */
+        String position();
+    }
+
+    /**
+     * Reads all records, checks them and lets the executor derive every batch.
+     */
+    private List<CommonContext> read(Source source) throws IOException {
+        Set<ByteArrayKey> recipientIDs = new HashSet<>();
+        Set<String> hosts = new HashSet<>();
+        List<Future<List<CommonContext>>> batches = new ArrayList<>();
+        List<SecurityContextFactory.Parameters> batch = new ArrayList<>(this.batchSize);
+        int count = 0;
+
+        try {
+            while (true) {
+                SecurityContextFactory.Parameters parameters;
+                try {
+                    parameters = source.next();
+                    if (parameters == null) {
+                        break;
+                    }
+                    if (!recipientIDs.add(new ByteArrayKey(parameters.getRecipientID()))) {
+                        throw new IllegalArgumentException("Duplicate recipient ID "
+                                + DatatypeConverter.printHexBinary(parameters.getRecipientID()));
+                    }
+                    if (!hosts.add(parameters.getHost())) {
+                        throw new IllegalArgumentException("Duplicate host " + parameters.getHost());
+                    }
+                } catch (CoseException | RuntimeException e) {
+                    throw new IOException(source.position() + ": " + e.getMessage(), e);
+                }
+                batch.add(parameters);
+                count++;
+                if (batch.size() == this.batchSize) {
+                    batches.add(derive(batch));
+                    batch = new ArrayList<>(this.batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.add(derive(batch));
+            }
+
+            List<CommonContext> contexts = new ArrayList<>(count);
+            for (Future<List<CommonContext>> future : batches) {
+                try {
+                    contexts.addAll(future.get());
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not create security context: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+            return contexts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } finally {
+            for (Future<List<CommonContext>> future : batches) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private Future<List<CommonContext>> derive(final List<SecurityContextFactory.Parameters> batch) {
+        return this.executor.submit(new Callable<List<CommonContext>>() {
+            @Override
+            public List<CommonContext> call() {
+                List<CommonContext> contexts = new ArrayList<>(batch.size());
+                for (SecurityContextFactory.Parameters parameters : batch) {
+                    contexts.add(factory.createContext(parameters));
+                }
+                return contexts;
+            }
+        });
+    }
+
+    private Result publish(List<CommonContext> contexts, SecurityContextManager manager, long start) {
+        manager.setSecurityContexts(contexts);
+        Result result = new Result(contexts.size(), System.nanoTime() - start);
+        LOGGER.info("Imported " + result);
+        return result;
+    }
+
+    private static SecurityContextFactory.Parameters parameters(String host, byte[] senderID, byte[] recipientID,
+                                                                byte[] masterSecret, byte[] masterSalt, int algorithm)
+            throws CoseException {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("Missing host");
+        }
+        if (senderID == null || recipientID == null) {
+            throw new IllegalArgumentException("Missing sender or recipient ID");
+        }
+        if (masterSecret == null || masterSecret.length == 0) {
+            throw new IllegalArgumentException("Missing master secret");
+        }
+        // throws, if it is no AEAD algorithm
+        AeadAlgorithm aeadAlgorithm = AeadAlgorithm.fromValue(algorithm);
+        return new SecurityContextFactory.Parameters(aeadAlgorithm, masterSecret, masterSalt, senderID, recipientID, host);
+    }
+
+    private static byte[] bytes(String hex) {
+        return DatatypeConverter.parseHexBinary(hex.trim());
+    }
+}
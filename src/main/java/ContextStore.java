@@ -0,0 +1,53 @@
+import java.io.IOException;
+
+/**
+ * Persistent storage of security contexts. If a store is set at the
+ * SecurityContextManager, contexts which are not added with addSecurityContext
+ * are loaded from the store, when a message needs them, and kept in a bounded
+ * cache. So only the contexts of active peers have to be held in memory.
+ *
+ * Loading is done by the loader threads of the cache, never by two threads for
+ * the same context at once. Implementations have to be thread safe anyway,
+ * because storeState may be called by other threads.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public interface ContextStore {
+
+    // A loaded context continues this many sequence numbers after the stored one. The
+    // stored number is older than the last used one, if the context was used after storing.
+    // This only covers a clean restart, after a crash the SequenceNumberJournal knows the
+    // numbers (see SecurityContextManager.setContextStore).
+    long SEQUENCE_NUMBER_GAP = 1024;
+
+    /**
+     * @param recipientID the kid of an incoming request
+     * @return the context, or null if the store has no context for this recipient ID
+     * @throws IOException if the store could not be read
+     */
+    CommonContext loadByRecipientID(byte[] recipientID) throws IOException;
+
+    /**
+     * @param host the host of the other endpoint (see OscoapHelper.reducedIPv6Host)
+     * @return the context, or null if the store has no context for this host
+     * @throws IOException if the store could not be read
+     */
+    CommonContext loadByHost(String host) throws IOException;
+
+    /**
+     * Stores the sender sequence number and the replay window of the context.
+     * A context loaded afterwards must never use a sequence number again, which
+     * was used before, and must not accept sequence numbers, which were received before.
+     * @param context the context
+     * @throws IOException if the store could not be written
+     */
+    void storeState(CommonContext context) throws IOException;
+
+    /**
+     * Writes the stored states durably, if storeState does not. Called by
+     * SecurityContextManager.storeContexts and when the store is replaced.
+     * @throws IOException if the store could not be written
+     */
+    default void flush() throws IOException {
+    }
+}
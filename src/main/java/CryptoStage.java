@@ -0,0 +1,95 @@
+import org.eclipse.californium.core.Utils;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker threads, which protect and unprotect the messages of an OscoapEndpoint.
+ * So encryption and decryption run on several cores, while the matcher and the
+ * CoAP stack stay in the protocol stage of the endpoint.
+ *
+ * Each peer is assigned to one lane, a single threaded executor, by its address
+ * and port. So the messages of a peer are processed in the order they were
+ * received or sent, and the messages of different peers in parallel.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class CryptoStage {
+
+    private final static Logger LOGGER = Logger.getLogger(CryptoStage.class.getCanonicalName());
+
+    private final ExecutorService[] lanes;
+
+    /**
+     * @param threads number of lanes, each with one thread
+     */
+    CryptoStage(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Crypto stage needs at least one thread: " + threads);
+        }
+        this.lanes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            this.lanes[i] = Executors.newSingleThreadExecutor(new Utils.DaemonThreadFactory());
+        }
+    }
+
+    int getThreadCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Runs the task in the lane of the peer, after the tasks of the peer, which
+     * were executed before. Drops the task, if the stage is shut down.
+     * @param address address of the peer
+     * @param port port of the peer
+     * @param task protects or unprotects a message of the peer
+     */
+    void execute(InetAddress address, int port, Runnable task) {
+        if (!execute(laneFor(address, port), task)) {
+            LOGGER.fine("Crypto stage is shut down, dropping message of " + address + ":" + port);
+        }
+    }
+
+    /**
+     * Runs the task in the lane, e.g. a batch of messages of peers of this lane.
+     * @return false, if the task was dropped, because the stage is shut down
+     */
+    boolean execute(int lane, final Runnable task) {
+        try {
+            lanes[lane].execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.SEVERE, "Exception in crypto stage thread: " + t.getMessage(), t);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the lane of the peer
+     */
+    int laneFor(InetAddress address, int port) {
+        int hash = 31 * address.hashCode() + port;
+        hash ^= hash >>> 16;
+        return (hash & 0x7FFFFFFF) % lanes.length;
+    }
+
+    /**
+     * Lets the lanes finish their tasks and stops the threads.
+     */
+    void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
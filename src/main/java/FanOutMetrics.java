@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of the notification fan-outs of an OscoapResource. The latency of a
+ * fan-out is the time from the change of the resource until the last
+ * notification was encrypted and handed to the connector.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public final class FanOutMetrics {
+
+    private final AtomicLong fanOuts = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private volatile long lastLatency;
+
+    void record(int notificationCount, long latencyNanos) {
+        fanOuts.incrementAndGet();
+        notifications.addAndGet(notificationCount);
+        totalLatency.addAndGet(latencyNanos);
+        lastLatency = latencyNanos;
+        long max = maxLatency.get();
+        while (latencyNanos > max && !maxLatency.compareAndSet(max, latencyNanos)) {
+            max = maxLatency.get();
+        }
+    }
+
+    /**
+     * @return number of fan-outs, which sent at least one notification
+     */
+    public long getFanOutCount() {
+        return fanOuts.get();
+    }
+
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    public long getLastLatencyNanos() {
+        return lastLatency;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatency.get();
+    }
+
+    public long getAverageLatencyNanos() {
+        long count = fanOuts.get();
+        return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "fan-outs: " + getFanOutCount() + ", notifications: " + getNotificationCount()
+                + ", latency last/avg/max: " + getLastLatencyNanos() / 1000 + "/"
+                + getAverageLatencyNanos() / 1000 + "/" + getMaxLatencyNanos() / 1000 + " us";
+    }
+}
@@ -0,0 +1,175 @@
+import COSE.CoseException;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * ContextStore which keeps every context in a properties file of a directory.
+ * The file of a context is named by its recipient ID (id-[hex].properties).
+ * For the lookup by host there is a small file per host (host-[hex]), which
+ * contains the recipient ID. So nothing has to be held in memory.
+ *
+ * The files contain the keys, so the directory must only be readable by the
+ * process. Files are written to a temporary file first and then renamed, so
+ * a crash leaves either the old or the new state.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class FileContextStore implements ContextStore {
+
+    private static final String ID_PREFIX = "id-";
+    private static final String ID_SUFFIX = ".properties";
+    private static final String HOST_PREFIX = "host-";
+
+    private final File directory;
+
+    public FileContextStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Writes a new context, or overwrites an existing one.
+     * @param context the context
+     * @throws IOException if the files could not be written
+     */
+    public void add(CommonContext context) throws IOException {
+        storeState(context);
+        byte[] recipientID = context.getRecipientContext().getRecipientID();
+        byte[] link = DatatypeConverter.printHexBinary(recipientID).getBytes(StandardCharsets.US_ASCII);
+        write(hostFile(context.getTargetResourceHost()), link);
+    }
+
+    @Override
+    public CommonContext loadByRecipientID(byte[] recipientID) throws IOException {
+        File file = idFile(recipientID);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            return toContext(properties);
+        } catch (CoseException | RuntimeException e) {
+            throw new IOException("Invalid context file " + file, e);
+        }
+    }
+
+    @Override
+    public CommonContext loadByHost(String host) throws IOException {
+        File file = hostFile(OscoapHelper.reducedIPv6Host(host));
+        if (!file.isFile()) {
+            return null;
+        }
+        String recipientID = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+        try {
+            return loadByRecipientID(DatatypeConverter.parseHexBinary(recipientID));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid host file " + file, e);
+        }
+    }
+
+    @Override
+    public void storeState(CommonContext context) throws IOException {
+        Properties properties = toProperties(context);
+        File file = idFile(context.getRecipientContext().getRecipientID());
+        File temp = new File(this.directory, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "OSCOAP security context");
+        }
+        move(temp, file);
+    }
+
+    private static Properties toProperties(CommonContext context) {
+        SenderContext sender = context.getSenderContext();
+        RecipientContext recipient = context.getRecipientContext();
+
+        Properties properties = new Properties();
+        properties.setProperty("algorithm", Integer.toString(context.getAeadAlgorithm().getValue()));
+        properties.setProperty("masterSecret", hex(context.getMasterSecret()));
+        if (context.getMasterSalt() != null) {
+            properties.setProperty("masterSalt", hex(context.getMasterSalt()));
+        }
+        properties.setProperty("host", context.getTargetResourceHost());
+
+        properties.setProperty("senderID", hex(sender.getSenderID()));
+        properties.setProperty("senderKey", hex(sender.getSenderKey()));
+        properties.setProperty("senderIV", hex(sender.getSenderIV()));
+        properties.setProperty("senderSequenceNumber", Long.toString(sender.getSequenceNumber()));
+
+        properties.setProperty("recipientID", hex(recipient.getRecipientID()));
+        properties.setProperty("recipientKey", hex(recipient.getRecipientKey()));
+        properties.setProperty("recipientIV", hex(recipient.getRecipientIV()));
+        properties.setProperty("replayWindowSize", Integer.toString(recipient.getReplayWindowSize()));
+        properties.setProperty("recipientSequenceNumber", Long.toString(recipient.getMaxSequenceNumber()));
+        return properties;
+    }
+
+    private static CommonContext toContext(Properties properties) throws CoseException {
+        AeadAlgorithm algorithm = AeadAlgorithm.fromValue(Integer.parseInt(required(properties, "algorithm")));
+        String salt = properties.getProperty("masterSalt");
+        CommonContext context = new CommonContext(algorithm, bytes(required(properties, "masterSecret")),
+                salt == null ? null : bytes(salt), required(properties, "host"));
+
+        SenderContext sender = new SenderContext(bytes(required(properties, "senderID")),
+                bytes(required(properties, "senderKey")), bytes(required(properties, "senderIV")));
+        long sequenceNumber = Long.parseLong(required(properties, "senderSequenceNumber"));
+        sender.setSequenceNumber(Math.min(sequenceNumber + SEQUENCE_NUMBER_GAP, SenderContext.MAX_SEQUENCE_NUMBER + 1));
+        context.setSenderContext(sender);
+
+        RecipientContext recipient = new RecipientContext(bytes(required(properties, "recipientID")),
+                bytes(required(properties, "recipientKey")), bytes(required(properties, "recipientIV")),
+                Integer.parseInt(required(properties, "replayWindowSize")));
+        recipient.restoreReplayWindow(Long.parseLong(required(properties, "recipientSequenceNumber")));
+        context.setRecipientContext(recipient);
+
+        return context;
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key);
+        }
+        return value;
+    }
+
+    private File idFile(byte[] recipientID) {
+        return new File(this.directory, ID_PREFIX + hex(recipientID) + ID_SUFFIX);
+    }
+
+    private File hostFile(String host) {
+        return new File(this.directory, HOST_PREFIX + hex(host.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void write(File file, byte[] content) throws IOException {
+        File temp = new File(this.directory, file.getName() + ".tmp");
+        Files.write(temp.toPath(), content);
+        move(temp, file);
+    }
+
+    private static void move(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hex(byte[] bytes) {
+        return DatatypeConverter.printHexBinary(bytes);
+    }
+
+    private static byte[] bytes(String hex) {
+        return DatatypeConverter.parseHexBinary(hex);
+    }
+}
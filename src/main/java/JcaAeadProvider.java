@@ -0,0 +1,311 @@
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * AeadProvider with javax.crypto. The AES of the JDK uses the AES instructions
+ * of the CPU (e.g. AES-NI on x86), if there are some.
+ *
+ * The JDK has no AES-CCM, so it is put together from AES/CTR and AES/CBC
+ * (the CBC-MAC), which both use these instructions. AES-GCM is AES/GCM/NoPadding.
+ * ChaCha20-Poly1305 is in the JDK since Java 11, before it is not supported.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public final class JcaAeadProvider implements AeadProvider {
+
+    public static final String NAME = "JCA";
+
+    private static final int BLOCK_SIZE = 16;
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(ZERO_BLOCK);
+    private static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(AeadAlgorithm algorithm) {
+        try {
+            if (algorithm.getMode() == AeadAlgorithm.Mode.CHACHA20_POLY1305) {
+                Cipher.getInstance(CHACHA20_POLY1305);
+                return true;
+            }
+            // old JDKs allow only 128 bit keys without the unlimited strength policy
+            return Cipher.getMaxAllowedKeyLength("AES") >= algorithm.getKeyLength() * 8;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public AeadCipher newCipher(AeadAlgorithm algorithm, byte[] key) {
+        if (key.length != algorithm.getKeyLength()) {
+            throw new IllegalArgumentException("Key of " + algorithm + " must have " + algorithm.getKeyLength() + " bytes");
+        }
+        try {
+            switch (algorithm.getMode()) {
+                case GCM:
+                    return new GcmCipher(new SecretKeySpec(key, "AES"), algorithm.getTagLength());
+                case CHACHA20_POLY1305:
+                    return new ChaChaPolyCipher(new SecretKeySpec(key, "ChaCha20"));
+                default:
+                    return new CcmCipher(new SecretKeySpec(key, "AES"), algorithm.getTagLength());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("No cipher for " + algorithm + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    private static final class CcmCipher implements AeadCipher {
+
+        private final SecretKeySpec key;
+        private final int tagLength;
+        private final Cipher ctr;
+        private final Cipher cbc;
+        private final byte[] counter = new byte[BLOCK_SIZE];
+        private final byte[] a0 = new byte[BLOCK_SIZE]; // encrypted A0, for the tag
+        private final byte[] tag = new byte[BLOCK_SIZE];
+        private final byte[] mac = new byte[BLOCK_SIZE];
+
+        // B0, AAD and plaintext formatted for the CBC-MAC, grows with the messages
+        private byte[] macInput = new byte[256];
+
+        CcmCipher(SecretKeySpec key, int tagLength) throws GeneralSecurityException {
+            this.key = key;
+            this.tagLength = tagLength;
+            this.ctr = Cipher.getInstance("AES/CTR/NoPadding");
+            this.cbc = Cipher.getInstance("AES/CBC/NoPadding");
+            // the JDK expands the key again only, if it changes
+            this.ctr.init(Cipher.ENCRYPT_MODE, key, ZERO_IV);
+            this.cbc.init(Cipher.ENCRYPT_MODE, key, ZERO_IV);
+        }
+
+        @Override
+        public int getTagLength() {
+            return tagLength;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            try {
+                mac(nonce, aad, aadOffset, aadLength, in, offset, length);
+                counter(nonce, in, offset, length, out, outOffset);
+                for (int i = 0; i < tagLength; i++) {
+                    out[outOffset + length + i] = (byte) (mac[i] ^ a0[i]);
+                }
+                return length + tagLength;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Encryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            int plaintextLength = length - tagLength;
+            try {
+                // the tag may be overwritten, if out is in, so it is copied first
+                System.arraycopy(in, offset + plaintextLength, tag, 0, tagLength);
+                counter(nonce, in, offset, plaintextLength, out, outOffset);
+                mac(nonce, aad, aadOffset, aadLength, out, outOffset, plaintextLength);
+                int difference = 0;
+                for (int i = 0; i < tagLength; i++) {
+                    difference |= mac[i] ^ a0[i] ^ tag[i];
+                }
+                if (difference != 0) {
+                    for (int i = 0; i < plaintextLength; i++) {
+                        out[outOffset + i] = 0;
+                    }
+                    throw new InvalidCipherTextException("Authentication failed");
+                }
+                return plaintextLength;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Decryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * CBC-MAC of B0, the AAD and the plaintext with a zero IV, into mac.
+         */
+        private void mac(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                        byte[] plaintext, int offset, int length) throws GeneralSecurityException {
+            int aadSize = aadLength == 0 ? 0 : pad(6 + aadLength);
+            int size = BLOCK_SIZE + aadSize + pad(length);
+            if (macInput.length < size) {
+                macInput = new byte[Math.max(size, 2 * macInput.length)];
+            }
+            byte[] buffer = macInput;
+
+            AeadEngine.putCcmFirstBlock(buffer, 0, nonce, tagLength, aadLength, length);
+            int position = BLOCK_SIZE;
+            if (aadLength > 0) {
+                position += AeadEngine.putCcmAadLength(buffer, position, aadLength);
+                System.arraycopy(aad, aadOffset, buffer, position, aadLength);
+                position = zeroPadding(buffer, position + aadLength);
+            }
+            System.arraycopy(plaintext, offset, buffer, position, length);
+            position = zeroPadding(buffer, position + length);
+
+            // the JDK copies the input, if the output is the same array
+            byte[] output = BufferPool.acquire(position);
+            try {
+                cbc.init(Cipher.ENCRYPT_MODE, key, ZERO_IV);
+                cbc.doFinal(buffer, 0, position, output, 0);
+                System.arraycopy(output, position - BLOCK_SIZE, mac, 0, BLOCK_SIZE);
+            } finally {
+                BufferPool.release(output);
+            }
+        }
+
+        /**
+         * CTR encryption of the input with the counter blocks A1, A2 ...
+         * The encrypted A0 is left in a0, it encrypts the tag.
+         */
+        private void counter(byte[] nonce, byte[] in, int offset, int length, byte[] out, int outOffset)
+                throws GeneralSecurityException {
+            AeadEngine.putCcmCounterBlock(counter, nonce);
+            ctr.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+            ctr.update(ZERO_BLOCK, 0, BLOCK_SIZE, a0, 0);
+            if (in != out) {
+                ctr.doFinal(in, offset, length, out, outOffset);
+                return;
+            }
+            // in place, the JDK would copy the input
+            byte[] output = BufferPool.acquire(length);
+            try {
+                ctr.doFinal(in, offset, length, output, 0);
+                System.arraycopy(output, 0, out, outOffset, length);
+            } finally {
+                BufferPool.release(output);
+            }
+        }
+
+        private static int pad(int length) {
+            return (length + BLOCK_SIZE - 1) & -BLOCK_SIZE;
+        }
+
+        private static int zeroPadding(byte[] buffer, int position) {
+            while ((position & (BLOCK_SIZE - 1)) != 0) {
+                buffer[position++] = 0;
+            }
+            return position;
+        }
+    }
+
+    private static final class GcmCipher implements AeadCipher {
+
+        private final SecretKeySpec key;
+        private final int tagLength;
+        private final Cipher gcm;
+
+        GcmCipher(SecretKeySpec key, int tagLength) throws GeneralSecurityException {
+            this.key = key;
+            this.tagLength = tagLength;
+            this.gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        @Override
+        public int getTagLength() {
+            return tagLength;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            try {
+                gcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(tagLength * 8, nonce));
+                gcm.updateAAD(aad, aadOffset, aadLength);
+                return gcm.doFinal(in, offset, length, out, outOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Encryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            try {
+                gcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(tagLength * 8, nonce));
+                gcm.updateAAD(aad, aadOffset, aadLength);
+                return gcm.doFinal(in, offset, length, out, outOffset);
+            } catch (AEADBadTagException e) {
+                throw new InvalidCipherTextException("Authentication failed");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Decryption failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class ChaChaPolyCipher implements AeadCipher {
+
+        private final SecretKeySpec key;
+        private final Cipher chacha;
+        private final byte[] lastNonce = new byte[12];
+
+        ChaChaPolyCipher(SecretKeySpec key) throws GeneralSecurityException {
+            this.key = key;
+            this.chacha = Cipher.getInstance(CHACHA20_POLY1305);
+        }
+
+        @Override
+        public int getTagLength() {
+            return 16;
+        }
+
+        @Override
+        public int encrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) {
+            try {
+                init(Cipher.ENCRYPT_MODE, nonce);
+                chacha.updateAAD(aad, aadOffset, aadLength);
+                return chacha.doFinal(in, offset, length, out, outOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Encryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int decrypt(byte[] nonce, byte[] aad, int aadOffset, int aadLength,
+                           byte[] in, int offset, int length, byte[] out, int outOffset) throws InvalidCipherTextException {
+            try {
+                init(Cipher.DECRYPT_MODE, nonce);
+                chacha.updateAAD(aad, aadOffset, aadLength);
+                return chacha.doFinal(in, offset, length, out, outOffset);
+            } catch (AEADBadTagException e) {
+                throw new InvalidCipherTextException("Authentication failed");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Decryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * The JDK refuses key and nonce of the last initialization, also for decryption.
+         * A message may be decrypted with the nonce of the last one, e.g. if that one was
+         * forged with the sequence number of the real message, so then the cipher is
+         * initialized with another nonce before. For encryption it is refused.
+         */
+        private void init(int mode, byte[] nonce) throws GeneralSecurityException {
+            if (mode == Cipher.DECRYPT_MODE && Arrays.equals(nonce, lastNonce)) {
+                lastNonce[0] ^= 1;
+                chacha.init(mode, key, new IvParameterSpec(lastNonce));
+            }
+            chacha.init(mode, key, new IvParameterSpec(nonce));
+            System.arraycopy(nonce, 0, lastNonce, 0, lastNonce.length);
+        }
+    }
+}
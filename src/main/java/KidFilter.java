@@ -0,0 +1,310 @@
+import org.eclipse.californium.core.coap.CoAP;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefilter for the kid of incoming requests. The OscoapEndpoint finds the kid
+ * in the raw datagram (see findKid) and drops requests with an unknown kid,
+ * before the message is parsed.
+ *
+ * A counting Bloom filter over the recipient IDs of the SecurityContextManager
+ * tells, if a kid is certainly unknown. It has no false negatives and about
+ * 1 % false positives, which are rejected by the lookup in the parser as before.
+ * The counters allow to remove IDs, a saturated counter is never decremented.
+ *
+ * Kids, which were looked up and not found, are remembered for a while in a
+ * small negative cache. Every added context starts a new generation, which
+ * invalidates the cache.
+ *
+ * Changes are serialized by the SecurityContextManager, the checks do not lock.
+ * add writes the counters before the volatile generation, and mightContain
+ * reads the generation first, so the counters of an added ID are visible.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class KidFilter {
+
+    private static final int BITS_PER_ID = 10;
+    private static final int HASHES = 4;
+    private static final int MIN_COUNTERS = 1024;
+
+    private static final int NEGATIVE_CACHE_SIZE = 4096;
+    private static final long NEGATIVE_LIFETIME = TimeUnit.SECONDS.toNanos(30);
+
+    // so nobody can choose kids, which collide with the known ones
+    private static final long SEED = new SecureRandom().nextLong();
+
+    private volatile Counters counters = new Counters(0);
+
+    private final Rejected[] rejected = new Rejected[NEGATIVE_CACHE_SIZE];
+    private volatile int generation;
+
+    /**
+     * @param id the added recipient ID
+     * @param ids all recipient IDs including the added one, used if the filter has to grow
+     */
+    void add(byte[] id, Collection<ByteArrayKey> ids) {
+        Counters counters = this.counters;
+        if (counters.size < counters.capacity) {
+            counters.add(hash(id, 0, id.length));
+        } else {
+            rebuild(ids);
+        }
+        generation++;
+    }
+
+    void remove(byte[] id) {
+        counters.remove(hash(id, 0, id.length));
+    }
+
+    /**
+     * Replaces the filter by one with the given IDs.
+     */
+    void rebuild(Collection<ByteArrayKey> ids) {
+        Counters counters = new Counters(2 * ids.size());
+        for (ByteArrayKey id : ids) {
+            byte[] bytes = id.getBytes();
+            counters.add(hash(bytes, 0, bytes.length));
+        }
+        this.counters = counters;
+        generation++;
+    }
+
+    /**
+     * @return false, if the ID is certainly not added
+     */
+    boolean mightContain(byte[] buffer, int offset, int length) {
+        // the volatile read makes the counters of the last add visible
+        int generation = this.generation;
+        return counters.mightContain(hash(buffer, offset, length));
+    }
+
+    /**
+     * Invalidates the negative cache, e.g. because contexts can be loaded from another store.
+     */
+    void clearRejected() {
+        generation++;
+    }
+
+    /**
+     * @return the generation, which has to be passed to reject
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Remembers an ID, for which no context was found.
+     * @param generation the generation before the lookup, so a context added
+     *                   during the lookup is not rejected
+     */
+    void reject(byte[] id, int generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        long hash = hash(id, 0, id.length);
+        rejected[(int) hash & (NEGATIVE_CACHE_SIZE - 1)] = new Rejected(id.clone(), generation, System.nanoTime());
+    }
+
+    /**
+     * @return true, if no context was found for the ID a short time ago
+     */
+    boolean isRejected(byte[] buffer, int offset, int length) {
+        long hash = hash(buffer, offset, length);
+        Rejected entry = rejected[(int) hash & (NEGATIVE_CACHE_SIZE - 1)];
+        return entry != null
+                && entry.generation == generation
+                && System.nanoTime() - entry.time < NEGATIVE_LIFETIME
+                && entry.matches(buffer, offset, length);
+    }
+
+    /**
+     * Finds the kid of a protected request in the datagram, without parsing
+     * the message. Works like the DataParser and the decompression of the
+     * OscoapParser, but returns -1 for everything unusual, so that the parser
+     * handles these messages as before.
+     * @param datagram the raw CoAP message
+     * @return offset of the kid, its length is the byte before. -1 if it is
+     * not a protected request with a kid
+     */
+    static int findKid(byte[] datagram) {
+        if (datagram.length < 4) {
+            return -1;
+        }
+        int first = datagram[0] & 0xFF;
+        int tokenLength = first & 0x0F;
+        int code = datagram[1] & 0xFF;
+        // version 1, request code (class 0, not empty)
+        if (first >>> 6 != CoAP.VERSION || code == 0 || code >>> 5 != 0 || tokenLength > 8) {
+            return -1;
+        }
+
+        int index = 4 + tokenLength;
+        int optionNumber = 0;
+        int cose = -1;
+        int coseLength = 0;
+        while (index < datagram.length) {
+            int nextByte = datagram[index++] & 0xFF;
+            if (nextByte == 0xFF) {
+                if (index == datagram.length || cose < 0 || coseLength > 0) {
+                    // empty payload, not protected, or COSE in option and payload
+                    return -1;
+                }
+                cose = index;
+                coseLength = datagram.length - index;
+                break;
+            }
+            int delta = nextByte >>> 4;
+            int length = nextByte & 0x0F;
+            if (delta == 15 || length == 15
+                    || index + extensionLength(delta) + extensionLength(length) > datagram.length) {
+                return -1;
+            }
+            int deltaIndex = index;
+            index += extensionLength(delta);
+            delta = readExtended(datagram, deltaIndex, delta);
+            int lengthIndex = index;
+            index += extensionLength(length);
+            length = readExtended(datagram, lengthIndex, length);
+            optionNumber += delta;
+            if (optionNumber == OscoapEndpoint.OSCOAP_OPTION_NUMBER) {
+                if (cose >= 0) {
+                    // repeated
+                    return -1;
+                }
+                cose = index;
+                coseLength = length;
+            }
+            index += length;
+        }
+        if (cose < 0 || coseLength == 0 || cose + coseLength > datagram.length) {
+            return -1;
+        }
+
+        // flags, Partial IV, kid length, kid (see ProtectedDatagramWriter.writeCose)
+        int flags = datagram[cose] & 0xFF;
+        if ((flags & 0x08) == 0) {
+            return -1;
+        }
+        int kidLengthIndex = cose + 1 + (flags & 0x07);
+        if (kidLengthIndex >= cose + coseLength) {
+            return -1;
+        }
+        int kid = kidLengthIndex + 1;
+        if (kid + (datagram[kidLengthIndex] & 0xFF) > cose + coseLength) {
+            return -1;
+        }
+        return kid;
+    }
+
+    /**
+     * @param nibble option delta or length of the first byte of an option
+     * @return number of bytes, which follow for the value
+     */
+    private static int extensionLength(int nibble) {
+        return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+    }
+
+    private static int readExtended(byte[] datagram, int index, int nibble) {
+        if (nibble == 13) {
+            return (datagram[index] & 0xFF) + 13;
+        } else if (nibble == 14) {
+            return ((datagram[index] & 0xFF) << 8 | datagram[index + 1] & 0xFF) + 269;
+        }
+        return nibble;
+    }
+
+    /**
+     * FNV-1a with 64 bit, seeded, with a final mix.
+     */
+    private static long hash(byte[] buffer, int offset, int length) {
+        long hash = 0xCBF29CE484222325L ^ SEED;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (buffer[i] & 0xFF)) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Counters {
+
+        private final byte[] counters;
+        private final int mask;
+        private final int capacity;
+        private int size;
+
+        private Counters(int expectedIds) {
+            int length = MIN_COUNTERS;
+            while (length < expectedIds * BITS_PER_ID && length < 1 << 30) {
+                length <<= 1;
+            }
+            this.counters = new byte[length];
+            this.mask = length - 1;
+            this.capacity = length / BITS_PER_ID;
+        }
+
+        private void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int index = (h1 + i * h2) & mask;
+                if (counters[index] != (byte) 0xFF) {
+                    counters[index]++;
+                }
+            }
+            size++;
+        }
+
+        private void remove(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int index = (h1 + i * h2) & mask;
+                if (counters[index] != (byte) 0xFF && counters[index] != 0) {
+                    counters[index]--;
+                }
+            }
+            size--;
+        }
+
+        private boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                if (counters[(h1 + i * h2) & mask] == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Rejected {
+
+        private final byte[] id;
+        private final int generation;
+        private final long time;
+
+        private Rejected(byte[] id, int generation, long time) {
+            this.id = id;
+            this.generation = generation;
+            this.time = time;
+        }
+
+        private boolean matches(byte[] buffer, int offset, int length) {
+            if (id.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (id[i] != buffer[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import COSE.CoseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ContextStore which keeps the contexts as fixed size records in a memory
+ * mapped file. The records are outside of the heap, so millions of provisioned
+ * contexts cost no heap and no GC time. Only the contexts of active peers are
+ * created as objects by the ContextCache. After a restart the file is mapped
+ * again and used as it is, nothing has to be parsed.
+ *
+ * The records are an open addressing hash table by recipient ID. Behind the
+ * records there is a second table of record numbers, by host. A record number
+ * can be used as flyweight for the accessors (findByRecipientID,
+ * getSenderSequenceNumber, ...), which read the record directly. The state is
+ * only written by storeState, so a cached context is the only one, which
+ * hands out sequence numbers.
+ *
+ * Records are never removed, add overwrites the record with the same recipient ID.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class MappedContextTable implements ContextStore {
+
+    public static final int MAX_ID_LENGTH = 16;
+    public static final int MAX_SECRET_LENGTH = 64;
+    public static final int MAX_SALT_LENGTH = 32;
+    public static final int MAX_KEY_LENGTH = 32;
+    public static final int MAX_IV_LENGTH = 16;
+    public static final int MAX_HOST_LENGTH = 64;
+
+    // the whole file is one MappedByteBuffer, so it must be smaller than 2 GB
+    public static final int MAX_CAPACITY = 1 << 22;
+
+    private static final int MAGIC = 0x4F53434F; // "OSCO"
+    private static final int VERSION = 1;
+
+    // Header
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_SIZE = 64;
+
+    // Record. Every byte field starts with its length, 0xFF for null
+    private static final int USED = 0;
+    private static final int RECIPIENT_ID = USED + 1;
+    private static final int SENDER_ID = RECIPIENT_ID + 1 + MAX_ID_LENGTH;
+    private static final int MASTER_SECRET = SENDER_ID + 1 + MAX_ID_LENGTH;
+    private static final int MASTER_SALT = MASTER_SECRET + 1 + MAX_SECRET_LENGTH;
+    private static final int SENDER_KEY = MASTER_SALT + 1 + MAX_SALT_LENGTH;
+    private static final int SENDER_IV = SENDER_KEY + 1 + MAX_KEY_LENGTH;
+    private static final int RECIPIENT_KEY = SENDER_IV + 1 + MAX_IV_LENGTH;
+    private static final int RECIPIENT_IV = RECIPIENT_KEY + 1 + MAX_KEY_LENGTH;
+    private static final int HOST = RECIPIENT_IV + 1 + MAX_IV_LENGTH;
+    private static final int ALGORITHM = align8(HOST + 1 + MAX_HOST_LENGTH);
+    private static final int REPLAY_WINDOW_SIZE = ALGORITHM + 4;
+    private static final int SENDER_SEQUENCE_NUMBER = REPLAY_WINDOW_SIZE + 4;
+    private static final int RECIPIENT_SEQUENCE_NUMBER = SENDER_SEQUENCE_NUMBER + 8;
+    private static final int RECORD_SIZE = RECIPIENT_SEQUENCE_NUMBER + 8;
+
+    private static final int NULL_LENGTH = 0xFF;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity; // power of two
+    private final int mask;
+    private final int hostIndex; // offset of the host table
+    private int size;
+
+    /**
+     * Maps the file. It is created, if it does not exist.
+     * @param file the file
+     * @param capacity maximum number of contexts, only used if the file is created
+     * @throws IOException if the file can not be mapped or is no context table
+     */
+    public MappedContextTable(File file, int capacity) throws IOException {
+        boolean exists = file.isFile() && file.length() > 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (exists) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                raf.getChannel().read(header, 0);
+                if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION
+                        || header.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                    throw new IOException("No context table: " + file);
+                }
+                this.capacity = header.getInt(HEADER_CAPACITY);
+                if (file.length() != fileSize(this.capacity)) {
+                    throw new IOException("Context table has wrong size: " + file);
+                }
+            } else {
+                if (capacity < 1 || capacity > MAX_CAPACITY / 2) {
+                    throw new IllegalArgumentException("Capacity must be from 1 to " + MAX_CAPACITY / 2 + ": " + capacity);
+                }
+                // at most half full, so probing stays short
+                this.capacity = Integer.highestOneBit(capacity * 2 - 1) << 1;
+                raf.setLength(fileSize(this.capacity));
+            }
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(this.capacity));
+        }
+        this.mask = this.capacity - 1;
+        this.hostIndex = HEADER_SIZE + this.capacity * RECORD_SIZE;
+
+        if (exists) {
+            for (int record = 0; record < this.capacity; record++) {
+                if (this.buffer.get(offset(record) + USED) != 0) {
+                    this.size++;
+                }
+            }
+        } else {
+            this.buffer.putInt(HEADER_MAGIC, MAGIC);
+            this.buffer.putInt(HEADER_VERSION, VERSION);
+            this.buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            this.buffer.putInt(HEADER_CAPACITY, this.capacity);
+        }
+    }
+
+    /**
+     * Writes the context into its record. A record with the same recipient ID is overwritten.
+     * @param context the context
+     * @throws IOException if the table is full, or a field is too long. Then nothing is written
+     */
+    public synchronized void add(CommonContext context) throws IOException {
+        byte[] recipientID = context.getRecipientContext().getRecipientID();
+        byte[] host = context.getTargetResourceHost().getBytes(StandardCharsets.UTF_8);
+        // all lengths first, an overwritten record must not be left half written
+        checkLength(recipientID, MAX_ID_LENGTH, "recipient ID");
+        checkLength(context.getSenderContext().getSenderID(), MAX_ID_LENGTH, "sender ID");
+        checkLength(context.getMasterSecret(), MAX_SECRET_LENGTH, "master secret");
+        checkLength(context.getMasterSalt(), MAX_SALT_LENGTH, "master salt");
+        checkLength(context.getSenderContext().getSenderKey(), MAX_KEY_LENGTH, "sender key");
+        checkLength(context.getSenderContext().getSenderIV(), MAX_IV_LENGTH, "sender IV");
+        checkLength(context.getRecipientContext().getRecipientKey(), MAX_KEY_LENGTH, "recipient key");
+        checkLength(context.getRecipientContext().getRecipientIV(), MAX_IV_LENGTH, "recipient IV");
+        checkLength(host, MAX_HOST_LENGTH, "host");
+
+        int record = findByRecipientID(recipientID);
+        boolean created = record < 0;
+        if (created) {
+            if (this.size >= this.capacity / 2) {
+                throw new IOException("Context table is full");
+            }
+            record = freeRecord(recipientID);
+        }
+
+        int offset = offset(record);
+        if (!created) {
+            byte[] previousHost = getBytes(offset + HOST);
+            if (!Arrays.equals(previousHost, host)) {
+                removeHost(previousHost, record);
+            }
+        }
+        putBytes(offset + RECIPIENT_ID, recipientID);
+        putBytes(offset + SENDER_ID, context.getSenderContext().getSenderID());
+        putBytes(offset + MASTER_SECRET, context.getMasterSecret());
+        putBytes(offset + MASTER_SALT, context.getMasterSalt());
+        putBytes(offset + SENDER_KEY, context.getSenderContext().getSenderKey());
+        putBytes(offset + SENDER_IV, context.getSenderContext().getSenderIV());
+        putBytes(offset + RECIPIENT_KEY, context.getRecipientContext().getRecipientKey());
+        putBytes(offset + RECIPIENT_IV, context.getRecipientContext().getRecipientIV());
+        putBytes(offset + HOST, host);
+        this.buffer.putInt(offset + ALGORITHM, context.getAeadAlgorithm().getValue());
+        this.buffer.putInt(offset + REPLAY_WINDOW_SIZE, context.getRecipientContext().getReplayWindowSize());
+        writeState(record, context);
+        // last, a record which could not be written completely stays free
+        this.buffer.put(offset + USED, (byte) 1);
+        if (created) {
+            this.size++;
+        }
+
+        // host table, the slot of the same host is reused
+        int slot = ByteArrayKey.hash(host) & mask;
+        while (true) {
+            int entry = this.buffer.getInt(this.hostIndex + slot * 4);
+            if (entry == 0 || hostEquals(entry - 1, host)) {
+                this.buffer.putInt(this.hostIndex + slot * 4, record + 1);
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public synchronized CommonContext loadByRecipientID(byte[] recipientID) throws IOException {
+        int record = findByRecipientID(recipientID);
+        return record < 0 ? null : toContext(record);
+    }
+
+    @Override
+    public synchronized CommonContext loadByHost(String host) throws IOException {
+        int record = findByHost(OscoapHelper.reducedIPv6Host(host));
+        return record < 0 ? null : toContext(record);
+    }
+
+    @Override
+    public synchronized void storeState(CommonContext context) throws IOException {
+        int record = findByRecipientID(context.getRecipientContext().getRecipientID());
+        if (record < 0) {
+            throw new IOException("Context is not in the table");
+        }
+        writeState(record, context);
+    }
+
+    /**
+     * Writes the changed pages to the file. Without calling it, the operating
+     * system writes them some time, but they may be lost if it crashes.
+     */
+    @Override
+    public void flush() {
+        this.buffer.force();
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the record number, or -1 if there is no record with this recipient ID
+     */
+    public synchronized int findByRecipientID(byte[] recipientID) {
+        int slot = ByteArrayKey.hash(recipientID) & mask;
+        while (true) {
+            int offset = offset(slot);
+            if (this.buffer.get(offset + USED) == 0) {
+                return -1;
+            }
+            if (bytesEqual(offset + RECIPIENT_ID, recipientID)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the record number, or -1 if there is no record with this host
+     */
+    public synchronized int findByHost(String host) {
+        byte[] bytes = host.getBytes(StandardCharsets.UTF_8);
+        int slot = ByteArrayKey.hash(bytes) & mask;
+        while (true) {
+            int entry = this.buffer.getInt(this.hostIndex + slot * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            if (hostEquals(entry - 1, bytes)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public synchronized long getSenderSequenceNumber(int record) {
+        return this.buffer.getLong(offset(record) + SENDER_SEQUENCE_NUMBER);
+    }
+
+    public synchronized long getRecipientSequenceNumber(int record) {
+        return this.buffer.getLong(offset(record) + RECIPIENT_SEQUENCE_NUMBER);
+    }
+
+    private void writeState(int record, CommonContext context) {
+        int offset = offset(record);
+        this.buffer.putLong(offset + SENDER_SEQUENCE_NUMBER, context.getSenderContext().getSequenceNumber());
+        this.buffer.putLong(offset + RECIPIENT_SEQUENCE_NUMBER, context.getRecipientContext().getMaxSequenceNumber());
+    }
+
+    private CommonContext toContext(int record) throws IOException {
+        int offset = offset(record);
+        AeadAlgorithm algorithm;
+        try {
+            algorithm = AeadAlgorithm.fromValue(this.buffer.getInt(offset + ALGORITHM));
+        } catch (CoseException e) {
+            throw new IOException("Invalid algorithm in record " + record, e);
+        }
+        String host = new String(getBytes(offset + HOST), StandardCharsets.UTF_8);
+        CommonContext context = new CommonContext(algorithm, getBytes(offset + MASTER_SECRET),
+                getBytes(offset + MASTER_SALT), host);
+
+        SenderContext sender = new SenderContext(getBytes(offset + SENDER_ID),
+                getBytes(offset + SENDER_KEY), getBytes(offset + SENDER_IV));
+        long sequenceNumber = this.buffer.getLong(offset + SENDER_SEQUENCE_NUMBER);
+        sender.setSequenceNumber(Math.min(sequenceNumber + SEQUENCE_NUMBER_GAP, SenderContext.MAX_SEQUENCE_NUMBER + 1));
+        context.setSenderContext(sender);
+
+        RecipientContext recipient = new RecipientContext(getBytes(offset + RECIPIENT_ID),
+                getBytes(offset + RECIPIENT_KEY), getBytes(offset + RECIPIENT_IV),
+                this.buffer.getInt(offset + REPLAY_WINDOW_SIZE));
+        recipient.restoreReplayWindow(this.buffer.getLong(offset + RECIPIENT_SEQUENCE_NUMBER));
+        context.setRecipientContext(recipient);
+
+        return context;
+    }
+
+    private int freeRecord(byte[] recipientID) {
+        int slot = ByteArrayKey.hash(recipientID) & mask;
+        while (this.buffer.get(offset(slot) + USED) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes the entry of the record from the host table. The following
+     * entries are shifted back, so their probing still finds them.
+     */
+    private void removeHost(byte[] host, int record) {
+        int slot = ByteArrayKey.hash(host) & mask;
+        while (true) {
+            int entry = this.buffer.getInt(this.hostIndex + slot * 4);
+            if (entry == 0) {
+                return;
+            }
+            if (entry - 1 == record) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int free = slot;
+        slot = (slot + 1) & mask;
+        while (true) {
+            int entry = this.buffer.getInt(this.hostIndex + slot * 4);
+            if (entry == 0) {
+                break;
+            }
+            int home = ByteArrayKey.hash(getBytes(offset(entry - 1) + HOST)) & mask;
+            // the entry may move to the free slot, if that is between its home and its slot
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                this.buffer.putInt(this.hostIndex + free * 4, entry);
+                free = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        this.buffer.putInt(this.hostIndex + free * 4, 0);
+    }
+
+    private boolean hostEquals(int record, byte[] host) {
+        return bytesEqual(offset(record) + HOST, host);
+    }
+
+    private boolean bytesEqual(int position, byte[] bytes) {
+        int length = this.buffer.get(position) & 0xFF;
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.buffer.get(position + 1 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkLength(byte[] bytes, int maxLength, String name) throws IOException {
+        if (bytes != null && bytes.length > maxLength) {
+            throw new IOException("The " + name + " is longer than " + maxLength + " bytes");
+        }
+    }
+
+    /**
+     * The length was checked with checkLength.
+     */
+    private void putBytes(int position, byte[] bytes) {
+        if (bytes == null) {
+            this.buffer.put(position, (byte) NULL_LENGTH);
+            return;
+        }
+        this.buffer.put(position, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            this.buffer.put(position + 1 + i, bytes[i]);
+        }
+    }
+
+    private byte[] getBytes(int position) {
+        int length = this.buffer.get(position) & 0xFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = this.buffer.get(position + 1 + i);
+        }
+        return bytes;
+    }
+
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * RECORD_SIZE + (long) capacity * 4;
+    }
+
+    private static int align8(int value) {
+        return (value + 7) & ~7;
+    }
+}
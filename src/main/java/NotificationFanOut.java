@@ -0,0 +1,112 @@
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The notifications of one change of an OscoapResource.
+ *
+ * Californium creates the notifications one after another in the thread, which
+ * calls changed(). While the fan-out is open in this thread, the OscoapOutbox
+ * does not protect the notifications, but adds them here. When the fan-out is
+ * closed, the notifications are protected and sent in batches, in parallel by
+ * the crypto stage of the endpoint, if there is one (see OscoapEndpoint.CRYPTO_THREADS).
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class NotificationFanOut {
+
+    private final static Logger LOGGER = Logger.getLogger(NotificationFanOut.class.getCanonicalName());
+
+    static final int BATCH_SIZE = 64;
+
+    private static final ThreadLocal<NotificationFanOut> CURRENT = new ThreadLocal<NotificationFanOut>();
+
+    private final FanOutMetrics metrics;
+    private final NotificationFanOut previous;
+    private final long start;
+
+    // endpoint -> notifications, only used by the thread of the fan-out
+    private final Map<OscoapEndpoint, List<Response>> notifications = new LinkedHashMap<OscoapEndpoint, List<Response>>();
+    private int count;
+
+    // batches, which are not sent yet, and 1 until the fan-out is closed
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private NotificationFanOut(FanOutMetrics metrics, NotificationFanOut previous) {
+        this.metrics = metrics;
+        this.previous = previous;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Opens a fan-out in the current thread. Must be closed in the same thread.
+     */
+    static NotificationFanOut open(FanOutMetrics metrics) {
+        NotificationFanOut fanOut = new NotificationFanOut(metrics, CURRENT.get());
+        CURRENT.set(fanOut);
+        return fanOut;
+    }
+
+    /**
+     * @return the open fan-out of the current thread, or null
+     */
+    static NotificationFanOut current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @param endpoint sends the notification, after the fan-out is closed
+     * @param notification passed the matcher and the interceptors already
+     */
+    void add(OscoapEndpoint endpoint, Response notification) {
+        List<Response> list = notifications.get(endpoint);
+        if (list == null) {
+            list = new ArrayList<Response>();
+            notifications.put(endpoint, list);
+        }
+        list.add(notification);
+        count++;
+    }
+
+    /**
+     * Hands the notifications to the endpoints and removes the fan-out from the current thread.
+     */
+    void close() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+        for (Map.Entry<OscoapEndpoint, List<Response>> entry : notifications.entrySet()) {
+            entry.getKey().sendNotifications(entry.getValue(), this);
+        }
+        notifications.clear();
+        batchDone();
+    }
+
+    /**
+     * Called by the endpoint before a batch is handed to another thread.
+     */
+    void batchStarted() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Called by the endpoint when the notifications of a batch are sent.
+     */
+    void batchDone() {
+        if (pending.decrementAndGet() == 0 && count > 0) {
+            long latency = System.nanoTime() - start;
+            metrics.record(count, latency);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Sent " + count + " notifications in " + latency / 1000 + " us");
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The OSCOAP class of a CoAP option, which tells how the option is protected
+ * (see draft-ietf-core-object-security-03, 4.3):
+ *   U: unprotected, the option stays in the outer message
+ *   I: integrity protected, outer option, which is also in the AAD
+ *   E: encrypted, the option is in the plaintext (inner option)
+ *
+ * The class of each option number is looked up in a table. The composer and
+ * the parser split and merge the options of a message in one pass with it.
+ * Options, which are not in the table, e.g. unknown or custom options, are
+ * class E as the draft says. Applications can change the class of their own
+ * options with set, before messages with these options are sent or received.
+ *
+ * The Proxy-Uri is special. It is class U, but its path and query are split
+ * into Uri-Path and Uri-Query options of class E (see ProtectedDatagramWriter).
+ * The Observe is class U, its Class I value is only in the AAD of notifications.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public enum OptionClass {
+
+    U, I, E;
+
+    // option numbers up to this one are looked up in an array
+    private static final int ARRAY_SIZE = 256;
+
+    // copy on write, changes are rare and lookups are for every option
+    private static volatile OptionClass[] lowNumbers;
+    private static volatile Map<Integer, OptionClass> highNumbers = new HashMap<Integer, OptionClass>();
+
+    // true after an option was set to class I, before no message has Class I options.
+    // It is not cleared, when the option is set back to E or U, then the search just finds nothing
+    private static volatile boolean integrityProtected = false;
+
+    static {
+        OptionClass[] table = new OptionClass[ARRAY_SIZE];
+        table[OptionNumberRegistry.URI_HOST] = U;
+        table[OptionNumberRegistry.OBSERVE] = U;
+        table[OptionNumberRegistry.URI_PORT] = U;
+        table[OptionNumberRegistry.PROXY_URI] = U;
+        table[OptionNumberRegistry.PROXY_SCHEME] = U;
+        lowNumbers = table;
+    }
+
+    /**
+     * @return the class of the option, E if it is not in the table
+     */
+    public static OptionClass get(int number) {
+        OptionClass optionClass;
+        if (number >= 0 && number < ARRAY_SIZE) {
+            optionClass = lowNumbers[number];
+        } else {
+            optionClass = highNumbers.get(number);
+        }
+        return optionClass == null ? E : optionClass;
+    }
+
+    /**
+     * @return true for options of the outer message, class U and I
+     */
+    static boolean isOuter(int number) {
+        return get(number) != E;
+    }
+
+    /**
+     * @return false, if no option is of class I, so the outer options need not be searched for them.
+     * True once an option was set to class I, even if it was set back to another class later
+     */
+    static boolean hasIntegrityProtected() {
+        return integrityProtected;
+    }
+
+    /**
+     * Sets the class of an option, e.g. of an application specific option,
+     * which has to be read by proxies.
+     * @param number the option number
+     * @param optionClass the class of the option
+     * @throws IllegalArgumentException for the Object-Security option
+     */
+    public static synchronized void set(int number, OptionClass optionClass) {
+        if (number == OscoapEndpoint.OSCOAP_OPTION_NUMBER) {
+            throw new IllegalArgumentException("The class of the Object-Security option cannot be changed");
+        }
+        if (optionClass == null) {
+            throw new NullPointerException("Option class must not be null");
+        }
+        if (optionClass == I) {
+            integrityProtected = true;
+        }
+        if (number >= 0 && number < ARRAY_SIZE) {
+            OptionClass[] table = lowNumbers.clone();
+            table[number] = optionClass;
+            lowNumbers = table;
+        } else {
+            Map<Integer, OptionClass> table = new HashMap<Integer, OptionClass>(highNumbers);
+            table.put(number, optionClass);
+            highNumbers = table;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.*;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.network.*;
 import org.eclipse.californium.core.network.EndpointManager.ClientMessageDeliverer;
@@ -61,11 +65,45 @@ public class OscoapEndpoint implements Endpoint {
     /** The serializer to serialize messages to bytes */
     private Serializer serializer;
 
+    /** Protects the messages of the stack and sends them */
+    private final OscoapOutbox outbox;
+
     // 1100 1100 0000 0001 = 52225
     // No. field: 1100 1100 000
     // Flags: 0 0001
     public static final int OSCOAP_OPTION_NUMBER = 52225;
 
+    // NetworkConfig key for the lifetime of stored request parameters in ms.
+    // 0 or not set: EXCHANGE_LIFETIME is used. The parameters are shared by
+    // all endpoints, so the config of the first endpoint is used (see
+    // SecurityContextManager.setRequestParameterLifetime).
+    public static final String REQUEST_PARAMETER_LIFETIME = "OSCOAP_REQUEST_PARAMETER_LIFETIME";
+
+    // NetworkConfig key for the AEAD provider: "JCA", "BouncyCastle" or "auto".
+    // If it is not set, the fastest one is chosen (see AeadProviders).
+    public static final String AEAD_PROVIDER = "OSCOAP_AEAD_PROVIDER";
+
+    // NetworkConfig key for the number of crypto worker threads, which protect
+    // and unprotect the messages outside of the protocol stage.
+    // 0 or not set: no crypto stage, negative: one thread per available processor.
+    public static final String CRYPTO_THREADS = "OSCOAP_CRYPTO_THREADS";
+
+    // NetworkConfig key for the number of synthetic requests and responses, which
+    // are protected and unprotected on start, before the socket is opened, and
+    // the ciphers of the contexts are created (see OscoapWarmUp).
+    // 0 or not set: no warm-up.
+    public static final String WARM_UP_MESSAGES = "OSCOAP_WARM_UP_MESSAGES";
+
+    // NetworkConfig key to switch on the leak detection of the buffers of
+    // composer and parser (see BufferPool), for debugging. Not set: off.
+    public static final String BUFFER_LEAK_DETECTION = "OSCOAP_BUFFER_LEAK_DETECTION";
+
+    /** Encrypts and decrypts the messages of this endpoint */
+    private volatile AeadProvider aeadProvider;
+
+    /** Protects and unprotects the messages, null if the protocol stage does it */
+    private volatile CryptoStage cryptoStage;
+
     /**
      * Instantiates a new endpoint with an ephemeral port.
      */
@@ -127,8 +165,57 @@ public class OscoapEndpoint implements Endpoint {
         this.connector = connector;
         this.serializer = new Serializer();
         this.matcher = new Matcher(config);
-        this.coapstack = new CoapStack(config, new OscoapOutbox());
+        this.outbox = new OscoapOutbox();
+        this.coapstack = new CoapStack(config, outbox);
         this.connector.setRawDataReceiver(new OscoapInbox());
+        setDefaults(config);
+
+        long requestParameterLifetime = config.getLong(REQUEST_PARAMETER_LIFETIME);
+        if (requestParameterLifetime <= 0) {
+            requestParameterLifetime = config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME);
+        }
+        // the parameters of an Observe relation are kept as long as Californium
+        // trusts a relation without checking it with a confirmable notification
+        SecurityContextManager.getInstance().configureRequestParameterLifetime(requestParameterLifetime,
+                config.getLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME));
+
+        this.aeadProvider = AeadProviders.getProvider(config.getString(AEAD_PROVIDER));
+
+        if (config.getBoolean(BUFFER_LEAK_DETECTION)) {
+            BufferPool.setLeakDetection(true);
+        }
+    }
+
+    /**
+     * Sets the OSCOAP keys, which are not in the config, to their defaults,
+     * so NetworkConfig does not log them as undefined.
+     */
+    private static void setDefaults(NetworkConfig config) {
+        setDefault(config, REQUEST_PARAMETER_LIFETIME, 0);
+        setDefault(config, CRYPTO_THREADS, 0);
+        setDefault(config, WARM_UP_MESSAGES, 0);
+        setDefault(config, BUFFER_LEAK_DETECTION, false);
+    }
+
+    private static void setDefault(NetworkConfig config, String key, Object value) {
+        if (config.getString(key) == null) {
+            config.set(key, value);
+        }
+    }
+
+    public AeadProvider getAeadProvider() {
+        return aeadProvider;
+    }
+
+    /**
+     * Replaces the AEAD provider of the NetworkConfig.
+     * @param aeadProvider the provider for all further messages
+     */
+    public void setAeadProvider(AeadProvider aeadProvider) {
+        if (aeadProvider == null) {
+            throw new NullPointerException("AEAD provider must not be null");
+        }
+        this.aeadProvider = aeadProvider;
     }
 
     /**
@@ -178,6 +265,22 @@ public class OscoapEndpoint implements Endpoint {
             });
         }
 
+        if (this.cryptoStage == null) {
+            int cryptoThreads = config.getInt(CRYPTO_THREADS);
+            if (cryptoThreads < 0) {
+                cryptoThreads = Runtime.getRuntime().availableProcessors();
+            }
+            if (cryptoThreads > 0) {
+                LOGGER.config("Endpoint "+toString()+" uses a crypto stage with "+cryptoThreads+" threads.");
+                this.cryptoStage = new CryptoStage(cryptoThreads);
+            }
+        }
+
+        int warmUpMessages = config.getInt(WARM_UP_MESSAGES);
+        if (warmUpMessages > 0) {
+            OscoapWarmUp.run(aeadProvider, warmUpMessages);
+        }
+
         try {
             LOGGER.log(Level.INFO, "Starting endpoint at " + getAddress());
 
@@ -236,6 +339,10 @@ public class OscoapEndpoint implements Endpoint {
             stop();
         connector.destroy();
         coapstack.destroy();
+        if (cryptoStage != null) {
+            cryptoStage.shutdown();
+            cryptoStage = null;
+        }
         for (EndpointObserver obs:observers)
             obs.destroyed(this);
     }
@@ -312,11 +419,25 @@ public class OscoapEndpoint implements Endpoint {
     @Override
     public void sendRequest(final Request request) {
         // always use endpoint executor
-        runInProtocolStage(new Runnable() {
+        final Runnable task = new Runnable() {
             public void run() {
                 coapstack.sendRequest(request);
             }
-        });
+        };
+        CompletableFuture<CommonContext> loading = null;
+        if (request.getDestination() != null) {
+            loading = SecurityContextManager.getInstance().loadSecurityContextByHost(request.getDestination().getHostAddress());
+        }
+        if (loading == null) {
+            runInProtocolStage(task);
+        } else {
+            // the store is read by a loader thread, the protocol stage does not wait
+            loading.whenComplete(new BiConsumer<CommonContext, Throwable>() {
+                public void accept(CommonContext context, Throwable failure) {
+                    runInProtocolStage(task);
+                }
+            });
+        }
     }
 
     /* (non-Javadoc)
@@ -379,7 +500,7 @@ public class OscoapEndpoint implements Endpoint {
     private class OscoapOutbox implements Outbox {
 
         @Override
-        public void sendRequest(Exchange exchange, Request request) {
+        public void sendRequest(Exchange exchange, final Request request) {
 
             if (request.getDestination() == null)
                 throw new NullPointerException("Request has no destination address");
@@ -410,27 +531,46 @@ public class OscoapEndpoint implements Endpoint {
                 // Exchange again here, triggering the "housekeeping" functionality in the Matcher
                 exchange.setComplete();
             } else {
+                CryptoStage cryptoStage = OscoapEndpoint.this.cryptoStage;
+                if (cryptoStage == null) {
+                    protectAndSend(request);
+                } else {
+                    // the connector is thread safe, so the lane sends it itself
+                    cryptoStage.execute(request.getDestination(), request.getDestinationPort(), new Runnable() {
+                        public void run() {
+                            protectAndSend(request);
+                        }
+                    });
+                }
+            }
+        }
 
+        private void protectAndSend(Request request) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                // stdout is synchronized, all crypto lanes would wait for it
                 System.out.println("Request before oscoap ======================");
                 OscoapHelper.debugLogMessage(request);
-                // do the magic, transform an unprotected CoAP Message into a protected one
-                OscoapComposer oscoapComposer = new OscoapComposer();
-                try {
-                    request = oscoapComposer.composeRequest(request);
-                } catch (OscoapException e) {
-                    LOGGER.severe("Error in OscoapComposer: "+e.getMessage());
-                    e.printStackTrace();
-                    return;
-                }
-                System.out.println("Request after oscoap ======================");
-                OscoapHelper.debugLogMessage(request);
+            }
+            // do the magic, write the protected CoAP Message of the unprotected one
+            OscoapComposer oscoapComposer = new OscoapComposer(aeadProvider);
+            byte[] datagram;
+            try {
+                datagram = oscoapComposer.writeRequest(request);
+            } catch (OscoapException e) {
+                LOGGER.severe("Error in OscoapComposer: "+e.getMessage());
+                e.printStackTrace();
+                return;
+            }
 
+            if (datagram == null) {
                 connector.send(serializer.serialize(request));
+            } else {
+                connector.send(new RawData(datagram, request.getDestination(), request.getDestinationPort()));
             }
         }
 
         @Override
-        public void sendResponse(Exchange exchange, Response response) {
+        public void sendResponse(Exchange exchange, final Response response) {
 
             if (response.getDestination() == null)
                 throw new NullPointerException("Response has no destination address");
@@ -455,22 +595,44 @@ public class OscoapEndpoint implements Endpoint {
                 }
             }
             else {
+                NotificationFanOut fanOut = NotificationFanOut.current();
+                CryptoStage cryptoStage = OscoapEndpoint.this.cryptoStage;
+                if (fanOut != null && response.getOptions().hasObserve()) {
+                    // protected with the other notifications, when the fan-out is closed
+                    fanOut.add(OscoapEndpoint.this, response);
+                } else if (cryptoStage == null) {
+                    protectAndSend(response);
+                } else {
+                    cryptoStage.execute(response.getDestination(), response.getDestinationPort(), new Runnable() {
+                        public void run() {
+                            protectAndSend(response);
+                        }
+                    });
+                }
+            }
+        }
 
+        private void protectAndSend(Response response) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                // stdout is synchronized, all crypto lanes would wait for it
                 System.out.println("Response before oscoap ======================");
                 OscoapHelper.debugLogMessage(response);
-                // do the magic, transform an unprotected CoAP Message into a protected one
-                OscoapComposer oscoapComposer = new OscoapComposer();
-                try {
-                    response = oscoapComposer.composeResponse(response);
-                } catch (OscoapException e) {
-                    LOGGER.severe("Error in OscoapComposer: " + e.getMessage());
-                    e.printStackTrace();
-                    return;
-                }
-                System.out.println("Response after oscoap ======================");
-                OscoapHelper.debugLogMessage(response);
+            }
+            // do the magic, write the protected CoAP Message of the unprotected one
+            OscoapComposer oscoapComposer = new OscoapComposer(aeadProvider);
+            byte[] datagram;
+            try {
+                datagram = oscoapComposer.writeResponse(response);
+            } catch (OscoapException e) {
+                LOGGER.severe("Error in OscoapComposer: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
 
+            if (datagram == null) {
                 connector.send(serializer.serialize(response));
+            } else {
+                connector.send(new RawData(datagram, response.getDestination(), response.getDestinationPort()));
             }
         }
 
@@ -505,6 +667,56 @@ public class OscoapEndpoint implements Endpoint {
         }
     }
 
+    /**
+     * Protects and sends the notifications of a fan-out. With a crypto stage
+     * the notifications are split into batches of the peers of one lane, so the
+     * lanes encrypt in parallel and the order of the messages of a peer is kept.
+     * Without, they are sent right here.
+     *
+     * @param notifications passed the matcher and the interceptors already
+     * @param fanOut the fan-out, which is notified when a batch is sent
+     */
+    void sendNotifications(List<Response> notifications, final NotificationFanOut fanOut) {
+        CryptoStage cryptoStage = this.cryptoStage;
+        if (cryptoStage == null) {
+            for (Response notification : notifications) {
+                outbox.protectAndSend(notification);
+            }
+            return;
+        }
+
+        List<List<Response>> lanes = new ArrayList<List<Response>>(cryptoStage.getThreadCount());
+        for (int i = 0; i < cryptoStage.getThreadCount(); i++) {
+            lanes.add(new ArrayList<Response>());
+        }
+        for (Response notification : notifications) {
+            lanes.get(cryptoStage.laneFor(notification.getDestination(), notification.getDestinationPort())).add(notification);
+        }
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            List<Response> laneNotifications = lanes.get(lane);
+            for (int from = 0; from < laneNotifications.size(); from += NotificationFanOut.BATCH_SIZE) {
+                final List<Response> batch = laneNotifications.subList(
+                        from, Math.min(from + NotificationFanOut.BATCH_SIZE, laneNotifications.size()));
+                fanOut.batchStarted();
+                boolean accepted = cryptoStage.execute(lane, new Runnable() {
+                    public void run() {
+                        try {
+                            for (Response notification : batch) {
+                                outbox.protectAndSend(notification);
+                            }
+                        } finally {
+                            fanOut.batchDone();
+                        }
+                    }
+                });
+                if (!accepted) {
+                    LOGGER.fine("Crypto stage is shut down, dropping " + batch.size() + " notifications");
+                    fanOut.batchDone();
+                }
+            }
+        }
+    }
+
     /**
      * The connector uses this channel to forward messages (in form of
      * {@link RawData}) to the endpoint. The endpoint creates a new task to
@@ -521,13 +733,88 @@ public class OscoapEndpoint implements Endpoint {
             if (raw.getPort() == 0)
                 throw new NullPointerException();
 
-            // Create a new task to process this message
-            Runnable task = new Runnable() {
-                public void run() {
-                    receiveMessage(raw);
-                }
-            };
-            runInProtocolStage(task);
+            byte[] bytes = raw.getBytes();
+            int kid = KidFilter.findKid(bytes);
+            if (kid < 0) {
+                process(raw);
+                return;
+            }
+            if (hasUnknownKid(raw, kid)) {
+                return;
+            }
+            CompletableFuture<CommonContext> loading = SecurityContextManager.getInstance()
+                    .loadSecurityContextByID(bytes, kid, bytes[kid - 1] & 0xFF);
+            if (loading == null) {
+                process(raw);
+            } else {
+                // the store is read by a loader thread, the request is parsed
+                // when the context is in the cache, or found to be unknown
+                loading.whenComplete(new BiConsumer<CommonContext, Throwable>() {
+                    public void accept(CommonContext context, Throwable failure) {
+                        process(raw);
+                    }
+                });
+            }
+        }
+
+        /*
+         * Unprotects the message in the crypto stage, if there is one, and
+         * continues in the protocol stage.
+         */
+        private void process(final RawData raw) {
+            CryptoStage cryptoStage = OscoapEndpoint.this.cryptoStage;
+            if (cryptoStage == null) {
+                // Create a new task to process this message
+                Runnable task = new Runnable() {
+                    public void run() {
+                        receiveMessage(raw);
+                    }
+                };
+                runInProtocolStage(task);
+            } else {
+                // unprotect it in the lane of the peer, then continue in the protocol stage
+                cryptoStage.execute(raw.getAddress(), raw.getPort(), new Runnable() {
+                    public void run() {
+                        final Message message = unprotect(raw);
+                        if (message != null) {
+                            runInProtocolStage(new Runnable() {
+                                public void run() {
+                                    deliver(message, raw);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        }
+
+        /*
+         * Finds the kid of a protected request in the raw bytes and checks it
+         * with the KidFilter, so requests of unknown senders are rejected
+         * before a message is parsed and decrypted. Like the OscoapParser, a
+         * confirmable request is answered with 4.01, which is built from the
+         * header of the datagram.
+         */
+        private boolean hasUnknownKid(RawData raw, int kid) {
+            byte[] bytes = raw.getBytes();
+            if (!SecurityContextManager.getInstance().isUnknownRecipientID(bytes, kid, bytes[kid - 1] & 0xFF)) {
+                return false;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Dropping request with unknown kid from " + raw.getInetSocketAddress());
+            }
+            if ((bytes[0] >> 4 & 0x03) == Type.CON.value) {
+                Response error = new Response(ResponseCode.UNAUTHORIZED);
+                error.setType(Type.ACK);
+                error.setMID((bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF);
+                error.setToken(Arrays.copyOfRange(bytes, 4, 4 + (bytes[0] & 0x0F)));
+                error.setDestination(raw.getAddress());
+                error.setDestinationPort(raw.getPort());
+                error.setPayload("Security context not found");
+                error.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+                connector.send(serializer.serialize(error));
+            }
+            return true;
         }
 
         /*
@@ -536,6 +823,35 @@ public class OscoapEndpoint implements Endpoint {
          * the stack of layers.
          */
         private void receiveMessage(RawData raw) {
+            Message message = unprotect(raw);
+            if (message != null) {
+                deliver(message, raw);
+            }
+        }
+
+        /*
+         * Converts the raw bytes into a message and removes the Object Security.
+         * Runs in the crypto stage, if there is one. Returns null, if the
+         * message is dropped.
+         */
+        private Message unprotect(RawData raw) {
+            // protected requests and responses are decrypted in the datagram,
+            // only the raw address is used afterwards
+            ProtectedDatagramReader reader = new ProtectedDatagramReader(raw.getBytes());
+            Message protectedMessage = reader.read();
+            if (protectedMessage instanceof Request) {
+                Request request = (Request) protectedMessage;
+                request.setSource(raw.getAddress());
+                request.setSourcePort(raw.getPort());
+                request.setSenderIdentity(raw.getSenderIdentity());
+                return unprotectRequest(request, reader);
+            } else if (protectedMessage instanceof Response) {
+                Response response = (Response) protectedMessage;
+                response.setSource(raw.getAddress());
+                response.setSourcePort(raw.getPort());
+                return unprotectResponse(response, reader);
+            }
+
             DataParser parser = new DataParser(raw.getBytes());
 
             if (parser.isRequest()) {
@@ -561,54 +877,147 @@ public class OscoapEndpoint implements Endpoint {
                     if (LOGGER.isLoggable(Level.INFO)) {
                         LOGGER.info(log.toString());
                     }
-                    return;
+                    return null;
                 }
                 request.setSource(raw.getAddress());
                 request.setSourcePort(raw.getPort());
                 request.setSenderIdentity(raw.getSenderIdentity());
+                return unprotectRequest(request, null);
 
-                // Parse the message with Object Security, if the Security Option is set
-                OscoapParser oscoapParser = new OscoapParser();
-                try {
-                    request = oscoapParser.parseRequest(request);
-                } catch (OscoapException e) {
-                    LOGGER.info("catch oscoap on request exception: "+e.getMessage());
-                    String sendBehaviour = "";
-                    switch(e.getSendBehaviour()) {
-                        case OscoapException.SEND_NOTHING: sendBehaviour = "SEND_NOTHING"; break;
-                        case OscoapException.SEND_EMPTY: sendBehaviour = "SEND_EMPTY"; break;
-                        case OscoapException.SEND_RESPONSE: sendBehaviour = "SEND_RESPONSE"; break;
-                    }
-                    LOGGER.info("catch oscoap exception; behaviour:"+sendBehaviour+", " +
-                            "Type:"+ (e.getType()!=null? e.getType().toString():"null")+", " +
-                            "Code:"+ (e.getCode()!=null? e.getCode().toString():"null"));
-                    if (e.getSendBehaviour() == OscoapException.SEND_EMPTY) {
-                        EmptyMessage emptyMessage = new EmptyMessage(e.getType());
-                        emptyMessage.setDestination(request.getSource());
-                        emptyMessage.setDestinationPort(request.getSourcePort());
-                        emptyMessage.setMID(request.getMID());
-                        emptyMessage.setToken(new byte[0]);
-                        connector.send(serializer.serialize(emptyMessage));
-                    }
-                    else if (e.getSendBehaviour() == OscoapException.SEND_RESPONSE) {
+            } else if (parser.isResponse()) {
+                // This is a response
+                Response response = parser.parseResponse();
+                response.setSource(raw.getAddress());
+                response.setSourcePort(raw.getPort());
+                return unprotectResponse(response, null);
 
-                        Response error = Response.createResponse(request, e.getCode());
-                        error.setType(e.getType());
-                        error.setMID(request.getMID());
-                        error.setToken(request.getToken());
+            } else if (parser.isEmpty()) {
+                // This is an empty message
+                EmptyMessage message = parser.parseEmptyMessage();
+                message.setSource(raw.getAddress());
+                message.setSourcePort(raw.getPort());
+                return message;
 
-                        if (e.getMessage() != null && !e.getMessage().equals("")) {
-                            error.setPayload(e.getMessage());
-                            error.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
-                        }
+            } else {
+                LOGGER.finest("Silently ignoring non-CoAP message from " + raw.getInetSocketAddress());
+                return null;
+            }
+        }
 
-                        connector.send(serializer.serialize(error));
+        /*
+         * Parses the request with Object Security, if the Security Option is set.
+         * With a reader, the request is decrypted in its datagram. Returns null,
+         * if the request is dropped.
+         */
+        private Request unprotectRequest(Request request, ProtectedDatagramReader reader) {
+            OscoapParser oscoapParser = new OscoapParser(aeadProvider);
+            try {
+                if (reader == null) {
+                    request = oscoapParser.parseRequest(request);
+                } else {
+                    request = oscoapParser.parseRequest(request, reader);
+                }
+            } catch (OscoapException e) {
+                LOGGER.info("catch oscoap on request exception: "+e.getMessage());
+                String sendBehaviour = "";
+                switch(e.getSendBehaviour()) {
+                    case OscoapException.SEND_NOTHING: sendBehaviour = "SEND_NOTHING"; break;
+                    case OscoapException.SEND_EMPTY: sendBehaviour = "SEND_EMPTY"; break;
+                    case OscoapException.SEND_RESPONSE: sendBehaviour = "SEND_RESPONSE"; break;
+                }
+                LOGGER.info("catch oscoap exception; behaviour:"+sendBehaviour+", " +
+                        "Type:"+ (e.getType()!=null? e.getType().toString():"null")+", " +
+                        "Code:"+ (e.getCode()!=null? e.getCode().toString():"null"));
+                if (e.getSendBehaviour() == OscoapException.SEND_EMPTY) {
+                    EmptyMessage emptyMessage = new EmptyMessage(e.getType());
+                    emptyMessage.setDestination(request.getSource());
+                    emptyMessage.setDestinationPort(request.getSourcePort());
+                    emptyMessage.setMID(request.getMID());
+                    emptyMessage.setToken(new byte[0]);
+                    connector.send(serializer.serialize(emptyMessage));
+                }
+                else if (e.getSendBehaviour() == OscoapException.SEND_RESPONSE) {
+
+                    Response error = Response.createResponse(request, e.getCode());
+                    error.setType(e.getType());
+                    error.setMID(request.getMID());
+                    error.setToken(request.getToken());
+
+                    if (e.getMessage() != null && !e.getMessage().equals("")) {
+                        error.setPayload(e.getMessage());
+                        error.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
                     }
-                    else {
-                        // do nothing, just silently drop the message
+
+                    connector.send(serializer.serialize(error));
+                }
+                else {
+                    // do nothing, just silently drop the message
+                }
+                return null;
+            }
+            return request;
+        }
+
+        /*
+         * Same as unprotectRequest.
+         */
+        private Response unprotectResponse(Response response, ProtectedDatagramReader reader) {
+            OscoapParser oscoapParser = new OscoapParser(aeadProvider);
+            try {
+                if (reader == null) {
+                    response = oscoapParser.parseResponse(response);
+                } else {
+                    response = oscoapParser.parseResponse(response, reader);
+                }
+            } catch (OscoapException e) {
+                LOGGER.info("catch oscoap exception on response: "+e.getMessage());
+                String sendBehaviour = "";
+                switch(e.getSendBehaviour()) {
+                    case OscoapException.SEND_NOTHING: sendBehaviour = "SEND_NOTHING"; break;
+                    case OscoapException.SEND_EMPTY: sendBehaviour = "SEND_EMPTY"; break;
+                    case OscoapException.SEND_RESPONSE: sendBehaviour = "SEND_RESPONSE"; break;
+                }
+                LOGGER.info("catch oscoap exception; behaviour:"+sendBehaviour+", " +
+                        "Type:"+ (e.getType()!=null? e.getType().toString():"null")+", " +
+                        "Code:"+ (e.getCode()!=null? e.getCode().toString():"null"));
+                if (e.getSendBehaviour() == OscoapException.SEND_EMPTY) {
+                    EmptyMessage emptyMessage = new EmptyMessage(e.getType());
+                    emptyMessage.setDestination(response.getSource());
+                    emptyMessage.setDestinationPort(response.getSourcePort());
+                    emptyMessage.setMID(response.getMID());
+                    emptyMessage.setToken(new byte[0]);
+                    connector.send(serializer.serialize(emptyMessage));
+                }
+                else if (e.getSendBehaviour() == OscoapException.SEND_RESPONSE) {
+                    Response error = new Response(e.getCode());
+                    response.setDestination(response.getSource());
+                    response.setDestinationPort(response.getSourcePort());
+                    error.setType(e.getType());
+                    error.setMID(response.getMID());
+                    error.setToken(response.getToken());
+
+                    if (e.getMessage() != null && !e.getMessage().equals("")) {
+                        error.setPayload(e.getMessage());
+                        error.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
                     }
-                    return;
+
+                    connector.send(serializer.serialize(error));
+                }
+                else {
+                    // do nothing, just silently drop the message
                 }
+                return null;
+            }
+            return response;
+        }
+
+        /*
+         * Looks for an associated exchange and forwards the unprotected
+         * message to the stack of layers. Runs in the protocol stage.
+         */
+        private void deliver(Message received, RawData raw) {
+            if (received instanceof Request) {
+                Request request = (Request) received;
 
                 /*
                  * Logging here causes significant performance loss.
@@ -628,55 +1037,8 @@ public class OscoapEndpoint implements Endpoint {
                     }
                 }
 
-            } else if (parser.isResponse()) {
-                // This is a response
-                Response response = parser.parseResponse();
-                response.setSource(raw.getAddress());
-                response.setSourcePort(raw.getPort());
-
-                // Parse the message with Object Security, if the Security Option is set
-                OscoapParser oscoapParser = new OscoapParser();
-                try {
-                    response = oscoapParser.parseResponse(response);
-                } catch (OscoapException e) {
-                    LOGGER.info("catch oscoap exception on response: "+e.getMessage());
-                    String sendBehaviour = "";
-                    switch(e.getSendBehaviour()) {
-                        case OscoapException.SEND_NOTHING: sendBehaviour = "SEND_NOTHING"; break;
-                        case OscoapException.SEND_EMPTY: sendBehaviour = "SEND_EMPTY"; break;
-                        case OscoapException.SEND_RESPONSE: sendBehaviour = "SEND_RESPONSE"; break;
-                    }
-                    LOGGER.info("catch oscoap exception; behaviour:"+sendBehaviour+", " +
-                            "Type:"+ (e.getType()!=null? e.getType().toString():"null")+", " +
-                            "Code:"+ (e.getCode()!=null? e.getCode().toString():"null"));
-                    if (e.getSendBehaviour() == OscoapException.SEND_EMPTY) {
-                        EmptyMessage emptyMessage = new EmptyMessage(e.getType());
-                        emptyMessage.setDestination(response.getSource());
-                        emptyMessage.setDestinationPort(response.getSourcePort());
-                        emptyMessage.setMID(response.getMID());
-                        emptyMessage.setToken(new byte[0]);
-                        connector.send(serializer.serialize(emptyMessage));
-                    }
-                    else if (e.getSendBehaviour() == OscoapException.SEND_RESPONSE) {
-                        Response error = new Response(e.getCode());
-                        response.setDestination(response.getSource());
-                        response.setDestinationPort(response.getSourcePort());
-                        error.setType(e.getType());
-                        error.setMID(response.getMID());
-                        error.setToken(response.getToken());
-
-                        if (e.getMessage() != null && !e.getMessage().equals("")) {
-                            error.setPayload(e.getMessage());
-                            error.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
-                        }
-
-                        connector.send(serializer.serialize(error));
-                    }
-                    else {
-                        // do nothing, just silently drop the message
-                    }
-                    return;
-                }
+            } else if (received instanceof Response) {
+                Response response = (Response) received;
 
                 /*
                  * Logging here causes significant performance loss.
@@ -700,11 +1062,8 @@ public class OscoapEndpoint implements Endpoint {
                     }
                 }
 
-            } else if (parser.isEmpty()) {
-                // This is an empty message
-                EmptyMessage message = parser.parseEmptyMessage();
-                message.setSource(raw.getAddress());
-                message.setSourcePort(raw.getPort());
+            } else {
+                EmptyMessage message = (EmptyMessage) received;
 
                 /*
                  * Logging here causes significant performance loss.
@@ -729,8 +1088,6 @@ public class OscoapEndpoint implements Endpoint {
                         }
                     }
                 }
-            } else {
-                LOGGER.finest("Silently ignoring non-CoAP message from " + raw.getInetSocketAddress());
             }
         }
 
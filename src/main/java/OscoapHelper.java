@@ -14,7 +14,14 @@ import java.util.Base64;
  */
 public class OscoapHelper {
 
+    private static final SecurityContextFactory CONTEXT_FACTORY = new SecurityContextFactory();
+
     public static String reducedIPv6Host(String host) {
+        // String.replace allocates even if nothing is found, so check first.
+        // This is called for every message.
+        if (host.indexOf('[') < 0 && host.indexOf(']') < 0) {
+            return host;
+        }
         return host.replace("[","").replace("]", "");
     }
 
@@ -105,6 +112,48 @@ public class OscoapHelper {
         return result;
     }
 
+    /**
+     * Same as byteArrayToInt, but for sequence numbers longer than 4 bytes.
+     * Lowest array index contains the low value bits.
+     * @param b at most 8 bytes
+     * @return the value as long
+     */
+    static long byteArrayToLong(byte[] b) {
+        long result = 0;
+        for (int i = Math.min(b.length, 8) - 1; i >= 0; i--) {
+            result = (result << 8) | (b[i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Same as getReducedByteArray(int), but for long values.
+     * @param value non negative long
+     * @return the transformed long, new byte[1] for long = 0, null for negative long
+     */
+    static byte[] getReducedByteArray(long value) {
+        if (value < 0) {
+            return null;
+        }
+        byte[] result = new byte[getReducedLength(value)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (value >> (8 * i));
+        }
+        return result;
+    }
+
+    /**
+     * @param value non negative long
+     * @return the number of bytes getReducedByteArray(value) would return
+     */
+    static int getReducedLength(long value) {
+        int length = 1;
+        while ((value >>>= 8) != 0) {
+            length++;
+        }
+        return length;
+    }
+
     static byte[] getBytesFromHexMinusNotation(String hexWithMinus) {
         String[] hexValues = hexWithMinus.split("-");
 
@@ -130,29 +179,15 @@ public class OscoapHelper {
 
 
         // Context B
-
-        CommonContext cc2 = new CommonContext(algorithm, masterSecret, null, host);
+        // keys and IVs are derived, they are the test vectors of the draft
 
         String senderIDString = "73-65-72-76-65-72";
         byte[] senderID = OscoapHelper.getBytesFromHexMinusNotation(senderIDString);
-        String senderKeyString = "D5-CB-37-10-37-15-34-A1-CA-22-4E-19-EB-96-E9-6D";
-        byte[] senderKey = OscoapHelper.getBytesFromHexMinusNotation(senderKeyString);
-        String senderIVString = "20-75-0B-95-F9-78-C8";
-        byte[] senderIV = OscoapHelper.getBytesFromHexMinusNotation(senderIVString);
-        SenderContext sc2 = new SenderContext(senderID, senderKey, senderIV);
-        cc2.setSenderContext(sc2);
 
         String recipientIDString = "63-6C-69-65-6E-74";
         byte[] recipientID = OscoapHelper.getBytesFromHexMinusNotation(recipientIDString);
-        String recipientKeyString = "21-64-42-DA-60-3C-51-59-2D-F4-C3-D0-CD-1D-0D-48";
-        byte[] recipientKey = OscoapHelper.getBytesFromHexMinusNotation(recipientKeyString);
-        String recipientIVString = "01-53-DD-FE-DE-44-19";
-        byte[] recipientIV = OscoapHelper.getBytesFromHexMinusNotation(recipientIVString);
-        RecipientContext rc2 = new RecipientContext(recipientID, recipientKey, recipientIV);
-
-        cc2.setRecipientContext(rc2);
 
-        return cc2;
+        return CONTEXT_FACTORY.createContext(algorithm, masterSecret, null, senderID, recipientID, host);
     }
 
     static CommonContext getSecurityContextForClientDefault(String host) {
@@ -163,29 +198,15 @@ public class OscoapHelper {
 
 
         // Context A
-
-        CommonContext cc1 = new CommonContext(algorithm, masterSecret, null, host);
+        // keys and IVs are derived, they are the test vectors of the draft
 
         String senderIDString = "63-6C-69-65-6E-74";
         byte[] senderID = OscoapHelper.getBytesFromHexMinusNotation(senderIDString);
-        String senderKeyString = "21-64-42-DA-60-3C-51-59-2D-F4-C3-D0-CD-1D-0D-48";
-        byte[] senderKey = OscoapHelper.getBytesFromHexMinusNotation(senderKeyString);
-        String senderIVString = "01-53-DD-FE-DE-44-19";
-        byte[] senderIV = OscoapHelper.getBytesFromHexMinusNotation(senderIVString);
-        SenderContext sc1 = new SenderContext(senderID, senderKey, senderIV);
-        cc1.setSenderContext(sc1);
 
         String recipientIDString = "73-65-72-76-65-72";
         byte[] recipientID = OscoapHelper.getBytesFromHexMinusNotation(recipientIDString);
-        String recipientKeyString = "D5-CB-37-10-37-15-34-A1-CA-22-4E-19-EB-96-E9-6D";
-        byte[] recipientKey = OscoapHelper.getBytesFromHexMinusNotation(recipientKeyString);
-        String recipientIVString = "20-75-0B-95-F9-78-C8";
-        byte[] recipientIV = OscoapHelper.getBytesFromHexMinusNotation(recipientIVString);
-        RecipientContext rc1 = new RecipientContext(recipientID, recipientKey, recipientIV);
 
-        cc1.setRecipientContext(rc1);
-
-        return cc1;
+        return CONTEXT_FACTORY.createContext(algorithm, masterSecret, null, senderID, recipientID, host);
     }
 
     static CommonContext getSecurityContextForClientFalseSenderID(String host) {
@@ -1,11 +1,11 @@
-import COSE.*;
-import com.upokecenter.cbor.CBORObject;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.eclipse.californium.core.coap.*;
 import org.eclipse.californium.core.coap.Message;
-import org.eclipse.californium.core.network.serialization.DatagramReader;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
@@ -18,6 +18,8 @@ public class OscoapParser {
 
     private final static Logger LOGGER = Logger.getLogger(OscoapParser.class.getCanonicalName());
 
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
     private boolean isRequest = false;
     private boolean isResponse = false;
 
@@ -26,6 +28,22 @@ public class OscoapParser {
     private byte[] sequenceNumber = null;
     private byte[] senderID = null;
 
+    // filled by the RequestParameterTable, when parsing a response
+    private final OscoapRequestParameter params = new OscoapRequestParameter();
+
+    private final AeadProvider aeadProvider;
+
+    public OscoapParser() {
+        this(AeadProviders.getDefault());
+    }
+
+    /**
+     * @param aeadProvider encrypts and decrypts, see OscoapEndpoint.setAeadProvider
+     */
+    public OscoapParser(AeadProvider aeadProvider) {
+        this.aeadProvider = aeadProvider;
+    }
+
     public Request parseRequest(Request request) throws OscoapException {
         this.isRequest = true;
         return (Request) this.parseMessage(request);
@@ -36,21 +54,30 @@ public class OscoapParser {
         return (Response) this.parseMessage(response);
     }
 
+    /**
+     * Parses a request, which was read by the ProtectedDatagramReader.
+     * The compressed COSE is decrypted in place, in the datagram of the reader.
+     * @param request the request of the reader, with source and source port
+     */
+    Request parseRequest(Request request, ProtectedDatagramReader reader) throws OscoapException {
+        this.isRequest = true;
+        return (Request) this.unprotect(request, reader.getDatagram(), reader.getCoseOffset(), reader.getCoseLength());
+    }
+
+    /**
+     * Same as parseRequest with a ProtectedDatagramReader.
+     */
+    Response parseResponse(Response response, ProtectedDatagramReader reader) throws OscoapException {
+        this.isResponse = true;
+        return (Response) this.unprotect(response, reader.getDatagram(), reader.getCoseOffset(), reader.getCoseLength());
+    }
+
     private Message parseMessage(Message message) throws OscoapException {
         if (!message.getOptions().hasOption(OscoapEndpoint.OSCOAP_OPTION_NUMBER)) {
             // Nothing special to do, its a unprotected message.
             return message;
         }
 
-        if (isResponse) {
-            // This works, because the Observe option is only integrity protected
-            // and shall have an unprotected options value.
-            this.isObserve = message.getOptions().hasObserve();
-            LOGGER.info("Parser; parse response");
-        } else {
-            LOGGER.info("Parser; parse request");
-        }
-
 
         // Step 1: Object Security Option
         // For the next developer: In californium 1.0.5 getOthers is public.
@@ -97,10 +124,38 @@ public class OscoapParser {
             compressedPayload = securityOptionValue;
         }
 
+        // the option value or the payload is replaced by the plaintext
+        return this.unprotect(message, compressedPayload, 0, compressedPayload.length);
+    }
+
+    /**
+     * Step 2b to 8, the compressed COSE is decrypted in place.
+     * @param cose contains the compressed COSE, which is overwritten with the plaintext
+     * @param coseOffset offset of the compressed COSE
+     * @param coseLength length of the compressed COSE, not 0
+     * @return the message with the decrypted options and payload
+     */
+    private Message unprotect(Message message, byte[] cose, int coseOffset, int coseLength) throws OscoapException {
+        if (isResponse) {
+            // This works, because the Observe option is only integrity protected
+            // and shall have an unprotected options value.
+            this.isObserve = message.getOptions().hasObserve();
+            LOGGER.info("Parser; parse response");
+        } else {
+            LOGGER.info("Parser; parse request");
+        }
+
+        // for the debug logs, the COSE is decrypted afterwards
+        byte[] compressedPayload = null;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            compressedPayload = Arrays.copyOfRange(cose, coseOffset, coseOffset + coseLength);
+        }
+
         // 2b: decompress
-        byte[] ciphertext = this.decompressPayload(compressedPayload);
-        if (isRequest && senderID == null) {
-            if (message.isConfirmable()) {
+        int ciphertextOffset = this.decompressPayload(cose, coseOffset, coseLength);
+        int ciphertextLength = coseOffset + coseLength - ciphertextOffset;
+        if (ciphertextOffset < 0 || isRequest && senderID == null) {
+            if (isRequest && message.isConfirmable()) {
                 throw new OscoapException("Failed to decode COSE", OscoapException.SEND_RESPONSE, CoAP.Type.ACK, CoAP.ResponseCode.BAD_REQUEST);
             } else {
                 throw new OscoapException("Failed to decode COSE", OscoapException.SEND_NOTHING, null, null);
@@ -113,7 +168,14 @@ public class OscoapParser {
         SecurityContextManager scm = SecurityContextManager.getInstance();
         CommonContext securityContext = null;
         if (isRequest) {
-            securityContext = scm.getSecurityContextByID(senderID);
+            CompletableFuture<CommonContext> lookup = scm.getSecurityContextByIDAsync(senderID);
+            if (!lookup.isDone() || lookup.isCompletedExceptionally()) {
+                // the protocol stage does not wait for the ContextStore. The
+                // endpoint waits for the load before parsing, so this is rare,
+                // a retransmission finds the context
+                throw new OscoapException("Security context not loaded", OscoapException.SEND_NOTHING, null, null);
+            }
+            securityContext = lookup.getNow(null);
             if (securityContext == null) {
                 if (message.isConfirmable()) {
                     throw new OscoapException("Security context not found", OscoapException.SEND_RESPONSE, CoAP.Type.ACK, CoAP.ResponseCode.UNAUTHORIZED);
@@ -122,7 +184,8 @@ public class OscoapParser {
                 }
             }
         } else if (isResponse) {
-            securityContext = scm.getSecurityContextByToken(message.getToken());
+            securityContext = scm.getSecurityContextByToken(
+                    message.getSource(), message.getSourcePort(), message.getToken());
             if (securityContext == null) {
                 if (message.isConfirmable()) {
                     throw new OscoapException("Security context not found", OscoapException.SEND_EMPTY, CoAP.Type.ACK, null);
@@ -138,15 +201,21 @@ public class OscoapParser {
 
 
         // Step 4: Sequence Number
-        OscoapRequestParameter params = null;
         // requestID overwrites senderID if isResponse, but only in AAD
         byte[] requestID = null;
         if (isResponse && !isObserve) {
-            params = securityContext.getAndRemoveRequestParameters(message.getToken());
+            boolean found = securityContext.getAndRemoveRequestParameters(
+                    message.getSource(), message.getSourcePort(), message.getToken(), params);
+            if (!found) {
+                // another thread has already parsed a response to this request
+                throw new OscoapException("Request parameters not found", OscoapException.SEND_NOTHING, null, null);
+            }
             requestID = params.getRequestID();
         }
 
         // byte[] sequenceNumber is already defined, but still null in case of Response
+        long sequenceNumberValue = -1;
+        boolean sequenceNumberReserved = false;
 
         // Different to composer: check replay window
         if (isRequest || isObserve) {
@@ -155,8 +224,11 @@ public class OscoapParser {
                         "Replay Protection failed; sequence number should not be null",
                         OscoapException.SEND_NOTHING, null, null);
             }
+            // decode once, the replay window and the request parameters use the number
+            sequenceNumberValue = OscoapHelper.byteArrayToLong(sequenceNumber);
 
-            boolean sequenceNumberIsValid = securityContext.getRecipientContext().compareReplayWindow(sequenceNumber);
+            // reserve the number, so no other thread accepts it while this one decrypts
+            boolean sequenceNumberIsValid = securityContext.getRecipientContext().reserveSequenceNumber(sequenceNumberValue);
             if (!sequenceNumberIsValid) {
                 if (message.isConfirmable()) {
                     if (isRequest) {
@@ -170,137 +242,187 @@ public class OscoapParser {
                 }
             }
             // else sequence number is good and can be used
+            sequenceNumberReserved = true;
         }
         if (isResponse && !isObserve) {
-            sequenceNumber = params.getSequenceNumber();
+            // the sequence number of the request for the nonce, the AAD
+            // needs the Partial IV as the peer encoded it
+            sequenceNumberValue = params.getSequenceNumber();
         }
 
 
-        // Step 5: Additional Authenticated Data
-
-        // First get the integrity protected options (Observe)
-        OptionSet integrityProtectedSet = this.getIntegrityProtectedOptions();
-
-        // With the integrityProtectedSet, create the aad
-        byte[] externalAADEndpointID;
-        if (isRequest || isObserve) {
-            externalAADEndpointID = recipientID;
-        } else {
-            externalAADEndpointID = requestID;
-        }
-        CBORObject external_aad = OscoapSerializer.getExternalAAD(
-                message, securityContext, externalAADEndpointID, sequenceNumber, integrityProtectedSet
-        );
+        // declared outside of the try, they are used after the replay window is updated
+        CborWriter aad;
+        int plaintextLength;
+        try {
+            // Step 5: Additional Authenticated Data
 
+            // First get the integrity protected options (Observe)
+            OptionSet integrityProtectedSet = this.getIntegrityProtectedOptions(message);
 
-        // Step 6: Decryption
-        // use COSE_Encrypt0
-        Encrypt0Message encryptMessage;
-        try {
-            // sequenceNumber is synonym for Partial IV in this context
-            // recipientID is synonym for kid in this context
-            encryptMessage = OscoapSerializer.getCoseEncrypt0(
-                    securityContext, sequenceNumber, recipientID, recipientIV, isRequest, isObserve);
-        } catch (CoseException e) {
-            if (message.isConfirmable()) {
-                throw new OscoapException("Internal Cose Error", OscoapException.SEND_RESPONSE,
-                        CoAP.Type.ACK, CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+            // With the integrityProtectedSet, create the aad
+            byte[] externalAADEndpointID;
+            if (isRequest || isObserve) {
+                externalAADEndpointID = recipientID;
             } else {
-                throw new OscoapException("Internal Cose Error", OscoapException.SEND_NOTHING, null, null);
+                externalAADEndpointID = requestID;
+            }
+            if (isRequest || isObserve) {
+                // the Partial IV as received
+                aad = OscoapSerializer.writeAAD(
+                        message, securityContext, externalAADEndpointID, sequenceNumber, integrityProtectedSet
+                );
+            } else if (params.getPartialIV() != null) {
+                aad = OscoapSerializer.writeAAD(
+                        message, securityContext, externalAADEndpointID, params.getPartialIV(), integrityProtectedSet
+                );
+            } else {
+                // the request was sent by this endpoint, so its Partial IV is minimal
+                aad = OscoapSerializer.writeAAD(
+                        message, securityContext, externalAADEndpointID, sequenceNumberValue, integrityProtectedSet
+                );
             }
-        }
-
-        // Plaintext is encrypted options with original payload
-        byte[] plaintext;
-        try {
-            encryptMessage.setExternal(external_aad.EncodeToBytes());
 
-            encryptMessage.setEncryptedContent(ciphertext);
 
-            plaintext = encryptMessage.decrypt(recipientKey);
-        } catch (CoseException | InvalidCipherTextException e) {
-            OscoapSerializer.logDebug("Parser", recipientID, recipientIV, recipientKey, sequenceNumber, external_aad, compressedPayload, message.getToken());
-            if (!message.isConfirmable()) {
-                throw new OscoapException("Decryption failed", OscoapException.SEND_NOTHING, null, null);
-            } else {
-                int sendBehaviour;
-                if (isRequest) {
-                    sendBehaviour = OscoapException.SEND_RESPONSE;
+            // Step 6: Decryption
+            // AEAD with the Enc_structure of COSE_Encrypt0 as AAD, done by the
+            // engine of the recipient context instead of a COSE Encrypt0Message
+            // Plaintext is encrypted options with original payload
+            try {
+                // sequenceNumber is synonym for Partial IV in this context
+                // "normal" responses use the IV with the flipped bit
+                byte[] nonceIV = isRequest || isObserve ? recipientIV : securityContext.getRecipientContext().getRecipientResponseIV();
+                byte[] nonce = OscoapSerializer.writeNonce(
+                        nonceIV, sequenceNumberValue, OscoapSerializer.getNonceBuffer(nonceIV.length));
+                AeadEngine engine = securityContext.getRecipientContext().getEngine(securityContext.getAeadAlgorithm(), aeadProvider);
+                if (ciphertextLength < engine.getTagLength()) {
+                    throw new InvalidCipherTextException("Ciphertext shorter than the tag");
+                }
+                plaintextLength = engine.decrypt(nonce, aad.getBuffer(), 0, aad.size(),
+                        cose, ciphertextOffset, ciphertextLength, cose, ciphertextOffset);
+            } catch (InvalidCipherTextException | RuntimeException e) {
+                if (compressedPayload != null) {
+                    OscoapSerializer.logDebug("Parser", recipientID, recipientIV, recipientKey, sequenceNumberValue, aad.getBuffer(), aad.size(), compressedPayload, message.getToken());
+                }
+                if (!message.isConfirmable()) {
+                    throw new OscoapException("Decryption failed", OscoapException.SEND_NOTHING, null, null);
                 } else {
-                    sendBehaviour = OscoapException.SEND_EMPTY;
+                    int sendBehaviour;
+                    if (isRequest) {
+                        sendBehaviour = OscoapException.SEND_RESPONSE;
+                    } else {
+                        sendBehaviour = OscoapException.SEND_EMPTY;
+                    }
+                    throw new OscoapException("Decryption failed", sendBehaviour, CoAP.Type.ACK, CoAP.ResponseCode.BAD_REQUEST);
                 }
-                throw new OscoapException("Decryption failed", sendBehaviour, CoAP.Type.ACK, CoAP.ResponseCode.BAD_REQUEST);
             }
-        }
 
 
-        // Step 7: Decompose Plaintext
-        // 7.2.4. says, update replay window here, before decompose plaintext
-        if (isRequest || isObserve) {
-            securityContext.getRecipientContext().updateReplayWindow(sequenceNumber);
+            // Step 7: Decompose Plaintext
+            // 7.2.4. says, update replay window here, before decompose plaintext
+            if (sequenceNumberReserved) {
+                securityContext.getRecipientContext().commitSequenceNumber(sequenceNumberValue);
+                sequenceNumberReserved = false;
+            }
+        } finally {
+            // decryption failed, another thread may try the number again
+            if (sequenceNumberReserved) {
+                securityContext.getRecipientContext().releaseSequenceNumber(sequenceNumberValue);
+            }
+            BufferPool.checkReleased("parse");
         }
 
         // The method splits plaintext into encrypted options and original payload
         // the options are merged with the unprotected options and the payload
         // is assigned to the message
-        this.decomposePlaintext(plaintext, message);
+        this.decomposePlaintext(cose, ciphertextOffset, plaintextLength, message);
 
 
         // Step 8: Update Security Context
         if (isRequest) {
             byte[] token = message.getToken();
-            OscoapRequestParameter newParams = new OscoapRequestParameter(sequenceNumber, recipientID);
-            securityContext.addRequestParameters(token, newParams);
+            securityContext.addRequestParameters(message.getSource(), message.getSourcePort(),
+                    token, sequenceNumberValue, sequenceNumber, recipientID);
+        }
+        if (isObserve) {
+            // further notifications will need the context of this token
+            securityContext.keepRequestParameters(
+                    message.getSource(), message.getSourcePort(), message.getToken());
         }
 
 
         // do all the debug Logs on one place
-        OscoapSerializer.logDebug("Parser", recipientID, recipientIV, recipientKey, sequenceNumber, external_aad, compressedPayload, message.getToken());
+        if (compressedPayload != null) {
+            OscoapSerializer.logDebug("Parser", recipientID, recipientIV, recipientKey, sequenceNumberValue, aad.getBuffer(), aad.size(), compressedPayload, message.getToken());
+        }
 
         return message;
     }
 
-    private byte[] decompressPayload(byte[] compressedPayload) {
-        int readIndex = 0;
-        byte flags = compressedPayload[readIndex];
+    /**
+     * Reads Partial IV and kid of the compressed COSE.
+     * @return offset of the ciphertext, -1 if the compressed COSE is too short
+     */
+    private int decompressPayload(byte[] cose, int offset, int length) {
+        int end = offset + length;
+        int readIndex = offset;
+        byte flags = cose[readIndex];
         readIndex++;
 
         // least significant 3 bits
         int seqNumLength = flags & 7;
+        if (readIndex + seqNumLength > end) {
+            return -1;
+        }
 
         if (seqNumLength > 0) {
-            sequenceNumber = new byte[seqNumLength];
-            System.arraycopy(compressedPayload, readIndex, sequenceNumber, 0, seqNumLength);
+            sequenceNumber = Arrays.copyOfRange(cose, readIndex, readIndex + seqNumLength);
         }
         readIndex += seqNumLength;
 
         boolean senderIDPresent = (flags & 8) > 0;
 
         if (senderIDPresent) {
-            int senderIDLength = compressedPayload[readIndex];
+            if (readIndex == end) {
+                return -1;
+            }
+            int senderIDLength = cose[readIndex] & 0xFF;
             readIndex++;
+            if (readIndex + senderIDLength > end) {
+                return -1;
+            }
 
-            senderID = new byte[senderIDLength];
-            System.arraycopy(compressedPayload, readIndex, senderID, 0, senderIDLength);
+            senderID = Arrays.copyOfRange(cose, readIndex, readIndex + senderIDLength);
             readIndex += senderIDLength;
         }
 
-        byte[] payload = new byte[compressedPayload.length - readIndex];
-        System.arraycopy(compressedPayload, readIndex, payload, 0, payload.length);
-
-        return payload;
+        return readIndex;
     }
 
     /**
-     * In OscoapSerializer.distributeOptions, the unprotected options are seperated
-     * and distributed in the different option sets. Only the integrity protected are
-     * needed for parsing (for external_aad for decryption)
-     * @return The integrity protected OptionSet
+     * Only the integrity protected options are needed for parsing (for
+     * external_aad for decryption). These are the outer options of Class I
+     * (see OptionClass) and the Observe of notifications.
+     * @return The integrity protected OptionSet, null if there are none
      */
-    private OptionSet getIntegrityProtectedOptions() {
-        OptionSet integrityProtectedSet = new OptionSet();
+    private OptionSet getIntegrityProtectedOptions(Message message) {
+        OptionSet integrityProtectedSet = null;
+
+        if (OptionClass.hasIntegrityProtected()) {
+            for (Option option : message.getOptions().asSortedList()) {
+                if (OptionClass.get(option.getNumber()) == OptionClass.I) {
+                    if (integrityProtectedSet == null) {
+                        integrityProtectedSet = new OptionSet();
+                    }
+                    integrityProtectedSet.addOption(option);
+                }
+            }
+        }
 
         if (isResponse && isObserve) {
+            if (integrityProtectedSet == null) {
+                integrityProtectedSet = new OptionSet();
+            }
             int cuttedSequenceNumber = OscoapSerializer.getLeastSignificantBytes(sequenceNumber);
             integrityProtectedSet.setObserve(cuttedSequenceNumber);
         }
@@ -308,112 +430,93 @@ public class OscoapParser {
         return integrityProtectedSet;
     }
 
-    private void decomposePlaintext(byte[] plaintext, Message message) {
-        byte[] options;
+    /**
+     * Reads the encrypted options and the original payload from the plaintext
+     * and merges them with the unprotected options of the message.
+     * @param buffer contains the plaintext
+     */
+    private void decomposePlaintext(byte[] buffer, int offset, int length, Message message) {
         byte[] originalPayload = null;
 
-        int payloadMarker = -1;
-        for (int i = 0; i < plaintext.length; i++) {
-            byte payloadByte = plaintext[i];
-            if (payloadByte == PAYLOAD_MARKER) {
-                payloadMarker = i;
+        // protectedSet is going to be the merged set
+        // Adapted from org.eclipse.californium.core.network.serialization.DataParser
+        OptionSet protectedSet = new OptionSet();
+        int end = offset + length;
+        int index = offset;
+        int currentOption = 0;
+        while (index < end) {
+            byte nextByte = buffer[index++];
+            if (nextByte == PAYLOAD_MARKER) {
+                originalPayload = Arrays.copyOfRange(buffer, index, end);
                 break;
             }
-        }
+            // the first 4 bits of the byte represent the option delta
+            // the second 4 bits represent the option length
+            int optionDeltaNibble = (0xF0 & nextByte) >> 4;
+            int optionLengthNibble = (0x0F & nextByte);
+            if (index + getExtensionLength(optionDeltaNibble) + getExtensionLength(optionLengthNibble) > end) {
+                throw new IllegalArgumentException("Option exceeds the plaintext");
+            }
+            currentOption += readOptionValueFromNibble(buffer, index, optionDeltaNibble);
+            index += getExtensionLength(optionDeltaNibble);
 
-        if (payloadMarker == -1) {
-            options = plaintext;
-        } else {
-            options = new byte[payloadMarker];
-            System.arraycopy(plaintext, 0, options, 0, payloadMarker);
+            int optionLength = readOptionValueFromNibble(buffer, index, optionLengthNibble);
+            index += getExtensionLength(optionLengthNibble);
+            if (index + optionLength > end) {
+                throw new IllegalArgumentException("Option exceeds the plaintext");
+            }
 
-            int payloadLength = plaintext.length - payloadMarker - 1;
-            originalPayload = new byte[payloadLength];
-            System.arraycopy(plaintext, payloadMarker+1, originalPayload, 0, payloadLength);
+            // add option to the protected set
+            protectedSet.addOption(new Option(currentOption, Arrays.copyOfRange(buffer, index, index + optionLength)));
+            index += optionLength;
         }
-
-        // protectedSet is going to be the merged set
-        OptionSet protectedSet = this.parseOptionSet(options);
-        OptionSet unprotectedSet = new OptionSet(message.getOptions());
+        OptionSet unprotectedSet = message.getOptions();
 
         // merge protectedSet into message (unprotectedSet)
-        // There are only 5 Class U options. So copy them to the protectedSet, if
-        // they appear. Afterwards assign the protectedSet to the message.
+        // Copy the outer options of Class U and I (see OptionClass) to the
+        // protectedSet. Afterwards assign the protectedSet to the message.
+        // Object-Security and unprotected Class E options are dropped.
         // only ProxyUri is a bit complex
-        if (unprotectedSet.hasProxyUri()) {
-            String originalProxyUri = unprotectedSet.getProxyUri();
-            if (protectedSet.getUriPath().size() > 0) {
-                originalProxyUri += "/" + protectedSet.getUriPathString();
-                protectedSet.clearUriPath();
+        for (Option option : unprotectedSet.asSortedList()) {
+            int number = option.getNumber();
+            if (number == OscoapEndpoint.OSCOAP_OPTION_NUMBER || !OptionClass.isOuter(number)) {
+                continue;
             }
-            if (protectedSet.getUriQuery().size() > 0) {
-                originalProxyUri += "?" + protectedSet.getUriQueryString();
-                protectedSet.clearUriQuery();
+            if (number == OptionNumberRegistry.PROXY_URI) {
+                String originalProxyUri = option.getStringValue();
+                if (protectedSet.getUriPath().size() > 0) {
+                    originalProxyUri += "/" + protectedSet.getUriPathString();
+                    protectedSet.clearUriPath();
+                }
+                if (protectedSet.getUriQuery().size() > 0) {
+                    originalProxyUri += "?" + protectedSet.getUriQueryString();
+                    protectedSet.clearUriQuery();
+                }
+                protectedSet.setProxyUri(originalProxyUri);
+            } else {
+                protectedSet.addOption(option);
             }
-            protectedSet.setProxyUri(originalProxyUri);
-        }
-
-        if (unprotectedSet.hasUriHost()) {
-            protectedSet.setUriHost(unprotectedSet.getUriHost());
-        }
-        if (unprotectedSet.hasUriPort()) {
-            protectedSet.setUriPort(unprotectedSet.getUriPort());
-        }
-        if (unprotectedSet.hasProxyScheme()) {
-            protectedSet.setProxyScheme(unprotectedSet.getProxyScheme());
-        }
-        if (unprotectedSet.hasObserve()) {
-            protectedSet.setObserve(unprotectedSet.getObserve());
         }
         message.setOptions(protectedSet);
 
 
-        if (originalPayload != null) {
-            message.setPayload(originalPayload);
-        }
-    }
-
-    /**
-     * Adapted from org.eclipse.californium.core.network.serialization.DataParser
-     * @param options the options as byte
-     * @return parsed option set as OptionSet
-     */
-    private OptionSet parseOptionSet(byte[] options) {
-        DatagramReader reader = new DatagramReader(options);
-        OptionSet result = new OptionSet();
-
-        int currentOption = 0;
-        byte nextByte;
-        while(reader.bytesAvailable()) {
-            nextByte = reader.readNextByte();
-            // the first 4 bits of the byte represent the option delta
-            int optionDeltaNibble = (0xF0 & nextByte) >> 4;
-            currentOption += readOptionValueFromNibble(reader, optionDeltaNibble);
-
-            // the second 4 bits represent the option length
-            int optionLengthNibble = (0x0F & nextByte);
-            int optionLength = readOptionValueFromNibble(reader, optionLengthNibble);
-
-            // read option
-            Option option = new Option(currentOption);
-            option.setValue(reader.readBytes(optionLength));
-
-            // add option to message
-            result.addOption(option);
-        }
-
-        return result;
+        // without payload, the message must not keep the compressed COSE
+        message.setPayload(originalPayload != null ? originalPayload : EMPTY_PAYLOAD);
     }
 
-    private int readOptionValueFromNibble(DatagramReader reader, int nibble) {
+    private int readOptionValueFromNibble(byte[] buffer, int index, int nibble) {
         if (nibble <= 12) {
             return nibble;
         } else if (nibble == 13) {
-            return reader.read(8) + 13;
+            return (buffer[index] & 0xFF) + 13;
         } else if (nibble == 14) {
-            return reader.read(16) + 269;
+            return ((buffer[index] & 0xFF) << 8 | buffer[index + 1] & 0xFF) + 269;
         } else {
             throw new IllegalArgumentException("Unsupported option delta "+nibble);
         }
     }
+
+    private static int getExtensionLength(int nibble) {
+        return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+    }
 }
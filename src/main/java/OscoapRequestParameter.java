@@ -1,23 +1,37 @@
 /**
  * Created by Kidreo on 29.11.2017.
- * Stores the sequence number and the senderID from the request to
- * reuse them in a response.
+ * Holds the sequence number and the senderID from the request to
+ * reuse them in a response. The Partial IV of a received request is
+ * kept as received, because the AAD of the response contains it.
+ * A peer may encode it with more bytes than needed.
+ * The values are stored in the RequestParameterTable. This is only a
+ * holder, which the table fills on lookup. So it can be reused for
+ * every message.
  */
 public class OscoapRequestParameter {
 
-    private byte[] sequenceNumber;
+    private long sequenceNumber;
+    private byte[] partialIV;
     private byte[] requestID;
 
-    public OscoapRequestParameter(byte[] sequnceNumber, byte[] requestID) {
-        this.sequenceNumber = new byte[sequnceNumber.length];
-        System.arraycopy(sequnceNumber, 0, this.sequenceNumber, 0, sequnceNumber.length);
+    void set(long sequenceNumber, byte[] partialIV, byte[] requestID) {
+        this.sequenceNumber = sequenceNumber;
+        this.partialIV = partialIV;
         this.requestID = requestID;
     }
 
-    public byte[] getSequenceNumber() {
+    public long getSequenceNumber() {
         return sequenceNumber;
     }
 
+    /**
+     * @return the Partial IV of the request as received, null if it is the
+     * minimal encoding of the sequence number (own requests)
+     */
+    public byte[] getPartialIV() {
+        return partialIV;
+    }
+
     public byte[] getRequestID() {
         return requestID;
     }
@@ -1,6 +1,8 @@
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.ObserveRelationFilter;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
 
@@ -12,6 +14,8 @@ public class OscoapResource extends CoapResource {
 
     private boolean isProtected;
 
+    private final FanOutMetrics fanOutMetrics = new FanOutMetrics();
+
     OscoapResource(String name) {
         super(name);
         isProtected = true;
@@ -35,7 +39,9 @@ public class OscoapResource extends CoapResource {
     public void handleRequest(final Exchange exchange) {
 
         SecurityContextManager scm = SecurityContextManager.getInstance();
-        boolean isProtectedMessage = scm.getSecurityContextByToken(exchange.getRequest().getToken()) != null;
+        Request request = exchange.getRequest();
+        boolean isProtectedMessage = scm.getSecurityContextByToken(
+                request.getSource(), request.getSourcePort(), request.getToken()) != null;
 
         if (this.isProtected && !isProtectedMessage) {
             CoapExchange coapExchange = new CoapExchange(exchange, this);
@@ -49,7 +55,7 @@ public class OscoapResource extends CoapResource {
             return;
         }
 
-        CoAP.Code code = exchange.getRequest().getCode();
+        CoAP.Code code = request.getCode();
         switch (code) {
             case GET: handleGET(new CoapExchange(exchange, this)); break;
             case POST: handlePOST(new CoapExchange(exchange, this)); break;
@@ -58,6 +64,27 @@ public class OscoapResource extends CoapResource {
         }
     }
 
+    /**
+     * Creates the notifications of all observers in a NotificationFanOut, so they
+     * share the plaintext and are encrypted in parallel batches.
+     */
+    @Override
+    protected void notifyObserverRelations(ObserveRelationFilter filter) {
+        NotificationFanOut fanOut = NotificationFanOut.open(fanOutMetrics);
+        try {
+            super.notifyObserverRelations(filter);
+        } finally {
+            fanOut.close();
+        }
+    }
+
+    /**
+     * @return latency of the notification fan-outs of this resource
+     */
+    public FanOutMetrics getFanOutMetrics() {
+        return fanOutMetrics;
+    }
+
     @Override
     public synchronized void add(Resource child) {
         if (!(child instanceof OscoapResource)) {
@@ -1,15 +1,12 @@
-import COSE.*;
-import com.upokecenter.cbor.CBORObject;
 import org.eclipse.californium.core.coap.*;
 import org.eclipse.californium.core.coap.Message;
-import org.eclipse.californium.core.network.serialization.DatagramWriter;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
 import static javax.xml.bind.DatatypeConverter.printHexBinary;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.OPTION_DELTA_BITS;
 import static org.eclipse.californium.core.coap.CoAP.MessageFormat.OPTION_LENGTH_BITS;
 
 /**
@@ -20,59 +17,17 @@ public class OscoapSerializer {
 
     private final static Logger LOGGER = Logger.getLogger(OscoapSerializer.class.getCanonicalName());
 
-    static void logDebug(String source, byte[] ID, byte[] IV, byte[] key, byte[] sequenceNumber, CBORObject external_aad, byte[] compressedPayload, byte[] token) {
+    static void logDebug(String source, byte[] ID, byte[] IV, byte[] key, long sequenceNumber, byte[] aad, int aadLength, byte[] compressedPayload, byte[] token) {
         System.out.println(
                 source+"; ID: "+ printHexBinary(ID) +", "+
                 "IV: "+ printHexBinary(IV) +", "+
                 "Key: "+ printHexBinary(key) +", "+
-                "seq.Number: "+ printHexBinary(sequenceNumber));
-        System.out.println(source+"; External AAD: "+ printHexBinary(external_aad.EncodeToBytes()));
+                "seq.Number: "+ printHexBinary(OscoapHelper.getReducedByteArray(sequenceNumber)));
+        System.out.println(source+"; AAD: "+ printHexBinary(Arrays.copyOf(aad, aadLength)));
         System.out.println(source+"; compressed payload: " + printHexBinary(compressedPayload));
         System.out.println(source+"; token: " + printHexBinary(token));
     }
 
-    // copied from org.eclipse.californium.core.network.serialization.DataSerializer
-    static byte[] encodeOptionSet(OptionSet set) {
-        DatagramWriter writer = new DatagramWriter();
-
-        List<Option> options = set.asSortedList(); // already sorted
-        int lastOptionNumber = 0;
-        for (Option option:options) {
-
-            // write 4-bit option delta
-            int optionDelta = option.getNumber() - lastOptionNumber;
-            int optionDeltaNibble = getOptionNibble(optionDelta);
-            writer.write(optionDeltaNibble, OPTION_DELTA_BITS);
-
-            // write 4-bit option length
-            int optionLength = option.getLength();
-            int optionLengthNibble = getOptionNibble(optionLength);
-            writer.write(optionLengthNibble, OPTION_LENGTH_BITS);
-
-            // write extended option delta field (0 - 2 bytes)
-            if (optionDeltaNibble == 13) {
-                writer.write(optionDelta - 13, 8);
-            } else if (optionDeltaNibble == 14) {
-                writer.write(optionDelta - 269, 16);
-            }
-
-            // write extended option length field (0 - 2 bytes)
-            if (optionLengthNibble == 13) {
-                writer.write(optionLength - 13, 8);
-            } else if (optionLengthNibble == 14) {
-                writer.write(optionLength - 269, 16);
-            }
-
-            // write option value
-            writer.writeBytes(option.getValue());
-
-            // update last option number
-            lastOptionNumber = option.getNumber();
-        }
-
-        return writer.toByteArray();
-    }
-
     /**
      * Returns the 4-bit option header value.
      *
@@ -80,7 +35,7 @@ public class OscoapSerializer {
      *            the option value (delta or length) to be encoded.
      * @return the 4-bit option header value.
      */
-    private static int getOptionNibble(int optionValue) {
+    static int getOptionNibble(int optionValue) {
         if (optionValue <= 12) {
             return optionValue;
         } else if (optionValue <= 255 + 13) {
@@ -92,40 +47,144 @@ public class OscoapSerializer {
         }
     }
 
-    protected static CBORObject getExternalAAD(Message message, CommonContext securityContext,
-                                      byte[] kid, byte[] sequenceNumber, OptionSet integrityProtectedSet) {
-        CBORObject external_aad = CBORObject.NewArray();
+    // "Encrypt0" and the empty protected header of the Enc_structure
+    private static final byte[] ENC_STRUCTURE_PREFIX = {(byte) 0x83, 0x68, 'E', 'n', 'c', 'r', 'y', 'p', 't', '0', 0x40};
 
-        // ver: unit // index: 0
-        external_aad.Add(CBORObject.FromObject(CoAP.VERSION));
+    // the AAD of a thread is written again for each message
+    private static final ThreadLocal<CborWriter> AAD_WRITER = new ThreadLocal<CborWriter>() {
+        @Override
+        protected CborWriter initialValue() {
+            return new CborWriter(64);
+        }
+    };
 
-        // code: unit // index: 1
-        external_aad.Add(CBORObject.FromObject(getCodeValue(message)));
+    /**
+     * Writes the AAD of the AEAD algorithm. It is the COSE Enc_structure of a
+     * COSE_Encrypt0 without protected header, with the external_aad:
+     *   [ "Encrypt0", h'', external_aad ]
+     *   external_aad = bstr .cbor [ ver : uint, code : uint, options : bstr,
+     *                               alg : int, request_kid : bstr, request_seq : bstr ]
+     * The CBOR is written directly into a buffer of the thread, which gives the
+     * same bytes as CBORObject and Encrypt0Message. The algorithm is encoded
+     * once per context (see CommonContext.getEncodedAlgorithm).
+     * @param kid the request kid
+     * @param sequenceNumber the request sequence number (Partial IV), as received
+     * @param integrityProtectedSet the Class I options, null if there are none
+     * @return the writer of the thread, the AAD is from 0 to size of its buffer.
+     * It is valid until the thread writes the next AAD.
+     */
+    static CborWriter writeAAD(Message message, CommonContext securityContext,
+                               byte[] kid, byte[] sequenceNumber, OptionSet integrityProtectedSet) {
+        CborWriter writer = writeAADHead(message, securityContext, kid, sequenceNumber.length, integrityProtectedSet);
+        // request_seq: bstr // index: 5
+        writer.writeByteString(sequenceNumber);
+        return writer;
+    }
 
-        // options: bstr // index: 2
-        byte[] encodedOptions = encodeOptionSet(integrityProtectedSet);
-        external_aad.Add(CBORObject.FromObject(encodedOptions));
+    /**
+     * Same as writeAAD with the byte form of the sequence number, but the
+     * Partial IV is written from the number, without an array.
+     * @param sequenceNumber the request sequence number, not negative
+     */
+    static CborWriter writeAAD(Message message, CommonContext securityContext,
+                               byte[] kid, long sequenceNumber, OptionSet integrityProtectedSet) {
+        int length = OscoapHelper.getReducedLength(sequenceNumber);
+        CborWriter writer = writeAADHead(message, securityContext, kid, length, integrityProtectedSet);
+        // request_seq: bstr // index: 5, the bytes of getReducedByteArray
+        writer.writeHeader(CborWriter.BYTE_STRING, length);
+        for (int i = 0; i < length; i++) {
+            writer.writeByte((int) (sequenceNumber >> (8 * i)));
+        }
+        return writer;
+    }
 
+    /**
+     * Writes the AAD up to request_seq, which is written by the caller.
+     */
+    private static CborWriter writeAADHead(Message message, CommonContext securityContext,
+                                           byte[] kid, int sequenceNumberLength, OptionSet integrityProtectedSet) {
+        List<Option> options = integrityProtectedSet == null
+                ? Collections.<Option>emptyList() : integrityProtectedSet.asSortedList();
+        int optionsLength = getEncodedLength(options);
+        int code = getCodeValue(message);
+        byte[] algorithm = securityContext.getEncodedAlgorithm();
+
+        int externalAADLength = 1
+                + CborWriter.getHeaderLength(CoAP.VERSION)
+                + CborWriter.getHeaderLength(code)
+                + CborWriter.getHeaderLength(optionsLength) + optionsLength
+                + algorithm.length
+                + CborWriter.getHeaderLength(kid.length) + kid.length
+                + CborWriter.getHeaderLength(sequenceNumberLength) + sequenceNumberLength;
+
+        CborWriter writer = AAD_WRITER.get();
+        writer.reset();
+        writer.writeBytes(ENC_STRUCTURE_PREFIX);
+        writer.writeHeader(CborWriter.BYTE_STRING, externalAADLength);
+
+        writer.writeHeader(CborWriter.ARRAY, 6);
+        // ver: unit // index: 0
+        writer.writeHeader(CborWriter.UNSIGNED_INTEGER, CoAP.VERSION);
+        // code: unit // index: 1
+        writer.writeHeader(CborWriter.UNSIGNED_INTEGER, code);
+        // options: bstr // index: 2
+        writer.writeHeader(CborWriter.BYTE_STRING, optionsLength);
+        writeOptions(writer, options);
         // alg: int // index: 3
-        external_aad.Add(securityContext.getAlgorithm().AsCBOR());
-
+        writer.writeBytes(algorithm);
         // request_kid: bstr // index: 4
-        external_aad.Add(CBORObject.FromObject(kid));
+        writer.writeByteString(kid);
+        return writer;
+    }
 
-        // request_seq: bstr // index: 5
-        external_aad.Add(CBORObject.FromObject(sequenceNumber));
-
-        boolean debug = false;
-        if (debug) {
-            System.out.println("External Additional Authenticated Data:");
-            System.out.println("External AAD; Code Value: " + getCodeValue(message));
-            System.out.println("External AAD; integrityProtectedSet: " + printHexBinary(encodedOptions));
-            System.out.println("External AAD; integrityProtectedSet: " + integrityProtectedSet.toString());
-            System.out.println("External AAD; Algorithm: " + securityContext.getAlgorithm().name());
-            System.out.println("External AAD; kid: " + printHexBinary(kid));
+    /**
+     * @return length of the options, encoded like in a CoAP message
+     */
+    private static int getEncodedLength(List<Option> options) {
+        int length = 0;
+        int lastOptionNumber = 0;
+        for (Option option : options) {
+            int optionDelta = option.getNumber() - lastOptionNumber;
+            int optionLength = option.getLength();
+            length += 1 + getExtendedLength(optionDelta) + getExtendedLength(optionLength) + optionLength;
+            lastOptionNumber = option.getNumber();
         }
+        return length;
+    }
 
-        return external_aad;
+    static int getExtendedLength(int optionValue) {
+        int nibble = getOptionNibble(optionValue);
+        return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+    }
+
+    /**
+     * The options in the CoAP option format, written into the writer
+     * (like the DataSerializer of Californium).
+     */
+    private static void writeOptions(CborWriter writer, List<Option> options) {
+        int lastOptionNumber = 0;
+        for (Option option : options) {
+            int optionDelta = option.getNumber() - lastOptionNumber;
+            int optionDeltaNibble = getOptionNibble(optionDelta);
+            int optionLength = option.getLength();
+            int optionLengthNibble = getOptionNibble(optionLength);
+            writer.writeByte(optionDeltaNibble << OPTION_LENGTH_BITS | optionLengthNibble);
+
+            if (optionDeltaNibble == 13) {
+                writer.writeByte(optionDelta - 13);
+            } else if (optionDeltaNibble == 14) {
+                writer.writeByte((optionDelta - 269) >> 8);
+                writer.writeByte(optionDelta - 269);
+            }
+            if (optionLengthNibble == 13) {
+                writer.writeByte(optionLength - 13);
+            } else if (optionLengthNibble == 14) {
+                writer.writeByte((optionLength - 269) >> 8);
+                writer.writeByte(optionLength - 269);
+            }
+            writer.writeBytes(option.getValue());
+            lastOptionNumber = option.getNumber();
+        }
     }
 
     private static int getCodeValue(Message message) {
@@ -139,6 +198,13 @@ public class OscoapSerializer {
         }
     }
 
+    /**
+     * For Responses, the most significant bit of the first byte of the context IV
+     * is flipped for security proposes. The contexts do this once, see
+     * SenderContext.getSenderResponseIV and RecipientContext.getRecipientResponseIV.
+     * @param contextIV is changed
+     * @return contextIV
+     */
     static byte[] flipContextIVForResponses(byte[] contextIV) {
         if (contextIV.length > 0) {
             contextIV[0] = (byte) (contextIV[0] ^ (1 << 7));
@@ -146,43 +212,56 @@ public class OscoapSerializer {
         return contextIV;
     }
 
-    static Encrypt0Message getCoseEncrypt0(
-            CommonContext securityContext, byte[] sequenceNumber, byte[] endpointID, byte[] endpointIV, boolean isRequest, boolean isObserve) throws CoseException {
-
-        // For Responses, flip the most significant bit of the least significant byte
-        // of the contextIV for security proposes
-        byte[] contextIV = new byte[endpointIV.length];
-        System.arraycopy(endpointIV, 0, contextIV, 0, endpointIV.length);
-        if (!isRequest && !isObserve) { // => "normal" response
-            contextIV = OscoapSerializer.flipContextIVForResponses(contextIV);
+    // the nonce of a thread, one array for each length of the context IV
+    private static final ThreadLocal<byte[][]> NONCE_BUFFERS = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[16][];
         }
+    };
 
-        Encrypt0Message encryptMessage = new Encrypt0Message();
-
-        if (isRequest || isObserve) {
-            encryptMessage.addAttribute(HeaderKeys.PARTIAL_IV, CBORObject.FromObject(sequenceNumber), Attribute.UNPROTECTED);
+    /**
+     * @param length length of the context IV
+     * @return an array of the thread for writeNonce. It is valid until the
+     * thread writes the next nonce of this length.
+     */
+    static byte[] getNonceBuffer(int length) {
+        byte[][] buffers = NONCE_BUFFERS.get();
+        if (length >= buffers.length) {
+            return new byte[length];
         }
-        if (isRequest) {
-            encryptMessage.addAttribute(HeaderKeys.KID, CBORObject.FromObject(endpointID), Attribute.UNPROTECTED);
+        byte[] buffer = buffers[length];
+        if (buffer == null) {
+            buffer = new byte[length];
+            buffers[length] = buffer;
         }
+        return buffer;
+    }
 
-        AlgorithmID alg = securityContext.getAlgorithm();
-        encryptMessage.addAttribute(HeaderKeys.Algorithm, alg.AsCBOR(), Attribute.DO_NOT_SEND);
-
-        // Make the IV by XORing sequence number and contextIV
-        // Pad the sequenceNumber (partialIV) with zeros to the length of the contextIV
-        // to make XORing possible
-        byte[] sequenceNumberBytes = ByteBuffer.allocate(contextIV.length).put(sequenceNumber).array();
-        byte[] iv = new byte[contextIV.length];
-
-        // Do the XORing
-        for (int byteIndex = 0; byteIndex < contextIV.length; byteIndex++) {
-            iv[byteIndex] = (byte) (sequenceNumberBytes[byteIndex] ^ contextIV[byteIndex]);
+    /**
+     * Makes the nonce by XORing sequence number and context IV. The sequence
+     * number (partialIV) is XORed like its bytes of getReducedByteArray, padded
+     * with zeros to the length of the context IV.
+     * @param contextIV sender or recipient IV, for normal responses the response IV
+     *                  of the context. Is not changed
+     * @param sequenceNumber the Partial IV as number
+     * @param nonce has the length of the context IV, is overwritten
+     * @return nonce
+     */
+    static byte[] writeNonce(byte[] contextIV, long sequenceNumber, byte[] nonce) {
+        System.arraycopy(contextIV, 0, nonce, 0, nonce.length);
+        for (int byteIndex = 0; sequenceNumber != 0 && byteIndex < nonce.length; byteIndex++) {
+            nonce[byteIndex] ^= (byte) sequenceNumber;
+            sequenceNumber >>>= 8;
         }
+        return nonce;
+    }
 
-        encryptMessage.addAttribute(HeaderKeys.IV, iv, Attribute.DO_NOT_SEND);
-
-        return encryptMessage;
+    /**
+     * Same as getLeastSignificantBytes(getReducedByteArray(sequenceNumber))
+     */
+    static int getLeastSignificantBytes(long sequenceNumber) {
+        return (int) (sequenceNumber & 0xFFFFFF);
     }
 
     static int getLeastSignificantBytes(byte[] source) {
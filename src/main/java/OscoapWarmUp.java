@@ -0,0 +1,144 @@
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warm-up of an OscoapEndpoint before its socket is opened. After a restart
+ * the first messages would pay the class loading, the cipher initialization
+ * and the interpreted code until the JIT has compiled the hot paths.
+ *
+ * The ciphers of all registered contexts are created (see CommonContext.warmUp),
+ * and synthetic requests and responses are written, parsed and
+ * decrypted like in the endpoint, for each algorithm of the contexts.
+ * The synthetic messages use two temporary contexts with random IDs for
+ * addresses of TEST-NET-1 (RFC 5737), which are removed afterwards.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class OscoapWarmUp {
+
+    private final static Logger LOGGER = Logger.getLogger(OscoapWarmUp.class.getCanonicalName());
+
+    private static final int PORT = 5683;
+    private static final int PAYLOAD_LENGTH = 32;
+
+    private OscoapWarmUp() {
+    }
+
+    /**
+     * @param provider the AEAD provider of the endpoint
+     * @param messages number of requests and responses per algorithm
+     */
+    static void run(AeadProvider provider, int messages) {
+        long start = System.nanoTime();
+        SecurityContextManager manager = SecurityContextManager.getInstance();
+        int contexts = manager.warmUpContexts(provider);
+
+        Set<AeadAlgorithm> algorithms = EnumSet.noneOf(AeadAlgorithm.class);
+        for (CommonContext context : manager.getSecurityContexts()) {
+            algorithms.add(context.getAeadAlgorithm());
+        }
+        if (algorithms.isEmpty()) {
+            algorithms.add(AeadAlgorithm.AES_CCM_64_64_128);
+        }
+
+        for (AeadAlgorithm algorithm : algorithms) {
+            try {
+                exchange(provider, algorithm, messages);
+            } catch (OscoapException | RuntimeException e) {
+                // the endpoint works without warm-up
+                LOGGER.log(Level.WARNING, "Warm-up with " + algorithm + " failed: " + e.getMessage(), e);
+            }
+        }
+        LOGGER.config("Warm-up of " + contexts + " contexts and " + messages + " messages for " + algorithms
+                + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private static void exchange(AeadProvider provider, AeadAlgorithm algorithm, int messages) throws OscoapException {
+        InetAddress client = testAddress(2);
+        InetAddress server = testAddress(1);
+
+        SecureRandom random = new SecureRandom();
+        byte[] masterSecret = new byte[16];
+        byte[] clientID = new byte[8];
+        byte[] serverID = new byte[8];
+        random.nextBytes(masterSecret);
+        random.nextBytes(clientID);
+        random.nextBytes(serverID);
+
+        SecurityContextFactory factory = new SecurityContextFactory();
+        CommonContext clientContext = factory.createContext(algorithm, masterSecret, null,
+                clientID, serverID, server.getHostAddress());
+        CommonContext serverContext = factory.createContext(algorithm, masterSecret, null,
+                serverID, clientID, client.getHostAddress());
+        SecurityContextManager manager = SecurityContextManager.getInstance();
+        manager.addSecurityContext(clientContext);
+        manager.addSecurityContext(serverContext);
+
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        try {
+            for (int i = 0; i < messages; i++) {
+                byte[] token = {(byte) (i >> 16), (byte) (i >> 8), (byte) i};
+
+                Request request = Request.newPost();
+                request.setURI("coap://" + server.getHostAddress() + "/warm-up");
+                request.setDestination(server);
+                request.setDestinationPort(PORT);
+                request.setType(CoAP.Type.CON);
+                request.setMID(i & 0xFFFF);
+                request.setToken(token);
+                request.setPayload(payload);
+                byte[] datagram = new OscoapComposer(provider).writeRequest(request);
+
+                int kid = KidFilter.findKid(datagram);
+                if (kid < 0 || manager.isUnknownRecipientID(datagram, kid, datagram[kid - 1] & 0xFF)) {
+                    throw new IllegalStateException("Kid of the synthetic request not found");
+                }
+                ProtectedDatagramReader reader = new ProtectedDatagramReader(datagram);
+                Request received = (Request) reader.read();
+                received.setSource(client);
+                received.setSourcePort(PORT);
+                received = new OscoapParser(provider).parseRequest(received, reader);
+
+                Response response = new Response(CoAP.ResponseCode.CONTENT);
+                response.setDestination(client);
+                response.setDestinationPort(PORT);
+                response.setType(CoAP.Type.ACK);
+                response.setMID(received.getMID());
+                response.setToken(received.getToken());
+                response.setPayload(payload);
+                datagram = new OscoapComposer(provider).writeResponse(response);
+
+                reader = new ProtectedDatagramReader(datagram);
+                Response receivedResponse = (Response) reader.read();
+                receivedResponse.setSource(server);
+                receivedResponse.setSourcePort(PORT);
+                receivedResponse = new OscoapParser(provider).parseResponse(receivedResponse, reader);
+                if (!Arrays.equals(payload, receivedResponse.getPayload())) {
+                    throw new IllegalStateException("Synthetic response not decrypted");
+                }
+            }
+        } finally {
+            manager.removeSecurityContext(clientContext);
+            manager.removeSecurityContext(serverContext);
+        }
+    }
+
+    private static InetAddress testAddress(int host) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, (byte) host});
+        } catch (UnknownHostException e) {
+            // not thrown for an address of 4 bytes
+            throw new IllegalStateException(e);
+        }
+    }
+}
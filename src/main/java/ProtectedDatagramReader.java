@@ -0,0 +1,153 @@
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.Arrays;
+
+/**
+ * Reads a protected request or response from its UDP datagram, the counterpart
+ * of the ProtectedDatagramWriter. Only the header, the token and the Class U
+ * options are parsed into a message. The compressed COSE stays in the datagram,
+ * so the OscoapParser decrypts it in place and reads the Class E options and
+ * the payload from the plaintext (see OscoapParser.parseRequest).
+ *
+ * Only datagrams in the form of the ProtectedDatagramWriter are read here.
+ * For everything else, e.g. unprotected or malformed messages, read returns
+ * null and the datagram is parsed by the DataParser as before.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class ProtectedDatagramReader {
+
+    private final byte[] datagram;
+
+    private int coseOffset = -1;
+    private int coseLength;
+
+    /**
+     * @param datagram the raw CoAP message, it is decrypted in place by the OscoapParser
+     */
+    ProtectedDatagramReader(byte[] datagram) {
+        this.datagram = datagram;
+    }
+
+    /**
+     * @return the request or response with the Class U options, but without
+     * Object-Security and payload. null if the datagram is not a protected
+     * request or response, which can be read here
+     */
+    Message read() {
+        if (datagram.length < 4) {
+            return null;
+        }
+        int first = datagram[0] & 0xFF;
+        int tokenLength = first & 0x0F;
+        int code = datagram[1] & 0xFF;
+        if (first >>> 6 != CoAP.VERSION || tokenLength > 8 || 4 + tokenLength > datagram.length) {
+            return null;
+        }
+
+        // class 0 without empty messages, or class 2 to 5
+        int codeClass = code >>> 5;
+        Message message;
+        try {
+            if (codeClass == 0 && code != 0) {
+                message = new Request(CoAP.Code.valueOf(code));
+            } else if (codeClass >= 2 && codeClass <= 5) {
+                message = new Response(CoAP.ResponseCode.valueOf(code));
+            } else {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            // unknown code
+            return null;
+        }
+        message.setType(CoAP.Type.valueOf(first >>> 4 & 0x03));
+        message.setMID((datagram[2] & 0xFF) << 8 | datagram[3] & 0xFF);
+        message.setToken(Arrays.copyOfRange(datagram, 4, 4 + tokenLength));
+
+        int index = 4 + tokenLength;
+        int optionNumber = 0;
+        while (index < datagram.length) {
+            int nextByte = datagram[index++] & 0xFF;
+            if (nextByte == 0xFF) {
+                if (index == datagram.length || coseOffset < 0 || coseLength > 0) {
+                    // empty payload, not protected, or COSE in option and payload
+                    return null;
+                }
+                coseOffset = index;
+                coseLength = datagram.length - index;
+                break;
+            }
+            int delta = nextByte >>> 4;
+            int length = nextByte & 0x0F;
+            if (delta == 15 || length == 15
+                    || index + extensionLength(delta) + extensionLength(length) > datagram.length) {
+                return null;
+            }
+            int deltaIndex = index;
+            index += extensionLength(delta);
+            delta = readExtended(deltaIndex, delta);
+            int lengthIndex = index;
+            index += extensionLength(length);
+            length = readExtended(lengthIndex, length);
+            if (index + length > datagram.length) {
+                return null;
+            }
+            optionNumber += delta;
+            if (optionNumber == OscoapEndpoint.OSCOAP_OPTION_NUMBER) {
+                if (coseOffset >= 0) {
+                    // repeated
+                    return null;
+                }
+                coseOffset = index;
+                coseLength = length;
+            } else if (OptionClass.isOuter(optionNumber)) {
+                try {
+                    message.getOptions().addOption(new Option(optionNumber, Arrays.copyOfRange(datagram, index, index + length)));
+                } catch (IllegalArgumentException e) {
+                    // e.g. a Uri-Port with more than 2 bytes
+                    return null;
+                }
+            } else {
+                // Class E options belong into the plaintext
+                return null;
+            }
+            index += length;
+        }
+        if (coseOffset < 0 || coseLength == 0) {
+            return null;
+        }
+        return message;
+    }
+
+    byte[] getDatagram() {
+        return datagram;
+    }
+
+    /**
+     * @return offset of the compressed COSE in the datagram, after read
+     */
+    int getCoseOffset() {
+        return coseOffset;
+    }
+
+    int getCoseLength() {
+        return coseLength;
+    }
+
+    private static int extensionLength(int nibble) {
+        return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+    }
+
+    private int readExtended(int index, int nibble) {
+        if (nibble == 13) {
+            return (datagram[index] & 0xFF) + 13;
+        } else if (nibble == 14) {
+            return ((datagram[index] & 0xFF) << 8 | datagram[index + 1] & 0xFF) + 269;
+        }
+        return nibble;
+    }
+}
@@ -0,0 +1,371 @@
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
+
+/**
+ * Writes a protected message straight into its UDP datagram. The options of
+ * the unprotected message are split into outer (Class U and I) and inner
+ * (Class E) options in one pass by the OptionClass table, the sizes are
+ * computed first, and then the datagram is written into one array of the
+ * exact size:
+ *   header | token | Class U options | Object-Security | [0xFF] compressed COSE
+ * The plaintext (Class E options, payload) is written where the ciphertext
+ * belongs and encrypted in place, so there is no protected copy of the message,
+ * no plaintext and no ciphertext array. For the protected view of a message,
+ * writeCose writes only the compressed COSE in the same way.
+ *
+ * A Proxy-Uri is split into the outer Proxy-Uri with scheme, host and port,
+ * and inner Uri-Path and Uri-Query options with the path and the query.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class ProtectedDatagramWriter {
+
+    private final static Logger LOGGER = Logger.getLogger(ProtectedDatagramWriter.class.getCanonicalName());
+
+    private static final Comparator<Option> BY_NUMBER = new Comparator<Option>() {
+        public int compare(Option first, Option second) {
+            return first.getNumber() - second.getNumber();
+        }
+    };
+
+    private final Message message;
+
+    // sorted by number
+    private final List<Option> outerOptions = new ArrayList<Option>();
+    private final List<Option> innerOptions = new ArrayList<Option>();
+    // the Class I options, null if there are none
+    private OptionSet integrityProtectedSet;
+
+    // encoded length of the outer options, without Object-Security
+    private int outerLength;
+    // Object-Security is written before the outer option with this index
+    private int objectSecurityIndex;
+    private int objectSecurityDelta;
+    // encoded length of the inner options
+    private int innerLength;
+
+    ProtectedDatagramWriter(Message message) {
+        this.message = message;
+
+        boolean sorted = true;
+        for (Option option : message.getOptions().asSortedList()) {
+            int number = option.getNumber();
+            switch (OptionClass.get(number)) {
+                case I:
+                    if (integrityProtectedSet == null) {
+                        integrityProtectedSet = new OptionSet();
+                    }
+                    integrityProtectedSet.addOption(option);
+                    outerOptions.add(option);
+                    break;
+                case U:
+                    if (number == OptionNumberRegistry.PROXY_URI) {
+                        sorted &= splitProxyUri(option);
+                    } else {
+                        outerOptions.add(option);
+                    }
+                    break;
+                default:
+                    innerOptions.add(option);
+            }
+        }
+        if (!sorted) {
+            // Uri-Path and Uri-Query of the Proxy-Uri
+            Collections.sort(innerOptions, BY_NUMBER);
+        }
+
+        // the outer options are sorted together with Object-Security
+        int lastNumber = 0;
+        objectSecurityIndex = outerOptions.size();
+        for (int i = 0; i < outerOptions.size(); i++) {
+            Option option = outerOptions.get(i);
+            if (option.getNumber() > OscoapEndpoint.OSCOAP_OPTION_NUMBER && objectSecurityIndex == outerOptions.size()) {
+                objectSecurityIndex = i;
+                objectSecurityDelta = OscoapEndpoint.OSCOAP_OPTION_NUMBER - lastNumber;
+                lastNumber = OscoapEndpoint.OSCOAP_OPTION_NUMBER;
+            }
+            outerLength += getEncodedLength(option.getNumber() - lastNumber, option.getLength());
+            lastNumber = option.getNumber();
+        }
+        if (objectSecurityIndex == outerOptions.size()) {
+            objectSecurityDelta = OscoapEndpoint.OSCOAP_OPTION_NUMBER - lastNumber;
+        }
+        lastNumber = 0;
+        for (Option option : innerOptions) {
+            innerLength += getEncodedLength(option.getNumber() - lastNumber, option.getLength());
+            lastNumber = option.getNumber();
+        }
+    }
+
+    /**
+     * @return the outer options of the protected message, without Object-Security
+     */
+    List<Option> getOuterOptions() {
+        return outerOptions;
+    }
+
+    /**
+     * @return the Class I options for the AAD, null if there are none
+     */
+    OptionSet getIntegrityProtectedOptions() {
+        return integrityProtectedSet;
+    }
+
+    /**
+     * Writes the datagram and encrypts the plaintext in it.
+     * @param partialIV the Partial IV of the compressed COSE, -1 if absent
+     * @param kid the kid of the compressed COSE, null if absent
+     * @param engine the engine of the sender context
+     * @param nonce the nonce of the message
+     * @param aad the AAD of the message
+     * @return the datagram
+     */
+    byte[] write(long partialIV, byte[] kid, AeadEngine engine, byte[] nonce, CborWriter aad) {
+        int payloadLength = message.getPayloadSize();
+        int plaintextLength = getPlaintextLength();
+        int partialIVLength = getPartialIVLength(partialIV);
+        int coseLength = getCoseLength(partialIVLength, kid, plaintextLength, engine);
+
+        // with payload, the COSE is the payload and the option is empty
+        int optionValueLength = payloadLength > 0 ? 0 : coseLength;
+        byte[] token = message.getToken();
+
+        // the COSE follows the option header, or the payload marker
+        int length = 4 + token.length + outerLength
+                + getHeaderLength(objectSecurityDelta, optionValueLength)
+                + (payloadLength > 0 ? 1 : 0) + coseLength;
+        byte[] datagram = new byte[length];
+
+        // header, OscoapComposer.compose may be called before the type is set
+        int type = message.getType() == null ? 0 : message.getType().value;
+        datagram[0] = (byte) (CoAP.VERSION << 6 | type << 4 | token.length);
+        datagram[1] = (byte) getCode(message);
+        datagram[2] = (byte) (message.getMID() >> 8);
+        datagram[3] = (byte) message.getMID();
+        System.arraycopy(token, 0, datagram, 4, token.length);
+        int index = 4 + token.length;
+
+        // outer options and Object-Security
+        int lastNumber = 0;
+        for (int i = 0; i <= outerOptions.size(); i++) {
+            if (i == objectSecurityIndex) {
+                index = writeOptionHeader(datagram, index, objectSecurityDelta, optionValueLength);
+                if (payloadLength == 0) {
+                    index = writeCose(datagram, index, partialIV, partialIVLength, kid, plaintextLength, engine, nonce, aad);
+                }
+                lastNumber = OscoapEndpoint.OSCOAP_OPTION_NUMBER;
+            }
+            if (i < outerOptions.size()) {
+                Option option = outerOptions.get(i);
+                index = writeOption(datagram, index, option.getNumber() - lastNumber, option.getValue(), option.getLength());
+                lastNumber = option.getNumber();
+            }
+        }
+        if (payloadLength > 0) {
+            datagram[index++] = PAYLOAD_MARKER;
+            writeCose(datagram, index, partialIV, partialIVLength, kid, plaintextLength, engine, nonce, aad);
+        }
+        return datagram;
+    }
+
+    /**
+     * Writes only the compressed COSE into an array of its exact size, for the
+     * protected view of OscoapComposer.compose. The parameters are the ones of write.
+     * @return the compressed COSE
+     */
+    byte[] writeCose(long partialIV, byte[] kid, AeadEngine engine, byte[] nonce, CborWriter aad) {
+        int plaintextLength = getPlaintextLength();
+        int partialIVLength = getPartialIVLength(partialIV);
+        byte[] cose = new byte[getCoseLength(partialIVLength, kid, plaintextLength, engine)];
+        writeCose(cose, 0, partialIV, partialIVLength, kid, plaintextLength, engine, nonce, aad);
+        return cose;
+    }
+
+    private int getPlaintextLength() {
+        int payloadLength = message.getPayloadSize();
+        return innerLength + (payloadLength > 0 ? 1 + payloadLength : 0);
+    }
+
+    private static int getPartialIVLength(long partialIV) {
+        return partialIV < 0 ? 0 : OscoapHelper.getReducedLength(partialIV);
+    }
+
+    private static int getCoseLength(int partialIVLength, byte[] kid, int plaintextLength, AeadEngine engine) {
+        return 1 + partialIVLength + (kid != null ? 1 + kid.length : 0) + plaintextLength + engine.getTagLength();
+    }
+
+    /**
+     * Writes the compressed COSE: flags, Partial IV, kid and the plaintext,
+     * which is encrypted in place.
+     * @return index after the tag
+     */
+    private int writeCose(byte[] datagram, int index, long partialIV, int partialIVLength, byte[] kid,
+                          int plaintextLength, AeadEngine engine, byte[] nonce, CborWriter aad) {
+        datagram[index++] = (byte) (partialIVLength | (kid != null ? 8 : 0));
+        for (int i = 0; i < partialIVLength; i++) {
+            datagram[index++] = (byte) (partialIV >> (8 * i));
+        }
+        if (kid != null) {
+            datagram[index++] = (byte) kid.length;
+            System.arraycopy(kid, 0, datagram, index, kid.length);
+            index += kid.length;
+        }
+
+        // plaintext, encrypted in place
+        int plaintextOffset = index;
+        int lastNumber = 0;
+        for (Option option : innerOptions) {
+            index = writeOption(datagram, index, option.getNumber() - lastNumber, option.getValue(), option.getLength());
+            lastNumber = option.getNumber();
+        }
+        int payloadLength = message.getPayloadSize();
+        if (payloadLength > 0) {
+            datagram[index++] = PAYLOAD_MARKER;
+            System.arraycopy(message.getPayload(), 0, datagram, index, payloadLength);
+        }
+        return plaintextOffset + engine.encrypt(nonce, aad.getBuffer(), 0, aad.size(),
+                datagram, plaintextOffset, plaintextLength, datagram, plaintextOffset);
+    }
+
+    /**
+     * Splits the Proxy-Uri into
+     * - Proxy-Uri   Class U, with scheme, host and port
+     * - Uri-Path    Class E
+     * - Uri-Query   Class E
+     * A malformed Proxy-Uri is removed, but the message is sent.
+     * @return true, if the inner options are still sorted
+     */
+    private boolean splitProxyUri(Option option) {
+        String uri = option.getStringValue();
+        int authority = uri.indexOf("://");
+        if (authority < 0) {
+            // no host, so there is nothing to split
+            outerOptions.add(option);
+            return true;
+        }
+        int end = uri.indexOf('#', authority + 3);
+        if (end < 0) {
+            end = uri.length();
+        }
+        int queryStart = uri.indexOf('?', authority + 3);
+        if (queryStart < 0 || queryStart > end) {
+            queryStart = end;
+        }
+        int pathStart = uri.indexOf('/', authority + 3);
+        if (pathStart < 0 || pathStart > queryStart) {
+            pathStart = queryStart;
+        }
+
+        OptionSet split = new OptionSet();
+        try {
+            if (pathStart < queryStart) {
+                split.setUriPath(decode(uri.substring(pathStart, queryStart)));
+            }
+            if (queryStart < end) {
+                split.setUriQuery(decode(uri.substring(queryStart + 1, end)));
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Message contains malformed ProxyUri. It will be removed from Options, but Message will be send");
+            return true;
+        }
+        outerOptions.add(new Option(OptionNumberRegistry.PROXY_URI, uri.substring(0, pathStart)));
+        List<Option> splitOptions = split.asSortedList();
+        innerOptions.addAll(splitOptions);
+        return splitOptions.isEmpty();
+    }
+
+    /**
+     * Decodes the percent-encoded octets of a path or query, as UTF-8.
+     * @throws IllegalArgumentException for a malformed escape
+     */
+    private static String decode(String encoded) {
+        int index = encoded.indexOf('%');
+        if (index < 0) {
+            return encoded;
+        }
+        StringBuilder decoded = new StringBuilder(encoded.length());
+        decoded.append(encoded, 0, index);
+        byte[] octets = BufferPool.acquire(encoded.length() / 3);
+        try {
+            while (index < encoded.length()) {
+                char c = encoded.charAt(index);
+                if (c != '%') {
+                    decoded.append(c);
+                    index++;
+                    continue;
+                }
+                // consecutive escapes are one UTF-8 sequence
+                int count = 0;
+                while (index < encoded.length() && encoded.charAt(index) == '%') {
+                    if (index + 2 >= encoded.length()) {
+                        throw new IllegalArgumentException("Malformed escape in " + encoded);
+                    }
+                    int high = Character.digit(encoded.charAt(index + 1), 16);
+                    int low = Character.digit(encoded.charAt(index + 2), 16);
+                    if (high < 0 || low < 0) {
+                        throw new IllegalArgumentException("Malformed escape in " + encoded);
+                    }
+                    octets[count++] = (byte) (high << 4 | low);
+                    index += 3;
+                }
+                decoded.append(new String(octets, 0, count, StandardCharsets.UTF_8));
+            }
+        } finally {
+            BufferPool.release(octets);
+        }
+        return decoded.toString();
+    }
+
+    private static int getEncodedLength(int delta, int length) {
+        return getHeaderLength(delta, length) + length;
+    }
+
+    private static int getHeaderLength(int delta, int length) {
+        return 1 + OscoapSerializer.getExtendedLength(delta) + OscoapSerializer.getExtendedLength(length);
+    }
+
+    private static int writeOption(byte[] datagram, int index, int delta, byte[] value, int length) {
+        index = writeOptionHeader(datagram, index, delta, length);
+        System.arraycopy(value, 0, datagram, index, length);
+        return index + length;
+    }
+
+    private static int writeOptionHeader(byte[] datagram, int index, int delta, int length) {
+        int deltaNibble = OscoapSerializer.getOptionNibble(delta);
+        int lengthNibble = OscoapSerializer.getOptionNibble(length);
+        datagram[index++] = (byte) (deltaNibble << 4 | lengthNibble);
+        index = writeExtended(datagram, index, deltaNibble, delta);
+        return writeExtended(datagram, index, lengthNibble, length);
+    }
+
+    private static int writeExtended(byte[] datagram, int index, int nibble, int value) {
+        if (nibble == 13) {
+            datagram[index++] = (byte) (value - 13);
+        } else if (nibble == 14) {
+            datagram[index++] = (byte) ((value - 269) >> 8);
+            datagram[index++] = (byte) (value - 269);
+        }
+        return index;
+    }
+
+    private static int getCode(Message message) {
+        if (message instanceof Request) {
+            return ((Request) message).getCode().value;
+        }
+        return ((Response) message).getCode().value;
+    }
+}
@@ -0,0 +1,225 @@
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+
+import java.net.InetAddress;
+import java.security.Principal;
+import java.util.List;
+
+/**
+ * Protected view of a request, returned by OscoapComposer.composeRequest.
+ * The header fields, the token, the addresses and the flags are read from
+ * and written to the original. Only the options and the payload belong to
+ * the view, they are never written back, so the original stays unchanged
+ * in the Exchange for Blockwise and Observe.
+ *
+ * Message observers and the response are not taken over, Californium
+ * notifies them on the original.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class ProtectedRequest extends Request {
+
+    private final Request original;
+
+    /**
+     * @param original the unprotected request
+     * @param outerOptions the Class U and I options, without the Object-Security option
+     * @param payload the payload of the protected request
+     */
+    ProtectedRequest(Request original, List<Option> outerOptions, byte[] payload) {
+        super(original.getCode(), original.getType());
+        this.original = original;
+
+        OptionSet options = getOptions();
+        for (Option option : outerOptions) {
+            options.addOption(option);
+        }
+        setPayload(payload);
+    }
+
+    /**
+     * @return the unprotected request, which is not changed by the composer
+     */
+    Request getOriginal() {
+        return original;
+    }
+
+    @Override
+    public CoAP.Type getType() {
+        return original.getType();
+    }
+
+    @Override
+    public Message setType(CoAP.Type type) {
+        original.setType(type);
+        return this;
+    }
+
+    @Override
+    public int getMID() {
+        return original.getMID();
+    }
+
+    @Override
+    public boolean hasMID() {
+        return original.hasMID();
+    }
+
+    @Override
+    public Message setMID(int mid) {
+        original.setMID(mid);
+        return this;
+    }
+
+    @Override
+    public byte[] getToken() {
+        return original.getToken();
+    }
+
+    @Override
+    public boolean hasEmptyToken() {
+        return original.hasEmptyToken();
+    }
+
+    @Override
+    public Message setToken(byte[] token) {
+        original.setToken(token);
+        return this;
+    }
+
+    @Override
+    public InetAddress getDestination() {
+        return original.getDestination();
+    }
+
+    @Override
+    public Message setDestination(InetAddress destination) {
+        original.setDestination(destination);
+        return this;
+    }
+
+    @Override
+    public int getDestinationPort() {
+        return original.getDestinationPort();
+    }
+
+    @Override
+    public Message setDestinationPort(int destinationPort) {
+        original.setDestinationPort(destinationPort);
+        return this;
+    }
+
+    @Override
+    public InetAddress getSource() {
+        return original.getSource();
+    }
+
+    @Override
+    public void setSource(InetAddress source) {
+        original.setSource(source);
+    }
+
+    @Override
+    public int getSourcePort() {
+        return original.getSourcePort();
+    }
+
+    @Override
+    public void setSourcePort(int sourcePort) {
+        original.setSourcePort(sourcePort);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return original.getTimestamp();
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+        original.setTimestamp(timestamp);
+    }
+
+    @Override
+    public String getScheme() {
+        return original.getScheme();
+    }
+
+    @Override
+    public void setScheme(String scheme) {
+        original.setScheme(scheme);
+    }
+
+    @Override
+    public boolean isMulticast() {
+        return original.isMulticast();
+    }
+
+    @Override
+    public void setMulticast(boolean multicast) {
+        original.setMulticast(multicast);
+    }
+
+    @Override
+    public Principal getSenderIdentity() {
+        return original.getSenderIdentity();
+    }
+
+    @Override
+    public Request setSenderIdentity(Principal senderIdentity) {
+        original.setSenderIdentity(senderIdentity);
+        return this;
+    }
+
+    @Override
+    public boolean isAcknowledged() {
+        return original.isAcknowledged();
+    }
+
+    @Override
+    public void setAcknowledged(boolean acknowledged) {
+        original.setAcknowledged(acknowledged);
+    }
+
+    @Override
+    public boolean isRejected() {
+        return original.isRejected();
+    }
+
+    @Override
+    public void setRejected(boolean rejected) {
+        original.setRejected(rejected);
+    }
+
+    @Override
+    public boolean isTimedOut() {
+        return original.isTimedOut();
+    }
+
+    @Override
+    public void setTimedOut(boolean timedOut) {
+        original.setTimedOut(timedOut);
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return original.isCanceled();
+    }
+
+    @Override
+    public void setCanceled(boolean canceled) {
+        original.setCanceled(canceled);
+    }
+
+    @Override
+    public boolean isDuplicate() {
+        return original.isDuplicate();
+    }
+
+    @Override
+    public void setDuplicate(boolean duplicate) {
+        original.setDuplicate(duplicate);
+    }
+}
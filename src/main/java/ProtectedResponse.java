@@ -0,0 +1,208 @@
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Protected view of a response, returned by OscoapComposer.composeResponse.
+ * Like the ProtectedRequest, it reads and writes the header fields and the
+ * flags on the original and has its own options and payload.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+final class ProtectedResponse extends Response {
+
+    private final Response original;
+
+    /**
+     * @param original the unprotected response
+     * @param outerOptions the Class U and I options, without the Object-Security option
+     * @param payload the payload of the protected response
+     */
+    ProtectedResponse(Response original, List<Option> outerOptions, byte[] payload) {
+        super(original.getCode());
+        this.original = original;
+
+        OptionSet options = getOptions();
+        for (Option option : outerOptions) {
+            options.addOption(option);
+        }
+        setPayload(payload);
+    }
+
+    /**
+     * @return the unprotected response, which is not changed by the composer
+     */
+    Response getOriginal() {
+        return original;
+    }
+
+    @Override
+    public CoAP.Type getType() {
+        return original.getType();
+    }
+
+    @Override
+    public Message setType(CoAP.Type type) {
+        original.setType(type);
+        return this;
+    }
+
+    @Override
+    public int getMID() {
+        return original.getMID();
+    }
+
+    @Override
+    public boolean hasMID() {
+        return original.hasMID();
+    }
+
+    @Override
+    public Message setMID(int mid) {
+        original.setMID(mid);
+        return this;
+    }
+
+    @Override
+    public byte[] getToken() {
+        return original.getToken();
+    }
+
+    @Override
+    public boolean hasEmptyToken() {
+        return original.hasEmptyToken();
+    }
+
+    @Override
+    public Message setToken(byte[] token) {
+        original.setToken(token);
+        return this;
+    }
+
+    @Override
+    public InetAddress getDestination() {
+        return original.getDestination();
+    }
+
+    @Override
+    public Message setDestination(InetAddress destination) {
+        original.setDestination(destination);
+        return this;
+    }
+
+    @Override
+    public int getDestinationPort() {
+        return original.getDestinationPort();
+    }
+
+    @Override
+    public Message setDestinationPort(int destinationPort) {
+        original.setDestinationPort(destinationPort);
+        return this;
+    }
+
+    @Override
+    public InetAddress getSource() {
+        return original.getSource();
+    }
+
+    @Override
+    public void setSource(InetAddress source) {
+        original.setSource(source);
+    }
+
+    @Override
+    public int getSourcePort() {
+        return original.getSourcePort();
+    }
+
+    @Override
+    public void setSourcePort(int sourcePort) {
+        original.setSourcePort(sourcePort);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return original.getTimestamp();
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+        original.setTimestamp(timestamp);
+    }
+
+    @Override
+    public long getRTT() {
+        return original.getRTT();
+    }
+
+    @Override
+    public void setRTT(long rtt) {
+        original.setRTT(rtt);
+    }
+
+    @Override
+    public boolean isLast() {
+        return original.isLast();
+    }
+
+    @Override
+    public void setLast(boolean last) {
+        original.setLast(last);
+    }
+
+    @Override
+    public boolean isAcknowledged() {
+        return original.isAcknowledged();
+    }
+
+    @Override
+    public void setAcknowledged(boolean acknowledged) {
+        original.setAcknowledged(acknowledged);
+    }
+
+    @Override
+    public boolean isRejected() {
+        return original.isRejected();
+    }
+
+    @Override
+    public void setRejected(boolean rejected) {
+        original.setRejected(rejected);
+    }
+
+    @Override
+    public boolean isTimedOut() {
+        return original.isTimedOut();
+    }
+
+    @Override
+    public void setTimedOut(boolean timedOut) {
+        original.setTimedOut(timedOut);
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return original.isCanceled();
+    }
+
+    @Override
+    public void setCanceled(boolean canceled) {
+        original.setCanceled(canceled);
+    }
+
+    @Override
+    public boolean isDuplicate() {
+        return original.isDuplicate();
+    }
+
+    @Override
+    public void setDuplicate(boolean duplicate) {
+        original.setDuplicate(duplicate);
+    }
+}
@@ -1,25 +1,82 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * Used in CommonContext.
+ * The replay window can be used by several parser threads at once, without a lock.
+ * A parser reserves the sequence number before decryption, and commits it after
+ * the message was authenticated, or releases it if decryption failed. While a
+ * number is reserved, no other thread can reserve it. Only committed numbers
+ * move the window, so a forged message can not push valid ones out of it.
+ *
+ * The window is a ring of words. A word holds the block number (upper 32 bits)
+ * and the bits of 32 sequence numbers of that block (lower 32 bits), so a word
+ * is checked and updated with one CAS. Reserved numbers are held in a small
+ * table of slots, indexed by the lower bits of the number.
  * Created by Luka Dschaak on 23.03.2017.
  */
 public class RecipientContext {
 
+    public static final int DEFAULT_REPLAY_WINDOW_SIZE = 64;
+    public static final int MIN_REPLAY_WINDOW_SIZE = 64;
+    public static final int MAX_REPLAY_WINDOW_SIZE = 4096;
+
+    // a reserve call waits this many times for a slot used by another number
+    private static final int MAX_RESERVE_SPINS = 1000;
+
     private final byte[] recipientID;
     private final byte[] recipientKey; // symmetric key for decryption
     private final byte[] recipientIV;
-    private byte[] maxSequenceNumber;
-    private int slidingReplayWindow;
+    private final byte[] recipientResponseIV; // IV for the nonce of normal responses
+
+    // cipher with the recipient key, created by the first message
+    private volatile AeadEngine engine;
+
+    private final int replayWindowSize; // in bits, multiple of 64
+
+    // highest committed sequence number, -1 = nothing received
+    private final AtomicLong maxSequenceNumber;
+
+    // word (block & windowMask) holds (block >>> windowShift) << 32 | bits of the block.
+    // At least 8 words, so the tag of the highest block (2^35) fits into 32 bits.
+    private final AtomicLongArray slidingReplayWindow;
+    private final int windowMask;
+    private final int windowShift;
+
+    // sequence number + 1 of the reserved numbers, 0 = free
+    private final AtomicLongArray reservations;
+    private final int reservationMask;
 
     RecipientContext(byte[] recipientID, byte[] recipientKey, byte[] recipientIV) {
+        this(recipientID, recipientKey, recipientIV, DEFAULT_REPLAY_WINDOW_SIZE);
+    }
+
+    /**
+     * @param replayWindowSize number of sequence numbers below the highest received one,
+     *                         which are still accepted. Multiple of 64, from 64 to 4096.
+     */
+    RecipientContext(byte[] recipientID, byte[] recipientKey, byte[] recipientIV, int replayWindowSize) {
+        if (replayWindowSize < MIN_REPLAY_WINDOW_SIZE || replayWindowSize > MAX_REPLAY_WINDOW_SIZE
+                || replayWindowSize % 64 != 0) {
+            throw new IllegalArgumentException("Replay window size must be a multiple of 64 from "
+                    + MIN_REPLAY_WINDOW_SIZE + " to " + MAX_REPLAY_WINDOW_SIZE + ": " + replayWindowSize);
+        }
         this.recipientID = recipientID;
         this.recipientKey = recipientKey;
         this.recipientIV = recipientIV;
-        this.maxSequenceNumber = new byte[0];
+        this.recipientResponseIV = OscoapSerializer.flipContextIVForResponses(recipientIV.clone());
+        this.replayWindowSize = replayWindowSize;
+        this.maxSequenceNumber = new AtomicLong(-1);
 
-        // last significant bit = lower edge
-        // most significant bit = upper edge
-        // so updating the sliding window is done with >>
-        this.slidingReplayWindow = 0;
+        // one block more than the window, because the window usually does not start at a block border
+        int words = Math.max(8, nextPowerOfTwo(replayWindowSize / 32 + 1));
+        this.slidingReplayWindow = new AtomicLongArray(words);
+        this.windowMask = words - 1;
+        this.windowShift = Integer.numberOfTrailingZeros(words);
+
+        int slots = Math.max(16, nextPowerOfTwo(2 * Runtime.getRuntime().availableProcessors()));
+        this.reservations = new AtomicLongArray(slots);
+        this.reservationMask = slots - 1;
     }
 
     public byte[] getRecipientID() {
@@ -35,85 +92,189 @@ public class RecipientContext {
     }
 
     /**
-     *
-     * @param sequenceNumber
-     * @return Returns false, if message was already processed or has to low sequence number. true
-     * for the opposites.
+     * @return the recipient IV with the flipped bit of responses, which are no notifications
      */
-    public boolean compareReplayWindow(byte[] sequenceNumber) {
-
-        int upperEdge = OscoapHelper.byteArrayToInt(this.maxSequenceNumber);
-        int seqNumber = OscoapHelper.byteArrayToInt(sequenceNumber);
+    byte[] getRecipientResponseIV() {
+        return recipientResponseIV;
+    }
 
-        if (seqNumber < 0) {
-            return false;
+    /**
+     * @param algorithm the algorithm of the CommonContext
+     * @param provider the AEAD provider of the endpoint
+     * @return the AEAD engine with the recipient key
+     */
+    AeadEngine getEngine(AeadAlgorithm algorithm, AeadProvider provider) {
+        AeadEngine engine = this.engine;
+        if (engine == null || engine.getProvider() != provider) {
+            // two threads may both create one, that does no harm
+            engine = new AeadEngine(provider, algorithm, recipientKey);
+            this.engine = engine;
         }
+        return engine;
+    }
 
-        int lowerEdge = upperEdge - 32 < 0 ? 0 : upperEdge - 32;
+    public int getReplayWindowSize() {
+        return replayWindowSize;
+    }
 
-        if (seqNumber > upperEdge) {
-            return true;
-        } else if (seqNumber < lowerEdge) {
-            return false;
-        } else {
-            // Compare the sequenceNumber with the state of the sliding window
+    /**
+     * @return highest sequence number received so far, -1 if nothing was received
+     */
+    public long getMaxSequenceNumber() {
+        return maxSequenceNumber.get();
+    }
 
-            // check the requested bit position
-            // example: upperEdge = 14223, seqNumber = 14219.
-            // Then bitPosition would be 4.
-            int bitPosition = upperEdge - seqNumber;
+    /**
+     * Only checks the window, does not reserve the number.
+     * @param seqNumber the sequence number of the received message
+     * @return Returns false, if message was already processed or has to low sequence number. true
+     * for the opposites.
+     */
+    public boolean compareReplayWindow(long seqNumber) {
+        if (seqNumber < 0 || seqNumber > SenderContext.MAX_SEQUENCE_NUMBER) {
+            return false;
+        }
+        if (seqNumber <= this.maxSequenceNumber.get() - replayWindowSize) {
+            return false;
+        }
 
-            // create a bit mask from the bitPosition
-            // example: bitePosition = 4. bitMask would be 134.217.728, which is the 27th bit.
-            int bitMask = 1 << (31 - bitPosition);
+        long block = seqNumber >>> 5;
+        long word = this.slidingReplayWindow.get((int) (block & windowMask));
+        long tag = block >>> windowShift;
+        long wordTag = word >>> 32;
+        if (wordTag > tag) {
+            // a newer block uses the word, so this one is out of the window
+            return false;
+        } else if (wordTag < tag) {
+            // nothing of this block was received yet
+            return true;
+        }
+        return (word & bitMask(seqNumber)) == 0;
+    }
 
-            // lets check if the bit is set or not
-            boolean alreadyProcessed = (this.slidingReplayWindow & bitMask) != 0;
+    /**
+     * Reserves the sequence number for the calling thread. Call commitSequenceNumber,
+     * after the message was authenticated, otherwise releaseSequenceNumber.
+     * @param seqNumber the sequence number of the received message
+     * @return false, if the number was already processed, is too low, or is reserved by
+     * another thread
+     */
+    public boolean reserveSequenceNumber(long seqNumber) {
+        if (!compareReplayWindow(seqNumber)) {
+            return false;
+        }
 
-            if (alreadyProcessed) {
+        int slot = (int) (seqNumber & reservationMask);
+        long reserved = seqNumber + 1;
+        int spins = 0;
+        while (true) {
+            long current = this.reservations.get(slot);
+            if (current == reserved) {
+                // the same message is parsed by another thread
+                return false;
+            }
+            if (current == 0) {
+                if (this.reservations.compareAndSet(slot, 0, reserved)) {
+                    break;
+                }
+            } else if (++spins > MAX_RESERVE_SPINS) {
                 return false;
             } else {
-                return true;
+                Thread.yield();
             }
         }
+
+        // check again, the number may have been committed before it was reserved
+        if (!compareReplayWindow(seqNumber)) {
+            this.reservations.compareAndSet(slot, reserved, 0);
+            return false;
+        }
+        return true;
     }
 
-    public void updateReplayWindow(byte[] sequenceNumber) {
+    /**
+     * Marks a reserved sequence number as received and releases the reservation.
+     * @param seqNumber the sequence number of the authenticated message
+     */
+    public void commitSequenceNumber(long seqNumber) {
+        updateReplayWindow(seqNumber);
+        releaseSequenceNumber(seqNumber);
+    }
 
-        int upperEdge = OscoapHelper.byteArrayToInt(this.maxSequenceNumber);
-        int seqNumber = OscoapHelper.byteArrayToInt(sequenceNumber);
+    /**
+     * Releases the reservation, without changing the window.
+     * @param seqNumber the sequence number of the message, which could not be authenticated
+     */
+    public void releaseSequenceNumber(long seqNumber) {
+        int slot = (int) (seqNumber & reservationMask);
+        this.reservations.compareAndSet(slot, seqNumber + 1, 0);
+    }
 
-        if (seqNumber < 0) {
+    /**
+     * Marks the sequence number as received. The window is moved, if the number
+     * is higher than all numbers before. Does not care about reservations.
+     * @param seqNumber the sequence number of the authenticated message
+     */
+    public void updateReplayWindow(long seqNumber) {
+        if (seqNumber < 0 || seqNumber > SenderContext.MAX_SEQUENCE_NUMBER) {
             return;
         }
 
-        int lowerEdge = upperEdge - 32 < 0 ? 0 : upperEdge - 32;
-
-        if (seqNumber > upperEdge) {
-            int bitShifts = seqNumber - upperEdge;
-            this.slidingReplayWindow = this.slidingReplayWindow >>> bitShifts;
-            this.maxSequenceNumber = sequenceNumber;
-
-            // set the highest bit to 1
-            this.slidingReplayWindow = this.slidingReplayWindow | Integer.MIN_VALUE;
-        } else if (seqNumber < lowerEdge) {
-            // should never happen, because of compareReplayWindow
-        } else {
+        // First set the bit. A word of an older block is overwritten, its numbers are
+        // out of the window, as soon as maxSequenceNumber is moved
+        long block = seqNumber >>> 5;
+        int index = (int) (block & windowMask);
+        long tag = block >>> windowShift;
+        long bit = bitMask(seqNumber);
+        while (true) {
+            long word = this.slidingReplayWindow.get(index);
+            long wordTag = word >>> 32;
+            if (wordTag > tag) {
+                // out of the window already
+                break;
+            }
+            long newWord = wordTag == tag ? word | bit : tag << 32 | bit;
+            if (newWord == word || this.slidingReplayWindow.compareAndSet(index, word, newWord)) {
+                break;
+            }
+        }
 
-            // update the sliding window
+        // Then move the upper edge
+        while (true) {
+            long upperEdge = this.maxSequenceNumber.get();
+            if (seqNumber <= upperEdge || this.maxSequenceNumber.compareAndSet(upperEdge, seqNumber)) {
+                break;
+            }
+        }
+    }
 
-            // check the requested bit position
-            // example: upperEdge = 14223, seqNumber = 14219.
-            // Then bitPosition would be 4.
-            int bitPosition = upperEdge - seqNumber;
+    /**
+     * Used when the context is loaded from a ContextStore. All sequence numbers up to
+     * the stored maximum are treated as received, the following ones are accepted.
+     * Must be called before the context is used.
+     * @param maxSequenceNumber highest sequence number received before, -1 for none
+     */
+    void restoreReplayWindow(long maxSequenceNumber) {
+        if (maxSequenceNumber < 0) {
+            return;
+        }
+        long lowest = Math.max(0, maxSequenceNumber - replayWindowSize + 1);
+        for (long block = lowest >>> 5; block <= maxSequenceNumber >>> 5; block++) {
+            long bits = 0xFFFFFFFFL;
+            if (block == maxSequenceNumber >>> 5) {
+                // only the numbers up to the maximum
+                bits = (1L << ((maxSequenceNumber & 31) + 1)) - 1;
+            }
+            this.slidingReplayWindow.set((int) (block & windowMask), (block >>> windowShift) << 32 | bits);
+        }
+        this.maxSequenceNumber.set(maxSequenceNumber);
+    }
 
-            // create a bit mask from the bitPosition
-            // example: bitPosition = 4. bitMask would be 134.217.728, which is the 27th bit.
-            // Integer.toBinaryString(bitMask) = 0000 1000 0000 0000 0000 0000 0000 0000
-            int bitMask = 1 << (31 - bitPosition);
+    private static long bitMask(long seqNumber) {
+        return 1L << (seqNumber & 31);
+    }
 
-            // lets check if the bit is set or not
-            this.slidingReplayWindow = this.slidingReplayWindow | bitMask;
-        }
+    private static int nextPowerOfTwo(int value) {
+        return Integer.highestOneBit(value - 1) << 1;
     }
 }
@@ -0,0 +1,511 @@
+import org.eclipse.californium.core.Utils;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the parameters of outstanding requests (sequence number and kid of the
+ * request) and the security context they belong to. The response to a request
+ * reuses these parameters, and the context of a response is found by them.
+ *
+ * The key is the composite (peer address, peer port, token). So two clients
+ * using the same token do not collide. Tokens have at most 8 bytes, so they are
+ * packed into a long. The table uses open addressing with primitive arrays, so
+ * put, get and remove do not allocate anything.
+ *
+ * The table is split into segments, each one guarded by its own lock, so
+ * several protocol threads can use it at the same time.
+ *
+ * Entries expire after a lifetime (see setLifetime), because responses get lost,
+ * requests are canceled and NON requests may never be answered. Each segment
+ * has a hashed timing wheel: every entry is linked into the bucket of its deadline
+ * tick. So insert and remove stay O(1), and one timer thread sweeps only the
+ * bucket of the current tick.
+ *
+ * The entries of Observe relations are kept for all notifications. Each
+ * notification moves their deadline (see keep), so they expire, when the
+ * relation has ended, e.g. was canceled with a reset.
+ */
+class RequestParameterTable {
+
+    private final static Logger LOGGER = Logger.getLogger(RequestParameterTable.class.getCanonicalName());
+
+    private static final int SEGMENT_COUNT = 32; // power of two
+    private static final int SEGMENT_SHIFT = 27; // 32 - log2(SEGMENT_COUNT)
+    private static final int INITIAL_CAPACITY = 16; // per segment, power of two
+
+    // buckets of the timing wheel. Deadlines further away than WHEEL_SIZE
+    // ticks just stay in their bucket for more than one round
+    private static final int WHEEL_SIZE = 256; // power of two
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    // The lifetime is split into about this many ticks
+    private static final int TICKS_PER_LIFETIME = 128;
+    private static final long MIN_TICK_MILLIS = 10;
+    private static final long MAX_TICK_MILLIS = 1000;
+
+    // deadline of entries, which never expire
+    private static final long NO_DEADLINE = -1;
+
+    // meta values with a special meaning. An occupied slot has
+    // meta = (tokenLength + 1) << 16 | port, which is always > 0
+    private static final int FREE = 0;
+    private static final int DELETED = -1;
+
+    private static final int NIL = -1; // end of a wheel list
+
+    private final Segment[] segments;
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    // Written only by the timer thread
+    private volatile long currentTick = 0;
+
+    // lifetime in ticks, 0 = entries do not expire
+    private volatile long lifetimeTicks = 0;
+    private volatile long tickMillis = 0;
+
+    // lifetime of the entries of Observe relations since the last notification,
+    // 0 = they do not expire
+    private volatile long keptLifetimeMillis = 0;
+
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> sweepTask;
+
+    RequestParameterTable() {
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Sets the time after which entries expire and (re)starts the timer thread.
+     * Entries which are already stored keep their deadline.
+     * @param lifetimeMillis the lifetime in milliseconds, 0 means never expire
+     */
+    synchronized void setLifetime(long lifetimeMillis) {
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+            sweepTask = null;
+        }
+
+        if (lifetimeMillis <= 0) {
+            this.lifetimeTicks = 0;
+            return;
+        }
+
+        long tickMillis = Math.min(MAX_TICK_MILLIS, Math.max(MIN_TICK_MILLIS, lifetimeMillis / TICKS_PER_LIFETIME));
+        // round up, an entry must never expire before its lifetime is over
+        this.tickMillis = tickMillis;
+        this.lifetimeTicks = (lifetimeMillis + tickMillis - 1) / tickMillis;
+
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory());
+        }
+        sweepTask = timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable t) {
+                    LOGGER.log(Level.SEVERE, "Exception while sweeping request parameters: " + t.getMessage(), t);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the time after the last notification, after which the entry of an
+     * Observe relation expires. It is only used, if entries expire (see setLifetime).
+     * @param keptLifetimeMillis the lifetime in milliseconds, 0 means never expire
+     */
+    void setKeptLifetime(long keptLifetimeMillis) {
+        this.keptLifetimeMillis = Math.max(0, keptLifetimeMillis);
+    }
+
+    /**
+     * Advances the wheel by one tick and removes all expired entries.
+     * Only called by the timer thread.
+     */
+    private void tick() {
+        long tick = currentTick + 1;
+        long expired = 0;
+        for (Segment segment : segments) {
+            expired += segment.sweep(tick);
+        }
+        currentTick = tick;
+
+        if (expired > 0) {
+            expiredCount.addAndGet(expired);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Removed " + expired + " expired request parameters");
+            }
+        }
+    }
+
+    /**
+     * @return number of entries removed because their lifetime was over
+     */
+    long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    private long deadline() {
+        long lifetime = lifetimeTicks;
+        if (lifetime == 0) {
+            return NO_DEADLINE;
+        }
+        // +1, because the current tick is already partly over
+        return currentTick + lifetime + 1;
+    }
+
+    private long keptDeadline() {
+        long keptLifetime = keptLifetimeMillis;
+        long tick = tickMillis;
+        if (lifetimeTicks == 0 || keptLifetime == 0) {
+            return NO_DEADLINE;
+        }
+        return currentTick + (keptLifetime + tick - 1) / tick + 1;
+    }
+
+    /**
+     * Stores the parameters of a request. Existing parameters for the same key are replaced.
+     * @param peer address of the other endpoint
+     * @param port port of the other endpoint
+     * @param token token of the request, at most 8 bytes
+     * @param context the security context of the request
+     * @param sequenceNumber sequence number (Partial IV) of the request
+     * @param partialIV Partial IV of the request as received, null for the minimal
+     *                  encoding of the sequence number. Stored by reference, not copied
+     * @param requestID kid of the request. Stored by reference, not copied
+     */
+    void put(InetAddress peer, int port, byte[] token, CommonContext context,
+             long sequenceNumber, byte[] partialIV, byte[] requestID) {
+        long packedToken = packToken(token);
+        int meta = meta(token, port);
+        int hash = hash(peer, packedToken, meta);
+        segmentFor(hash).put(hash, peer, packedToken, meta, context, sequenceNumber, partialIV, requestID, deadline());
+    }
+
+    /**
+     * @return the context of the request, or null if there is no outstanding request
+     * for this key. If params is not null, it is filled with the stored parameters.
+     */
+    CommonContext get(InetAddress peer, int port, byte[] token, OscoapRequestParameter params) {
+        long packedToken = packToken(token);
+        int meta = meta(token, port);
+        int hash = hash(peer, packedToken, meta);
+        return segmentFor(hash).get(hash, peer, packedToken, meta, params, false);
+    }
+
+    /**
+     * Same as get, but the entry is removed.
+     */
+    CommonContext remove(InetAddress peer, int port, byte[] token, OscoapRequestParameter params) {
+        long packedToken = packToken(token);
+        int meta = meta(token, port);
+        int hash = hash(peer, packedToken, meta);
+        return segmentFor(hash).get(hash, peer, packedToken, meta, params, true);
+    }
+
+    /**
+     * The entry gets the lifetime of an Observe relation (see setKeptLifetime),
+     * from now on. Called for every notification, because all notifications
+     * reuse the token of the request.
+     */
+    void keep(InetAddress peer, int port, byte[] token) {
+        long packedToken = packToken(token);
+        int meta = meta(token, port);
+        int hash = hash(peer, packedToken, meta);
+        segmentFor(hash).keep(hash, peer, packedToken, meta, keptDeadline());
+    }
+
+    /**
+     * Removes all entries of the context. Scans the whole table, so only use it
+     * when a context is removed.
+     */
+    void removeAll(CommonContext context) {
+        for (Segment segment : segments) {
+            segment.removeAll(context);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    static long packToken(byte[] token) {
+        if (token.length > 8) {
+            throw new IllegalArgumentException("Token is longer than 8 bytes");
+        }
+        long packed = 0;
+        for (byte b : token) {
+            packed = (packed << 8) | (b & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * The token length is part of the key, because the tokens 0x00 and 0x0000
+     * would be packed to the same long.
+     */
+    private static int meta(byte[] token, int port) {
+        return ((token.length + 1) << 16) | (port & 0xFFFF);
+    }
+
+    private static int hash(InetAddress peer, long packedToken, int meta) {
+        long h = packedToken * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        int hash = (int) h ^ meta * 0x85EBCA6B ^ peer.hashCode() * 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Segment {
+
+        private long[] tokens;
+        private int[] metas;
+        private int[] hashes;
+        private InetAddress[] peers;
+        private CommonContext[] contexts;
+        private long[] sequenceNumbers;
+        private byte[][] partialIVs;
+        private byte[][] requestIDs;
+
+        // timing wheel: doubly linked lists of slots, one list per bucket
+        private long[] deadlines;
+        private int[] wheelNext;
+        private int[] wheelPrev;
+        private final int[] wheelHeads = new int[WHEEL_SIZE];
+
+        // the last tick which was swept
+        private long sweptTick = 0;
+
+        private int size;
+        private int used; // size + deleted slots
+
+        Segment() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            tokens = new long[capacity];
+            metas = new int[capacity];
+            hashes = new int[capacity];
+            peers = new InetAddress[capacity];
+            contexts = new CommonContext[capacity];
+            sequenceNumbers = new long[capacity];
+            partialIVs = new byte[capacity][];
+            requestIDs = new byte[capacity][];
+            deadlines = new long[capacity];
+            wheelNext = new int[capacity];
+            wheelPrev = new int[capacity];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheelHeads[i] = NIL;
+            }
+            size = 0;
+            used = 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void put(int hash, InetAddress peer, long token, int meta,
+                              CommonContext context, long sequenceNumber, byte[] partialIV, byte[] requestID,
+                              long deadline) {
+            int slot = find(hash, peer, token, meta);
+            if (slot < 0) {
+                // keep at least 1/4 of the slots free, so probing stays short
+                if ((used + 1) * 4 > tokens.length * 3) {
+                    rehash();
+                }
+                slot = freeSlot(hash);
+                if (metas[slot] == FREE) {
+                    used++;
+                }
+                size++;
+            } else {
+                unlink(slot);
+            }
+            tokens[slot] = token;
+            metas[slot] = meta;
+            hashes[slot] = hash;
+            peers[slot] = peer;
+            contexts[slot] = context;
+            sequenceNumbers[slot] = sequenceNumber;
+            partialIVs[slot] = partialIV;
+            requestIDs[slot] = requestID;
+            link(slot, deadline);
+        }
+
+        synchronized CommonContext get(int hash, InetAddress peer, long token, int meta,
+                                       OscoapRequestParameter params, boolean remove) {
+            int slot = find(hash, peer, token, meta);
+            if (slot < 0) {
+                return null;
+            }
+            CommonContext context = contexts[slot];
+            if (params != null) {
+                params.set(sequenceNumbers[slot], partialIVs[slot], requestIDs[slot]);
+            }
+            if (remove) {
+                delete(slot);
+            }
+            return context;
+        }
+
+        synchronized void keep(int hash, InetAddress peer, long token, int meta, long deadline) {
+            int slot = find(hash, peer, token, meta);
+            if (slot >= 0) {
+                unlink(slot);
+                link(slot, deadline);
+            }
+        }
+
+        synchronized void removeAll(CommonContext context) {
+            for (int slot = 0; slot < contexts.length; slot++) {
+                if (metas[slot] > 0 && contexts[slot] == context) {
+                    delete(slot);
+                }
+            }
+        }
+
+        /**
+         * Removes all entries with a deadline up to the tick.
+         * @return number of removed entries
+         */
+        synchronized int sweep(long tick) {
+            int expired = 0;
+            // normally this is exactly one bucket. After a long pause of the
+            // timer thread, sweep at most every bucket once.
+            long from = Math.max(sweptTick + 1, tick - WHEEL_MASK);
+            for (long t = from; t <= tick; t++) {
+                int slot = wheelHeads[(int) (t & WHEEL_MASK)];
+                while (slot != NIL) {
+                    int next = wheelNext[slot];
+                    // entries of later rounds stay in the bucket
+                    if (deadlines[slot] <= tick) {
+                        delete(slot);
+                        expired++;
+                    }
+                    slot = next;
+                }
+            }
+            sweptTick = tick;
+            return expired;
+        }
+
+        private int find(int hash, InetAddress peer, long token, int meta) {
+            int mask = tokens.length - 1;
+            int slot = hash & mask;
+            while (metas[slot] != FREE) {
+                if (metas[slot] == meta && tokens[slot] == token && hashes[slot] == hash
+                        && peers[slot].equals(peer)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int freeSlot(int hash) {
+            int mask = tokens.length - 1;
+            int slot = hash & mask;
+            while (metas[slot] > 0) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void link(int slot, long deadline) {
+            deadlines[slot] = deadline;
+            if (deadline == NO_DEADLINE) {
+                return;
+            }
+            int bucket = (int) (deadline & WHEEL_MASK);
+            int head = wheelHeads[bucket];
+            wheelNext[slot] = head;
+            wheelPrev[slot] = NIL;
+            if (head != NIL) {
+                wheelPrev[head] = slot;
+            }
+            wheelHeads[bucket] = slot;
+        }
+
+        private void unlink(int slot) {
+            long deadline = deadlines[slot];
+            if (deadline == NO_DEADLINE) {
+                return;
+            }
+            int next = wheelNext[slot];
+            int prev = wheelPrev[slot];
+            if (prev == NIL) {
+                wheelHeads[(int) (deadline & WHEEL_MASK)] = next;
+            } else {
+                wheelNext[prev] = next;
+            }
+            if (next != NIL) {
+                wheelPrev[next] = prev;
+            }
+            deadlines[slot] = NO_DEADLINE;
+        }
+
+        private void delete(int slot) {
+            unlink(slot);
+            // a deleted marker keeps the probe chains of other entries intact
+            metas[slot] = DELETED;
+            peers[slot] = null;
+            contexts[slot] = null;
+            partialIVs[slot] = null;
+            requestIDs[slot] = null;
+            size--;
+        }
+
+        private void rehash() {
+            long[] oldTokens = tokens;
+            int[] oldMetas = metas;
+            int[] oldHashes = hashes;
+            InetAddress[] oldPeers = peers;
+            CommonContext[] oldContexts = contexts;
+            long[] oldSequenceNumbers = sequenceNumbers;
+            byte[][] oldPartialIVs = partialIVs;
+            byte[][] oldRequestIDs = requestIDs;
+            long[] oldDeadlines = deadlines;
+
+            // grow only if the table is really full, otherwise just drop the deleted slots
+            int capacity = (size + 1) * 2 > oldTokens.length ? oldTokens.length * 2 : oldTokens.length;
+            allocate(capacity);
+
+            for (int i = 0; i < oldTokens.length; i++) {
+                if (oldMetas[i] > 0) {
+                    int slot = freeSlot(oldHashes[i]);
+                    tokens[slot] = oldTokens[i];
+                    metas[slot] = oldMetas[i];
+                    hashes[slot] = oldHashes[i];
+                    peers[slot] = oldPeers[i];
+                    contexts[slot] = oldContexts[i];
+                    sequenceNumbers[slot] = oldSequenceNumbers[i];
+                    partialIVs[slot] = oldPartialIVs[i];
+                    requestIDs[slot] = oldRequestIDs[i];
+                    link(slot, oldDeadlines[i]);
+                    size++;
+                    used++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import COSE.AlgorithmID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Creates security contexts from master secret, master salt and the IDs.
+ * Keys and IVs are derived with HKDF-SHA-256, like in section 3.2 of
+ * draft-ietf-core-object-security-03:
+ *
+ *   output = HKDF(salt = master salt, IKM = master secret, info, L)
+ *   info = [ id : bstr, alg : int, type : tstr ("Key" or "IV"), L : uint ]
+ *
+ * The sender key and IV are derived with the sender ID, the recipient key
+ * and IV with the recipient ID. The derived values are cached, so contexts
+ * with the same master secret and IDs (e.g. created again after a restart)
+ * cost no HMAC. Many contexts can be created in parallel with createContexts.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class SecurityContextFactory {
+
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final int HASH_LENGTH = 32;
+    private static final byte[] NO_SALT = new byte[HASH_LENGTH];
+
+    // Mac.getInstance is expensive, so every thread keeps its own
+    private static final ThreadLocal<Mac> HMAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+    };
+
+    // null for no cache
+    private final DerivationCache cache;
+
+    public SecurityContextFactory() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize maximum number of derived keys and IVs in the cache, 0 for no cache
+     */
+    public SecurityContextFactory(int cacheSize) {
+        this.cache = cacheSize > 0 ? new DerivationCache(cacheSize) : null;
+    }
+
+    /**
+     * Parameters of one context, for createContexts.
+     */
+    public static final class Parameters {
+
+        private final AeadAlgorithm algorithm;
+        private final byte[] masterSecret;
+        private final byte[] masterSalt;
+        private final byte[] senderID;
+        private final byte[] recipientID;
+        private final String host;
+
+        public Parameters(AlgorithmID algorithm, byte[] masterSecret, byte[] masterSalt,
+                          byte[] senderID, byte[] recipientID, String host) {
+            this(AeadAlgorithm.fromAlgorithmID(algorithm), masterSecret, masterSalt, senderID, recipientID, host);
+        }
+
+        public Parameters(AeadAlgorithm algorithm, byte[] masterSecret, byte[] masterSalt,
+                          byte[] senderID, byte[] recipientID, String host) {
+            this.algorithm = algorithm;
+            this.masterSecret = masterSecret;
+            this.masterSalt = masterSalt;
+            this.senderID = senderID;
+            this.recipientID = recipientID;
+            this.host = host;
+        }
+
+        byte[] getRecipientID() {
+            return recipientID;
+        }
+
+        String getHost() {
+            return host;
+        }
+    }
+
+    /**
+     * Creates a context and derives its keys and IVs.
+     * @param masterSalt may be null
+     * @param host the host of the other endpoint
+     * @return the context
+     */
+    public CommonContext createContext(AlgorithmID algorithm, byte[] masterSecret, byte[] masterSalt,
+                                       byte[] senderID, byte[] recipientID, String host) {
+        return createContext(AeadAlgorithm.fromAlgorithmID(algorithm), masterSecret, masterSalt, senderID, recipientID, host);
+    }
+
+    /**
+     * Same as with AlgorithmID, also for ChaCha20-Poly1305.
+     */
+    public CommonContext createContext(AeadAlgorithm algorithm, byte[] masterSecret, byte[] masterSalt,
+                                       byte[] senderID, byte[] recipientID, String host) {
+        int keyLength = algorithm.getKeyLength();
+        int ivLength = algorithm.getNonceLength();
+
+        CommonContext context = new CommonContext(algorithm, masterSecret, masterSalt, host);
+        context.setSenderContext(new SenderContext(senderID,
+                derive(algorithm, masterSecret, masterSalt, senderID, "Key", keyLength),
+                derive(algorithm, masterSecret, masterSalt, senderID, "IV", ivLength)));
+        context.setRecipientContext(new RecipientContext(recipientID,
+                derive(algorithm, masterSecret, masterSalt, recipientID, "Key", keyLength),
+                derive(algorithm, masterSecret, masterSalt, recipientID, "IV", ivLength)));
+        return context;
+    }
+
+    public CommonContext createContext(Parameters parameters) {
+        return createContext(parameters.algorithm, parameters.masterSecret, parameters.masterSalt,
+                parameters.senderID, parameters.recipientID, parameters.host);
+    }
+
+    /**
+     * Creates the contexts in parallel, with the common ForkJoinPool.
+     * @return the contexts, in the order of the parameters
+     */
+    public List<CommonContext> createContexts(List<Parameters> parameters) throws InterruptedException {
+        return createContexts(parameters, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates the contexts in parallel. The list is split into chunks, one task per chunk.
+     * @param executor runs the tasks
+     * @return the contexts, in the order of the parameters
+     */
+    public List<CommonContext> createContexts(final List<Parameters> parameters, ExecutorService executor)
+            throws InterruptedException {
+        int chunks = Math.max(1, Math.min(parameters.size(), 4 * Runtime.getRuntime().availableProcessors()));
+        int chunkSize = (parameters.size() + chunks - 1) / chunks;
+
+        List<Future<List<CommonContext>>> futures = new ArrayList<>(chunks);
+        for (int start = 0; start < parameters.size(); start += chunkSize) {
+            final List<Parameters> chunk = parameters.subList(start, Math.min(start + chunkSize, parameters.size()));
+            futures.add(executor.submit(new Callable<List<CommonContext>>() {
+                @Override
+                public List<CommonContext> call() {
+                    List<CommonContext> contexts = new ArrayList<>(chunk.size());
+                    for (Parameters p : chunk) {
+                        contexts.add(createContext(p));
+                    }
+                    return contexts;
+                }
+            }));
+        }
+
+        List<CommonContext> contexts = new ArrayList<>(parameters.size());
+        for (Future<List<CommonContext>> future : futures) {
+            try {
+                contexts.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalArgumentException("Could not create security context: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return contexts;
+    }
+
+    /**
+     * Derives a key or an IV. The result is cached, if there is a cache.
+     * Without one, the threads of createContexts share no lock.
+     * @param type "Key" or "IV"
+     * @param length number of bytes
+     */
+    byte[] derive(AeadAlgorithm algorithm, byte[] masterSecret, byte[] masterSalt, byte[] id, String type, int length) {
+        DerivationCache cache = this.cache;
+        if (cache == null) {
+            // nobody else sees the result, so it needs no copy
+            return hkdf(masterSalt, masterSecret, getInfo(id, algorithm.getValue(), type, length), length);
+        }
+        DerivationKey key = new DerivationKey(algorithm, masterSecret, masterSalt, id, type);
+        byte[] derived;
+        synchronized (cache) {
+            derived = cache.get(key);
+        }
+        if (derived == null) {
+            byte[] info = getInfo(id, algorithm.getValue(), type, length);
+            derived = hkdf(masterSalt, masterSecret, info, length);
+            synchronized (cache) {
+                cache.put(key.copy(), derived);
+            }
+        }
+        // the caller gets its own copy, the contexts do not copy
+        return Arrays.copyOf(derived, derived.length);
+    }
+
+    /**
+     * RFC 5869 with SHA-256. No salt is the same as HashLen zero bytes.
+     */
+    static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length) {
+        Mac hmac = HMAC.get();
+        try {
+            // Extract
+            hmac.init(new SecretKeySpec(salt == null || salt.length == 0 ? NO_SALT : salt, "HmacSHA256"));
+            byte[] prk = hmac.doFinal(ikm);
+
+            // Expand
+            hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            byte[] result = new byte[length];
+            byte[] t = new byte[0];
+            int done = 0;
+            for (int i = 1; done < length; i++) {
+                hmac.update(t);
+                hmac.update(info);
+                hmac.update((byte) i);
+                t = hmac.doFinal();
+                int n = Math.min(t.length, length - done);
+                System.arraycopy(t, 0, result, done, n);
+                done += n;
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HKDF failed", e);
+        }
+    }
+
+    /**
+     * CBOR encoding of [ id : bstr, alg : int, type : tstr, L : uint ].
+     * Written directly, it is only four items.
+     */
+    static byte[] getInfo(byte[] id, int algorithm, String type, int length) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] info = new byte[1 + 9 + id.length + 9 + 9 + typeBytes.length + 9];
+        int position = 0;
+        info[position++] = (byte) 0x84; // array of 4
+        position = putHeader(info, position, 2, id.length);
+        System.arraycopy(id, 0, info, position, id.length);
+        position += id.length;
+        if (algorithm >= 0) {
+            position = putHeader(info, position, 0, algorithm);
+        } else {
+            position = putHeader(info, position, 1, -1L - algorithm);
+        }
+        position = putHeader(info, position, 3, typeBytes.length);
+        System.arraycopy(typeBytes, 0, info, position, typeBytes.length);
+        position += typeBytes.length;
+        position = putHeader(info, position, 0, length);
+        return Arrays.copyOf(info, position);
+    }
+
+    private static int putHeader(byte[] buffer, int position, int majorType, long value) {
+        int major = majorType << 5;
+        if (value < 24) {
+            buffer[position++] = (byte) (major | value);
+        } else if (value < 0x100) {
+            buffer[position++] = (byte) (major | 24);
+            buffer[position++] = (byte) value;
+        } else if (value < 0x10000) {
+            buffer[position++] = (byte) (major | 25);
+            buffer[position++] = (byte) (value >> 8);
+            buffer[position++] = (byte) value;
+        } else {
+            buffer[position++] = (byte) (major | 26);
+            buffer[position++] = (byte) (value >> 24);
+            buffer[position++] = (byte) (value >> 16);
+            buffer[position++] = (byte) (value >> 8);
+            buffer[position++] = (byte) value;
+        }
+        return position;
+    }
+
+    /**
+     * A LinkedHashMap in access order, which removes the eldest entry when it is full.
+     * Only used while holding its lock.
+     */
+    private static final class DerivationCache extends LinkedHashMap<DerivationKey, byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maximumSize;
+
+        DerivationCache(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DerivationKey, byte[]> eldest) {
+            return size() > this.maximumSize;
+        }
+    }
+
+    private static final class DerivationKey {
+
+        private final AeadAlgorithm algorithm;
+        private final byte[] masterSecret;
+        private final byte[] masterSalt;
+        private final byte[] id;
+        private final String type;
+        private final int hash;
+
+        DerivationKey(AeadAlgorithm algorithm, byte[] masterSecret, byte[] masterSalt, byte[] id, String type) {
+            this.algorithm = algorithm;
+            this.masterSecret = masterSecret;
+            this.masterSalt = masterSalt;
+            this.id = id;
+            this.type = type;
+            int hash = algorithm.hashCode();
+            hash = 31 * hash + ByteArrayKey.hash(masterSecret);
+            hash = 31 * hash + (masterSalt == null ? 0 : ByteArrayKey.hash(masterSalt));
+            hash = 31 * hash + ByteArrayKey.hash(id);
+            this.hash = 31 * hash + type.hashCode();
+        }
+
+        /**
+         * @return a key with own arrays, the arrays of the caller may be changed
+         */
+        DerivationKey copy() {
+            return new DerivationKey(algorithm, masterSecret.clone(),
+                    masterSalt == null ? null : masterSalt.clone(), id.clone(), type);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DerivationKey)) {
+                return false;
+            }
+            DerivationKey key = (DerivationKey) other;
+            return hash == key.hash && algorithm == key.algorithm && type.equals(key.type)
+                    && Arrays.equals(id, key.id) && Arrays.equals(masterSecret, key.masterSecret)
+                    && Arrays.equals(masterSalt, key.masterSalt);
+        }
+    }
+}
@@ -1,32 +1,85 @@
 import org.eclipse.californium.core.coap.Request;
 
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
+ * Holds all security contexts and finds them by host, recipient ID or token.
+ * Each lookup is a hash lookup in one of three indexes. The indexes are
+ * concurrent, so the manager can be used by several protocol threads.
+ * The token index is the RequestParameterTable, which also holds the
+ * parameters of the outstanding requests.
+ *
+ * The host and recipient ID indexes are held together in one Index object.
+ * setSecurityContexts builds a new Index and publishes it with one write, so
+ * a bulk import (see ContextImporter) replaces all contexts at once.
+ *
+ * Contexts added with addSecurityContext are held until they are removed.
+ * If a ContextStore is set, all other contexts are loaded from the store on
+ * demand and held in a bounded cache (see ContextCache).
  *
  * Created by Luka Dschaak on 26.07.2017.
  */
 public class SecurityContextManager {
 
-    private static SecurityContextManager instance = null;
+    private static volatile SecurityContextManager instance = null;
+
+    // host and recipient ID index, replaced by setSecurityContexts
+    private volatile Index index;
+
+    // serializes changes of the index, lookups do not lock
+    private final Object indexLock = new Object();
+
+    // (peer, token) of an outstanding request -> context and request parameters.
+    // Filled by CommonContext.addRequestParameters and getAndRemoveRequestParameters
+    private final RequestParameterTable requestParameters;
+
+    // true, if the lifetime of the request parameters was set (see configureRequestParameterLifetime)
+    private boolean requestParameterLifetimeSet = false;
+
+    // null, if there is no ContextStore
+    private volatile ContextCache contextCache;
+
+    // null, if sequence numbers are not persisted
+    private volatile SequenceNumberJournal journal;
+
+    private final Set<Request> sendUnsecured;
 
-    private List<CommonContext> securityContexts;
+    // recipient IDs for the prefilter of incoming requests
+    private final KidFilter kidFilter;
 
-    private List<Request> sendUnsecured;
+    // null, if added contexts are not warmed up
+    private volatile AeadProvider warmUpProvider;
 
     protected SecurityContextManager() {
-        this.securityContexts = new LinkedList<>();
-        this.sendUnsecured = new LinkedList<>();
+        this.index = new Index(16);
+        this.requestParameters = new RequestParameterTable();
+        this.sendUnsecured = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+        this.kidFilter = new KidFilter();
     }
 
     public static SecurityContextManager getInstance() {
-        if(instance == null) {
-            instance = new SecurityContextManager();
+        SecurityContextManager manager = instance;
+        if (manager == null) {
+            synchronized (SecurityContextManager.class) {
+                manager = instance;
+                if (manager == null) {
+                    manager = new SecurityContextManager();
+                    instance = manager;
+                }
+            }
         }
-        return instance;
+        return manager;
     }
 
     /**
@@ -40,57 +93,404 @@ public class SecurityContextManager {
     }
 
     /**
-     * Returns the security context fitting to the host of the uri
+     * Returns the security context fitting to the host of the uri.
+     * Waits, if the context has to be loaded from the ContextStore, so the
+     * endpoint uses findSecurityContextByHost instead.
      * @param host as string
      * @return the security context
      */
     public CommonContext getSecurityContextByHost(String host) {
+        CommonContext context = findSecurityContextByHost(host);
+        ContextCache cache = this.contextCache;
+        if (context == null && cache != null) {
+            context = ContextCache.await(cache.loadByHost(OscoapHelper.reducedIPv6Host(host)));
+        }
+        return context;
+    }
+
+    /**
+     * Same as getSecurityContextByHost, but does not wait for the ContextStore.
+     * @param host as string
+     * @return the security context, or null if there is none in memory
+     */
+    CommonContext findSecurityContextByHost(String host) {
         host = OscoapHelper.reducedIPv6Host(host);
-        for( CommonContext context : this.securityContexts ) {
-            if (context.getTargetResourceHost().equals(host)) {
-                return context;
-            }
+        CommonContext context = this.index.contextsByHost.get(host);
+        ContextCache cache = this.contextCache;
+        if (context == null && cache != null) {
+            context = cache.getByHost(host);
         }
+        return context;
+    }
 
-        return null;
+    /**
+     * Starts loading the context of the host from the ContextStore, if it is
+     * not in memory, so a request can be composed when the load is done.
+     * @param host as string
+     * @return future of the load, or null if there is nothing to wait for
+     */
+    CompletableFuture<CommonContext> loadSecurityContextByHost(String host) {
+        ContextCache cache = this.contextCache;
+        if (cache == null || findSecurityContextByHost(host) != null) {
+            return null;
+        }
+        return cache.loadByHost(OscoapHelper.reducedIPv6Host(host));
     }
 
     /**
-     * Returns the security context fitting to the senderID
+     * Returns the security context fitting to the senderID.
+     * Waits, if the context has to be loaded from the ContextStore, so the
+     * endpoint uses getSecurityContextByIDAsync instead.
      * @param senderID the sender id as byte[]
      * @return the security context
      */
     public CommonContext getSecurityContextByID(byte[] senderID) {
-        for( CommonContext context : this.securityContexts ) {
-            if (Arrays.equals(context.getRecipientContext().getRecipientID(), senderID)) {
-                return context;
+        return ContextCache.await(getSecurityContextByIDAsync(senderID));
+    }
+
+    /**
+     * Prefilter for the kid of incoming requests, without allocation.
+     * False means, that there may be a context for this ID.
+     * @return true, if there is certainly no context for this recipient ID
+     */
+    boolean isUnknownRecipientID(byte[] buffer, int offset, int length) {
+        if (this.kidFilter.isRejected(buffer, offset, length)) {
+            return true;
+        }
+        // the filter does not know the contexts in the store
+        return this.contextCache == null && !this.kidFilter.mightContain(buffer, offset, length);
+    }
+
+    /**
+     * Same as getSecurityContextByID, but does not wait, if the context has to be
+     * loaded from the ContextStore. The ID is only rejected by the KidFilter,
+     * if the store does not know it, not if the load failed.
+     * @param senderID the sender id as byte[]
+     * @return future of the security context, completed with null if there is none
+     */
+    public CompletableFuture<CommonContext> getSecurityContextByIDAsync(final byte[] senderID) {
+        final int generation = this.kidFilter.getGeneration();
+        CommonContext context = this.index.contextsByRecipientID.get(ByteArrayKey.probe(senderID));
+        ContextCache cache = this.contextCache;
+        if (context == null && cache != null) {
+            context = cache.getByRecipientID(senderID);
+            if (context == null) {
+                CompletableFuture<CommonContext> future = cache.loadByRecipientID(senderID);
+                // not called, if the future completes exceptionally
+                future.thenAccept(new Consumer<CommonContext>() {
+                    @Override
+                    public void accept(CommonContext loaded) {
+                        if (loaded == null) {
+                            kidFilter.reject(senderID, generation);
+                        }
+                    }
+                });
+                return future;
             }
         }
+        if (context == null) {
+            this.kidFilter.reject(senderID, generation);
+        }
+        return CompletableFuture.completedFuture(context);
+    }
 
-        return null;
+    /**
+     * Starts loading the context of the kid of an incoming request from the
+     * ContextStore, if it is not in memory, so the request can be parsed when
+     * the load is done.
+     * @return future of the load, or null if there is nothing to wait for
+     */
+    CompletableFuture<CommonContext> loadSecurityContextByID(byte[] buffer, int offset, int length) {
+        if (this.contextCache == null) {
+            return null;
+        }
+        CompletableFuture<CommonContext> future = getSecurityContextByIDAsync(
+                Arrays.copyOfRange(buffer, offset, offset + length));
+        return future.isDone() ? null : future;
     }
 
     /**
      * Returns the security context fitting to the token of the current message
+     * @param peer address of the other endpoint of the message
+     * @param port port of the other endpoint of the message
      * @param requestToken the token of the current message
      * @return the security context
      */
-    public CommonContext getSecurityContextByToken(byte[] requestToken) {
-        for( CommonContext context : this.securityContexts ) {
-            if (context.hasCurrentToken(requestToken)) {
-                return context;
+    public CommonContext getSecurityContextByToken(InetAddress peer, int port, byte[] requestToken) {
+        return this.requestParameters.get(peer, port, requestToken, null);
+    }
+
+    /**
+     * Adds the context to all indexes. A context which was added before for the
+     * same host or recipient ID is replaced and removed like with removeSecurityContext.
+     * @param commonContext the context
+     */
+    public void addSecurityContext(CommonContext commonContext) {
+        AeadProvider warmUpProvider = this.warmUpProvider;
+        if (warmUpProvider != null) {
+            commonContext.warmUp(warmUpProvider);
+        }
+        register(commonContext);
+        // before it is published, a lookup needs the manager of a found context
+        commonContext.setSecurityContextManager(this);
+
+        CommonContext previousByHost;
+        CommonContext previousByID;
+        synchronized (this.indexLock) {
+            Index index = this.index;
+            previousByHost = index.contextsByHost.put(commonContext.getTargetResourceHost(), commonContext);
+            byte[] recipientID = commonContext.getRecipientContext().getRecipientID();
+            previousByID = index.contextsByRecipientID.put(new ByteArrayKey(recipientID), commonContext);
+            if (previousByID == null) {
+                this.kidFilter.add(recipientID, index.contextsByRecipientID.keySet());
+            }
+            // a replaced context must not stay in the other index
+            if (previousByHost != null && previousByHost != commonContext) {
+                removeFromIndex(index, previousByHost);
+            }
+            if (previousByID != null && previousByID != commonContext) {
+                removeFromIndex(index, previousByID);
             }
         }
 
-        return null;
+        if (previousByHost != null && previousByHost != commonContext) {
+            release(previousByHost);
+        }
+        if (previousByID != null && previousByID != commonContext && previousByID != previousByHost) {
+            release(previousByID);
+        }
     }
 
-    public void addSecurityContext(CommonContext commonContext) {
-        this.securityContexts.add(commonContext);
+    public void removeSecurityContext(CommonContext commonContext) {
+        synchronized (this.indexLock) {
+            removeFromIndex(this.index, commonContext);
+        }
+
+        ContextCache cache = this.contextCache;
+        if (cache != null) {
+            cache.remove(commonContext);
+        }
+
+        release(commonContext);
     }
 
-    public void removeSecurityContext(CommonContext commonContext) {
-        this.securityContexts.remove(commonContext);
+    /**
+     * remove(key, value), because the index may already point to a newer context.
+     * Called with the indexLock.
+     */
+    private void removeFromIndex(Index index, CommonContext commonContext) {
+        index.contextsByHost.remove(commonContext.getTargetResourceHost(), commonContext);
+        byte[] recipientID = commonContext.getRecipientContext().getRecipientID();
+        if (index.contextsByRecipientID.remove(ByteArrayKey.probe(recipientID), commonContext)) {
+            this.kidFilter.remove(recipientID);
+        }
+    }
+
+    /**
+     * Drops the state of a context, which is out of the index. The manager is
+     * set to null only now, a thread which found the context before still needs it.
+     */
+    private void release(CommonContext commonContext) {
+        commonContext.setSecurityContextManager(null);
+        this.requestParameters.removeAll(commonContext);
+        unregister(commonContext);
+    }
+
+    /**
+     * Replaces all contexts, which were added with addSecurityContext, by the
+     * given ones. The new indexes are built first and then published at once,
+     * so a lookup finds either the old or the new set. Old contexts, which are
+     * not in the new set, are removed like with removeSecurityContext.
+     * @param contexts the new contexts
+     * @throws IllegalArgumentException if two contexts have the same host or recipient ID
+     */
+    public void setSecurityContexts(Collection<CommonContext> contexts) {
+        Index index = new Index(contexts.size());
+        for (CommonContext context : contexts) {
+            byte[] recipientID = context.getRecipientContext().getRecipientID();
+            if (index.contextsByRecipientID.put(new ByteArrayKey(recipientID), context) != null) {
+                throw new IllegalArgumentException("Duplicate recipient ID " + DatatypeConverter.printHexBinary(recipientID));
+            }
+            if (index.contextsByHost.put(context.getTargetResourceHost(), context) != null) {
+                throw new IllegalArgumentException("Duplicate host " + context.getTargetResourceHost());
+            }
+        }
+        AeadProvider warmUpProvider = this.warmUpProvider;
+        for (CommonContext context : contexts) {
+            if (warmUpProvider != null) {
+                context.warmUp(warmUpProvider);
+            }
+            register(context);
+            context.setSecurityContextManager(this);
+        }
+
+        Index previous;
+        synchronized (this.indexLock) {
+            previous = this.index;
+            this.index = index;
+            this.kidFilter.rebuild(index.contextsByRecipientID.keySet());
+        }
+
+        for (CommonContext context : previous.contextsByRecipientID.values()) {
+            byte[] recipientID = context.getRecipientContext().getRecipientID();
+            if (index.contextsByRecipientID.get(ByteArrayKey.probe(recipientID)) != context) {
+                release(context);
+            }
+        }
+    }
+
+    /**
+     * Creates the ciphers of all contexts, which were added with addSecurityContext
+     * or setSecurityContexts, and of the contexts added afterwards.
+     * OscoapEndpoint calls it on start, if OSCOAP_WARM_UP_MESSAGES is set.
+     * @param provider the AEAD provider of the endpoint, null to warm up no more contexts
+     * @return number of contexts warmed up now
+     */
+    public int warmUpContexts(AeadProvider provider) {
+        this.warmUpProvider = provider;
+        if (provider == null) {
+            return 0;
+        }
+        int count = 0;
+        for (CommonContext context : this.index.contextsByRecipientID.values()) {
+            context.warmUp(provider);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the contexts added with addSecurityContext or setSecurityContexts
+     */
+    Collection<CommonContext> getSecurityContexts() {
+        return Collections.unmodifiableCollection(this.index.contextsByRecipientID.values());
+    }
+
+    /**
+     * @return number of contexts added with addSecurityContext or setSecurityContexts
+     */
+    public int getSecurityContextCount() {
+        return this.index.contextsByRecipientID.size();
+    }
+
+    /**
+     * Sequence numbers and replay windows of all contexts, which are added or
+     * loaded afterwards, are persisted in the journal.
+     * @param journal the journal, null to persist nothing
+     * @throws IllegalStateException if it is null while a ContextStore is set
+     */
+    public synchronized void setSequenceNumberJournal(SequenceNumberJournal journal) {
+        if (journal == null && this.contextCache != null) {
+            throw new IllegalStateException("A ContextStore needs a SequenceNumberJournal");
+        }
+        this.journal = journal;
+    }
+
+    void register(CommonContext commonContext) {
+        SequenceNumberJournal journal = this.journal;
+        if (journal != null) {
+            journal.register(commonContext);
+        }
+    }
+
+    void unregister(CommonContext commonContext) {
+        SequenceNumberJournal journal = this.journal;
+        if (journal != null) {
+            journal.unregister(commonContext);
+        }
+    }
+
+    /**
+     * Contexts, which were not added with addSecurityContext, are loaded from the
+     * store. At most maximumSize of them are held in memory, the least recently
+     * used ones are stored and dropped. A previous store is flushed.
+     *
+     * The store only gets the state of a context, when it is evicted or stored
+     * with storeContexts. After a crash, a loaded context would use sequence
+     * numbers again, which were used after the last store, so the journal has
+     * to be set before (see setSequenceNumberJournal).
+     * @param store the store, null to load no contexts
+     * @param maximumSize maximum number of loaded contexts in memory
+     * @throws IllegalStateException if no SequenceNumberJournal is set
+     */
+    public void setContextStore(ContextStore store, int maximumSize) {
+        ContextCache previous;
+        synchronized (this) {
+            if (store != null && this.journal == null) {
+                throw new IllegalStateException("A ContextStore needs a SequenceNumberJournal");
+            }
+            ContextCache cache = store == null ? null : new ContextCache(store, maximumSize, this);
+            previous = this.contextCache;
+            this.contextCache = cache;
+        }
+        // the new store may know the rejected IDs
+        this.kidFilter.clearRejected();
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Stores the state of all loaded contexts, e.g. before shutdown.
+     * @throws IOException if the store could not be written
+     */
+    public void storeContexts() throws IOException {
+        ContextCache cache = this.contextCache;
+        if (cache != null) {
+            cache.storeAll();
+        }
+    }
+
+    /**
+     * @return number of contexts loaded from the ContextStore, which are in memory
+     */
+    public int getCachedContextCount() {
+        ContextCache cache = this.contextCache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * Parameters of requests, which get no response (lost messages, canceled
+     * requests, NON requests), are removed after this time. The parameters of
+     * an Observe relation are removed, if there was no notification for the
+     * observe lifetime. If it is not set, the first OscoapEndpoint sets it
+     * from its NetworkConfig.
+     * @param lifetimeMillis the lifetime in milliseconds, 0 means never remove them
+     * @param observeLifetimeMillis the lifetime after the last notification, 0 means never remove them
+     */
+    public synchronized void setRequestParameterLifetime(long lifetimeMillis, long observeLifetimeMillis) {
+        this.requestParameterLifetimeSet = true;
+        this.requestParameters.setLifetime(lifetimeMillis);
+        this.requestParameters.setKeptLifetime(observeLifetimeMillis);
+    }
+
+    /**
+     * Called by every OscoapEndpoint with the lifetimes of its NetworkConfig.
+     * The request parameters are shared by all endpoints, so only the first
+     * call sets the lifetimes, and none, if they were set before.
+     */
+    synchronized void configureRequestParameterLifetime(long lifetimeMillis, long observeLifetimeMillis) {
+        if (!this.requestParameterLifetimeSet) {
+            setRequestParameterLifetime(lifetimeMillis, observeLifetimeMillis);
+        }
+    }
+
+    /**
+     * @return number of request parameters removed, because they were not used within their lifetime
+     */
+    public long getExpiredRequestParameterCount() {
+        return this.requestParameters.getExpiredCount();
+    }
+
+    /**
+     * @return number of stored request parameters
+     */
+    public int getRequestParameterCount() {
+        return this.requestParameters.size();
+    }
+
+    RequestParameterTable getRequestParameterTable() {
+        return requestParameters;
     }
 
     public void sendUnsecured(Request request) {
@@ -98,10 +498,21 @@ public class SecurityContextManager {
     }
 
     public boolean shallBeUnsecured(Request request) {
-        if (sendUnsecured.contains(request)) {
-            sendUnsecured.remove(request);
-            return true;
+        return sendUnsecured.remove(request);
+    }
+
+    private static final class Index {
+
+        // normalized host (see OscoapHelper.reducedIPv6Host) -> context
+        final Map<String, CommonContext> contextsByHost;
+
+        // recipient ID -> context. The recipient ID is the kid of incoming requests
+        final Map<ByteArrayKey, CommonContext> contextsByRecipientID;
+
+        Index(int expectedSize) {
+            int capacity = Math.max(16, (int) (expectedSize / 0.75f) + 1);
+            this.contextsByHost = new ConcurrentHashMap<>(capacity);
+            this.contextsByRecipientID = new ConcurrentHashMap<>(capacity);
         }
-        return false;
     }
 }
@@ -1,19 +1,46 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Used in CommonContext.
+ * The sequence number is a counter, which is shared by all threads composing
+ * messages for this context. Each call of nextSequenceNumber returns another
+ * number without locking, so no nonce is used twice. The byte form for the
+ * Partial IV is only created, when the message is written.
+ * With a SequenceNumberJournal, numbers are reserved in blocks. Only the
+ * message which needs a number behind the reserved block waits for the journal.
  * Created by Luka Dschaak on 23.03.2017.
  */
 public class SenderContext {
 
+    private final static Logger LOGGER = Logger.getLogger(SenderContext.class.getCanonicalName());
+
+    // The Partial IV has at most 5 bytes
+    public static final long MAX_SEQUENCE_NUMBER = 0xFFFFFFFFFFL;
+
     private final byte[] senderID;
     private final byte[] senderKey; // symmetric key for encryption
     private final byte[] senderIV;
-    private byte[] sequenceNumber;
+    private final byte[] senderResponseIV; // IV for the nonce of normal responses
+
+    // cipher with the sender key, created by the first message
+    private volatile AeadEngine engine;
+    private final AtomicLong sequenceNumber; // the next sequence number to use
+
+    // numbers below are reserved in the journal. Long.MAX_VALUE without journal
+    private volatile long reservedSequenceNumber = Long.MAX_VALUE;
+    private SequenceNumberJournal journal; // guarded by reservationLock
+    private byte[] journalKey;
+    private final Object reservationLock = new Object();
 
     SenderContext(byte[] senderID, byte[] senderKey, byte[] senderIV) {
         this.senderID = senderID;
         this.senderKey = senderKey;
         this.senderIV = senderIV;
-        this.sequenceNumber = new byte[]{0};
+        this.senderResponseIV = OscoapSerializer.flipContextIVForResponses(senderIV.clone());
+        this.sequenceNumber = new AtomicLong(0);
     }
 
     byte[] getSenderID() {
@@ -28,26 +55,121 @@ public class SenderContext {
         return senderIV;
     }
 
-    public byte[] getSequenceNumber() {
-        return sequenceNumber;
+    /**
+     * @return the sender IV with the flipped bit of responses, which are no notifications
+     */
+    byte[] getSenderResponseIV() {
+        return senderResponseIV;
+    }
+
+    /**
+     * @param algorithm the algorithm of the CommonContext
+     * @param provider the AEAD provider of the endpoint
+     * @return the AEAD engine with the sender key
+     */
+    AeadEngine getEngine(AeadAlgorithm algorithm, AeadProvider provider) {
+        AeadEngine engine = this.engine;
+        if (engine == null || engine.getProvider() != provider) {
+            // two threads may both create one, that does no harm
+            engine = new AeadEngine(provider, algorithm, senderKey);
+            this.engine = engine;
+        }
+        return engine;
+    }
+
+    /**
+     * @return the sequence number, which will be used by the next message
+     */
+    public long getSequenceNumber() {
+        return Math.min(sequenceNumber.get(), MAX_SEQUENCE_NUMBER + 1);
+    }
+
+    /**
+     * Returns the current sequence number and increments it. Safe to call
+     * from several threads, every caller gets another number.
+     * @return the sequence number for a message, or -1 if all sequence
+     * numbers are used. Then a new security context is needed.
+     */
+    public long nextSequenceNumber() {
+        long next = sequenceNumber.getAndIncrement();
+        if (next > MAX_SEQUENCE_NUMBER) {
+            return -1;
+        }
+        if (next >= reservedSequenceNumber && !reserve(next)) {
+            return -1;
+        }
+        return next;
+    }
+
+    private boolean reserve(long next) {
+        synchronized (reservationLock) {
+            if (next < reservedSequenceNumber) {
+                // reserved by another thread meanwhile
+                return true;
+            }
+            if (journal == null) {
+                // detached, another context uses the numbers behind the reserved ones
+                return false;
+            }
+            try {
+                reservedSequenceNumber = journal.reserve(journalKey, next);
+                return true;
+            } catch (IOException e) {
+                // without reservation the number could be used again after a restart
+                LOGGER.log(Level.SEVERE, "Could not reserve sequence numbers: " + e.getMessage(), e);
+                return false;
+            }
+        }
     }
 
-    public void incrementSequenceNumber() {
-        byte last = sequenceNumber[sequenceNumber.length-1];
+    /**
+     * Called by SequenceNumberJournal.register. Nothing is changed, if the sender
+     * is already connected to the journal.
+     * @param journal the journal
+     * @param key the key of the context in the journal
+     * @param reservedSequenceNumber numbers below are reserved
+     */
+    void setSequenceNumberJournal(SequenceNumberJournal journal, byte[] key, long reservedSequenceNumber) {
+        synchronized (reservationLock) {
+            if (this.journal != journal) {
+                this.journal = journal;
+                this.journalKey = key;
+                this.reservedSequenceNumber = reservedSequenceNumber;
+            }
+        }
+    }
+
+    /**
+     * Called by SequenceNumberJournal.register, when another context with the
+     * same recipient ID takes over. Only the numbers, which are already
+     * reserved, can be used afterwards.
+     * @param journal the journal, nothing is changed for another one
+     */
+    void detachSequenceNumberJournal(SequenceNumberJournal journal) {
+        synchronized (reservationLock) {
+            if (this.journal == journal) {
+                this.journal = null;
+                this.journalKey = null;
+            }
+        }
+    }
 
-        if ((last & 0xFF) == 255) {
-            byte[] newSequenceNumber = new byte[sequenceNumber.length+1];
-            System.arraycopy(sequenceNumber, 0, newSequenceNumber, 0, sequenceNumber.length);
-            newSequenceNumber[sequenceNumber.length-1] = (byte) 0;
-            newSequenceNumber[sequenceNumber.length] = (byte) 1;
-            sequenceNumber = newSequenceNumber;
-        } else {
-            sequenceNumber[sequenceNumber.length-1] = (byte) ((int)last + 1);
+    /**
+     * Sets the sequence number, if it is higher than the current one. Unlike
+     * setSequenceNumber, it can be used while other threads get numbers.
+     * @param sequenceNumber the lowest number, which may be used next
+     */
+    void advanceSequenceNumber(long sequenceNumber) {
+        while (true) {
+            long current = this.sequenceNumber.get();
+            if (current >= sequenceNumber || this.sequenceNumber.compareAndSet(current, sequenceNumber)) {
+                return;
+            }
         }
     }
 
-    public SenderContext setSequenceNumber(byte[] sequenceNumber) {
-        this.sequenceNumber = sequenceNumber;
+    public SenderContext setSequenceNumber(long sequenceNumber) {
+        this.sequenceNumber.set(sequenceNumber);
         return this;
     }
 }
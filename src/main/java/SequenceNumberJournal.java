@@ -0,0 +1,478 @@
+import org.eclipse.californium.core.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Makes sequence numbers and replay windows survive a restart, without a disk
+ * write per message.
+ *
+ * A sender does not write its sequence number, but reserves a block of numbers
+ * (blockSize) in the journal. Only the message which needs a number behind the
+ * reserved block waits for the next reservation. After a crash the sender
+ * continues behind the last reserved block, so no number is used twice.
+ *
+ * The highest received sequence number of every recipient is written as
+ * checkpoint, for all contexts together every checkpoint interval. After a
+ * crash, messages received after the last checkpoint could be accepted again.
+ *
+ * Writes of several threads which wait at the same time are written together
+ * with one fsync (group commit). The journal is a file of records, which is
+ * compacted to the last state of every context, when it gets too long.
+ * Contexts are identified by their recipient ID.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class SequenceNumberJournal implements Closeable {
+
+    private final static Logger LOGGER = Logger.getLogger(SequenceNumberJournal.class.getCanonicalName());
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000; // ms
+
+    // the journal is compacted, when it is twice as long as after the last
+    // compaction, but not below this size
+    private static final long MIN_COMPACT_SIZE = 4 * 1024 * 1024;
+
+    // Record: type, id length, id, value, crc32 of all bytes before
+    private static final byte SENDER_RESERVATION = 1;
+    private static final byte REPLAY_CHECKPOINT = 2;
+    private static final int MAX_ID_LENGTH = 255;
+
+    private final File file;
+    private final int blockSize;
+
+    // recipient ID -> {reserved sender sequence number, highest received sequence number}
+    // The last written state, used to restore contexts and to compact the journal.
+    private final Map<ByteArrayKey, long[]> states;
+
+    // recipient ID -> registered context
+    private final Map<ByteArrayKey, Registration> registrations;
+
+    // records which wait to be written, with the batch they belong to
+    private final Object pendingLock = new Object();
+    private List<byte[]> pending = new ArrayList<>();
+    private Batch pendingBatch = new Batch();
+
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private final long minCompactSize;
+    private long compactSize; // guarded by writeLock
+
+    private final ScheduledExecutorService timer;
+
+    public SequenceNumberJournal(File file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Opens the journal and reads the state. The file is created, if it does not exist.
+     * @param file the journal file
+     * @param blockSize number of sequence numbers reserved at once
+     * @param checkpointInterval ms between the checkpoints of the replay windows, 0 for none
+     * @throws IOException if the journal can not be read
+     */
+    public SequenceNumberJournal(File file, int blockSize, long checkpointInterval) throws IOException {
+        this(file, blockSize, checkpointInterval, MIN_COMPACT_SIZE);
+    }
+
+    /**
+     * Same as above, with the size below which the journal is never compacted.
+     */
+    SequenceNumberJournal(File file, int blockSize, long checkpointInterval, long minCompactSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.file = file;
+        this.blockSize = blockSize;
+        this.minCompactSize = minCompactSize;
+        this.states = new ConcurrentHashMap<>();
+        this.registrations = new ConcurrentHashMap<>();
+
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+
+        if (checkpointInterval > 0) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory());
+            this.timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkpoint();
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.SEVERE, "Could not write replay checkpoint: " + t.getMessage(), t);
+                    }
+                }
+            }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Restores the state of the context from the journal, and connects its
+     * sender to the journal. Must be called before the context is used.
+     *
+     * If another context with the same recipient ID is registered, e.g. the
+     * old one of a provisioning record, which is imported again, the new one
+     * takes over: the replay window of the old one is written, and its sender
+     * may only use the numbers, which it has already reserved. The new sender
+     * continues behind them.
+     * @param context the context
+     */
+    public void register(CommonContext context) {
+        byte[] recipientID = context.getRecipientContext().getRecipientID();
+        if (recipientID.length > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Recipient ID is too long for the journal");
+        }
+        ByteArrayKey key = new ByteArrayKey(recipientID);
+        Registration registration = new Registration(context);
+        Registration previous = this.registrations.put(key, registration);
+        if (previous != null) {
+            if (previous.context == context) {
+                return;
+            }
+            takeOver(previous);
+        }
+
+        long[] state;
+        synchronized (this.writeLock) {
+            state = this.states.get(key);
+            state = state == null ? null : state.clone();
+        }
+        SenderContext sender = context.getSenderContext();
+        RecipientContext recipient = context.getRecipientContext();
+        long reserved = sender.getSequenceNumber();
+        if (state != null) {
+            // all numbers up to the reserved one may have been used before the restart
+            reserved = Math.max(reserved, state[0]);
+            if (state[1] > recipient.getMaxSequenceNumber()) {
+                recipient.restoreReplayWindow(state[1]);
+            }
+            registration.checkpoint = state[1];
+        }
+        sender.advanceSequenceNumber(reserved);
+        sender.setSequenceNumberJournal(this, key.getBytes(), reserved);
+    }
+
+    /**
+     * Stops the context of the previous registration with the same recipient ID.
+     */
+    private void takeOver(Registration previous) {
+        // no further reservations, so its numbers are in the journal
+        previous.context.getSenderContext().detachSequenceNumberJournal(this);
+        try {
+            write(checkpointRecords(previous));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write replay checkpoint: " + e.getMessage(), e);
+        }
+        // the replay window of the old context may be ahead of the last checkpoint
+        RecipientContext recipient = previous.context.getRecipientContext();
+        long received = recipient.getMaxSequenceNumber();
+        ByteArrayKey key = new ByteArrayKey(recipient.getRecipientID());
+        synchronized (this.writeLock) {
+            long[] state = this.states.get(key);
+            if (state == null) {
+                state = new long[]{0, -1};
+                this.states.put(key, state);
+            }
+            state[0] = Math.max(state[0], previous.context.getSenderContext().getSequenceNumber());
+            state[1] = Math.max(state[1], received);
+        }
+    }
+
+    /**
+     * Writes the replay window of the context. Its replay window is not written
+     * with the following checkpoints. The sender still reserves its sequence
+     * numbers in the journal, because the context may still be in use.
+     * @param context the context
+     */
+    public void unregister(CommonContext context) {
+        ByteArrayKey key = new ByteArrayKey(context.getRecipientContext().getRecipientID());
+        Registration registration = this.registrations.get(key);
+        if (registration == null || registration.context != context) {
+            return;
+        }
+        this.registrations.remove(key, registration);
+        try {
+            write(checkpointRecords(registration));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write replay checkpoint: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the highest received sequence numbers of all registered contexts,
+     * which changed since the last checkpoint, with one fsync.
+     * @throws IOException if the journal could not be written
+     */
+    public void checkpoint() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (Registration registration : this.registrations.values()) {
+            records.addAll(checkpointRecords(registration));
+        }
+        write(records);
+    }
+
+    /**
+     * Called by the SenderContext, when it needs a sequence number behind the reserved block.
+     * @param recipientID the key of the context
+     * @param sequenceNumber the sequence number, which is needed
+     * @return the new end of the reserved block (exclusive)
+     * @throws IOException if the reservation could not be written
+     */
+    long reserve(byte[] recipientID, long sequenceNumber) throws IOException {
+        long reserved = Math.min(sequenceNumber + this.blockSize, SenderContext.MAX_SEQUENCE_NUMBER + 1);
+        List<byte[]> records = new ArrayList<>(1);
+        records.add(record(SENDER_RESERVATION, recipientID, reserved));
+        write(records);
+        return reserved;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.timer != null) {
+            this.timer.shutdown();
+        }
+        checkpoint();
+        synchronized (this.writeLock) {
+            this.channel.close();
+        }
+    }
+
+    private List<byte[]> checkpointRecords(Registration registration) {
+        List<byte[]> records = new ArrayList<>(1);
+        RecipientContext recipient = registration.context.getRecipientContext();
+        long received = recipient.getMaxSequenceNumber();
+        if (received > registration.checkpoint) {
+            records.add(record(REPLAY_CHECKPOINT, recipient.getRecipientID(), received));
+            registration.checkpoint = received;
+        }
+        return records;
+    }
+
+    /**
+     * Writes the records and waits until they are on the disk. The thread which gets
+     * the write lock first writes the records of all waiting threads.
+     */
+    private void write(List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        Batch batch;
+        synchronized (this.pendingLock) {
+            this.pending.addAll(records);
+            batch = this.pendingBatch;
+        }
+
+        synchronized (this.writeLock) {
+            if (batch.done) {
+                // written by another thread
+                batch.check();
+                return;
+            }
+
+            List<byte[]> toWrite;
+            synchronized (this.pendingLock) {
+                toWrite = this.pending;
+                this.pending = new ArrayList<>();
+                this.pendingBatch = new Batch();
+            }
+
+            try {
+                int length = 0;
+                for (byte[] record : toWrite) {
+                    length += record.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                for (byte[] record : toWrite) {
+                    buffer.put(record);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer);
+                }
+                this.channel.force(false);
+
+                for (byte[] record : toWrite) {
+                    apply(ByteBuffer.wrap(record));
+                }
+            } catch (IOException e) {
+                batch.failure = e;
+                throw e;
+            } finally {
+                batch.done = true;
+            }
+
+            if (this.channel.size() > this.compactSize) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // the records are written, the journal is compacted with the next write
+                    LOGGER.log(Level.WARNING, "Could not compact journal " + this.file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all valid records. A record which was not written completely
+     * before a crash is cut off.
+     */
+    private void recover() throws IOException {
+        long size = this.channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Journal is too long: " + this.file);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && this.channel.read(buffer, buffer.position()) >= 0) {
+            // read all
+        }
+        buffer.flip();
+
+        int valid = 0;
+        while (buffer.remaining() > 0) {
+            int start = buffer.position();
+            if (!apply(buffer)) {
+                LOGGER.warning("Journal " + this.file + " has an invalid record at " + start + ", it is cut off");
+                break;
+            }
+            valid = buffer.position();
+        }
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        this.compactSize = Math.max(this.minCompactSize, 2L * valid);
+    }
+
+    /**
+     * Reads one record and updates the state.
+     * @return false, if the record is not complete or invalid
+     */
+    private boolean apply(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+        byte type = buffer.get();
+        int idLength = buffer.get() & 0xFF;
+        if ((type != SENDER_RESERVATION && type != REPLAY_CHECKPOINT) || buffer.remaining() < idLength + 12) {
+            return false;
+        }
+        byte[] id = new byte[idLength];
+        buffer.get(id);
+        long value = buffer.getLong();
+        int end = buffer.position();
+
+        CRC32 crc = new CRC32();
+        for (int i = start; i < end; i++) {
+            crc.update(buffer.get(i));
+        }
+        if ((int) crc.getValue() != buffer.getInt()) {
+            return false;
+        }
+
+        ByteArrayKey key = new ByteArrayKey(id);
+        long[] state = this.states.get(key);
+        if (state == null) {
+            state = new long[]{0, -1};
+            this.states.put(key, state);
+        }
+        int index = type == SENDER_RESERVATION ? 0 : 1;
+        state[index] = Math.max(state[index], value);
+        return true;
+    }
+
+    /**
+     * Writes the state of all contexts into a new journal, which replaces the old one.
+     * Called with the write lock.
+     */
+    private void compact() throws IOException {
+        File temp = new File(this.file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<ByteArrayKey, long[]> entry : this.states.entrySet()) {
+                byte[] id = entry.getKey().getBytes();
+                long[] state = entry.getValue();
+                ByteBuffer buffer = ByteBuffer.allocate(2 * recordLength(id));
+                buffer.put(record(SENDER_RESERVATION, id, state[0]));
+                buffer.put(record(REPLAY_CHECKPOINT, id, state[1]));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+        this.channel.close();
+        try {
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // the new journal, or the old one, if the move failed
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.channel.position(this.channel.size());
+        }
+        // if the state is that long, it is not compacted after every write
+        this.compactSize = Math.max(this.minCompactSize, 2L * this.channel.size());
+    }
+
+    private static byte[] record(byte type, byte[] id, long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(recordLength(id));
+        buffer.put(type);
+        buffer.put((byte) id.length);
+        buffer.put(id);
+        buffer.putLong(value);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static int recordLength(byte[] id) {
+        return 2 + id.length + 8 + 4;
+    }
+
+    private static final class Registration {
+
+        private final CommonContext context;
+
+        // highest received sequence number in the journal
+        private volatile long checkpoint = -1;
+
+        Registration(CommonContext context) {
+            this.context = context;
+        }
+    }
+
+    /**
+     * The records which were pending, when a thread wrote them.
+     * Only changed with the write lock.
+     */
+    private static final class Batch {
+
+        private boolean done;
+        private IOException failure;
+
+        void check() throws IOException {
+            if (this.failure != null) {
+                throw new IOException("Journal write failed", this.failure);
+            }
+        }
+    }
+}
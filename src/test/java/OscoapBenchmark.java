@@ -0,0 +1,304 @@
+import COSE.AlgorithmID;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.io.File;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small benchmarks, which are started by hand, like OscoapTestServer and OscoapTestClient.
+ * Every benchmark is run several rounds, the first rounds are warm up for the JIT.
+ * The average time of the other rounds is printed.
+ *
+ * Usage: OscoapBenchmark [name ...]
+ * Without names all benchmarks are run.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class OscoapBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    // results are added here, so the JIT can not remove the benchmarked code
+    private static volatile long sink;
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = Arrays.asList(args);
+
+        if (names.isEmpty() || names.contains("contexts")) {
+            benchmarkContexts(200000);
+        }
+        if (names.isEmpty() || names.contains("import")) {
+            benchmarkImport(200000);
+        }
+        if (names.isEmpty() || names.contains("aead")) {
+            benchmarkAead(200000);
+        }
+        if (names.isEmpty() || names.contains("allocation")) {
+            benchmarkAllocation(100000);
+        }
+    }
+
+    /**
+     * Lookup of a context by recipient ID in the heap (SecurityContextManager),
+     * with update of sequence number and replay window, and in a
+     * MappedContextTable, with read of the stored state.
+     */
+    private static void benchmarkContexts(final int count) throws Exception {
+        System.out.println("contexts: " + count);
+
+        final byte[][] ids = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ids[i] = new byte[]{(byte) 'c', (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+        }
+
+        // Heap
+        long heapBefore = usedHeap();
+        final SecurityContextManager manager = SecurityContextManager.getInstance();
+        for (int i = 0; i < count; i++) {
+            manager.addSecurityContext(createContext(ids[i], "10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ":" + i));
+        }
+        long heapAfter = usedHeap();
+        System.out.println("  heap per context: " + (heapAfter - heapBefore) / count + " bytes");
+
+        measure("  heap lookup and update", count, new Operation() {
+            @Override
+            public void run(int i) {
+                CommonContext context = manager.getSecurityContextByID(ids[scatter(i, count)]);
+                sink += context.getSenderContext().nextSequenceNumber();
+                context.getRecipientContext().updateReplayWindow(i);
+            }
+        });
+
+        // Off heap
+        File file = File.createTempFile("oscoap-contexts", ".table");
+        file.delete();
+        file.deleteOnExit();
+        final MappedContextTable table = new MappedContextTable(file, count);
+        for (int i = 0; i < count; i++) {
+            table.add(manager.getSecurityContextByID(ids[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            manager.removeSecurityContext(manager.getSecurityContextByID(ids[i]));
+        }
+
+        measure("  mapped lookup and read", count, new Operation() {
+            @Override
+            public void run(int i) {
+                int record = table.findByRecipientID(ids[scatter(i, count)]);
+                sink += table.getSenderSequenceNumber(record) + table.getRecipientSequenceNumber(record);
+            }
+        });
+
+        long start = System.nanoTime();
+        MappedContextTable reopened = new MappedContextTable(file, count);
+        System.out.println("  mapped restart: " + (System.nanoTime() - start) / 1000000 + " ms for "
+                + reopened.size() + " contexts");
+    }
+
+    /**
+     * Import of a CSV provisioning file with ContextImporter, including key derivation.
+     */
+    private static void benchmarkImport(int count) throws Exception {
+        System.out.println("import: " + count + " contexts, " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        StringBuilder csv = new StringBuilder(count * 80);
+        for (int i = 0; i < count; i++) {
+            String id = String.format("%06X", i);
+            csv.append("10.").append(i >> 16).append('.').append(i >> 8 & 0xFF).append('.').append(i & 0xFF)
+                    .append(",53").append(id).append(",43").append(id)
+                    .append(",0102030405060708090A0B0C0D0E0F10,9E7CA92223786340,12\n");
+        }
+        String file = csv.toString();
+
+        SecurityContextManager manager = SecurityContextManager.getInstance();
+        ContextImporter importer = new ContextImporter();
+        long best = 0;
+        for (int round = 0; round < WARM_UP_ROUNDS + ROUNDS; round++) {
+            ContextImporter.Result result = importer.importCsv(new StringReader(file), manager);
+            if (round >= WARM_UP_ROUNDS) {
+                best = Math.max(best, result.getContextsPerSecond());
+            }
+        }
+        System.out.println("  csv import: " + best + " contexts/s (best), " + count * 1000L / best + " ms cold start");
+        manager.setSecurityContexts(Arrays.<CommonContext>asList());
+    }
+
+    /**
+     * Encryption of a small message (64 bytes plaintext, 40 bytes AAD) with every AeadProvider
+     * and one algorithm of each mode.
+     */
+    private static void benchmarkAead(int count) throws Exception {
+        System.out.println("aead: default provider " + AeadProviders.getDefault().getName());
+
+        final byte[] aad = new byte[40];
+        final byte[] plaintext = new byte[64];
+        for (AeadAlgorithm algorithm : new AeadAlgorithm[]{
+                AeadAlgorithm.AES_CCM_64_64_128, AeadAlgorithm.AES_GCM_128, AeadAlgorithm.CHACHA20_POLY1305}) {
+            final byte[] nonce = new byte[algorithm.getNonceLength()];
+            for (AeadProvider provider : new AeadProvider[]{new BouncyCastleAeadProvider(), new JcaAeadProvider()}) {
+                if (!provider.supports(algorithm)) {
+                    System.out.println("  " + provider.getName() + " " + algorithm + ": not supported");
+                    continue;
+                }
+                final AeadEngine engine = new AeadEngine(provider, algorithm, new byte[algorithm.getKeyLength()]);
+                final byte[] ciphertext = new byte[plaintext.length + engine.getTagLength()];
+                measure("  " + provider.getName() + " " + algorithm + " encrypt", count, new Operation() {
+                    @Override
+                    public void run(int i) {
+                        // the JDK refuses the nonce of the last message
+                        nonce[0]++;
+                        if (nonce[0] == 0) {
+                            nonce[1]++;
+                        }
+                        sink += engine.encrypt(nonce, aad, 0, aad.length, plaintext, 0, plaintext.length, ciphertext, 0);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated per protected request and response, each written, read
+     * and parsed like in the endpoint. Once without and once with the BufferPool.
+     */
+    private static void benchmarkAllocation(int count) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("allocation: not supported by this JVM");
+            return;
+        }
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        System.out.println("allocation: 64 bytes payload, " + AeadProviders.getDefault().getName());
+
+        // composer and parser log every message with INFO
+        Logger root = Logger.getLogger("");
+        Level level = root.getLevel();
+        root.setLevel(Level.WARNING);
+
+        final InetAddress client = InetAddress.getByName("10.0.0.2");
+        final InetAddress server = InetAddress.getByName("10.0.0.1");
+        final byte[] payload = new byte[64];
+        final byte[] token = {1, 2, 3, 4};
+        final long[] allocated = new long[1];
+        SecurityContextFactory factory = new SecurityContextFactory();
+        SecurityContextManager manager = SecurityContextManager.getInstance();
+        for (AeadAlgorithm algorithm : new AeadAlgorithm[]{AeadAlgorithm.AES_CCM_64_64_128, AeadAlgorithm.AES_GCM_128}) {
+            byte[] secret = new byte[16];
+            CommonContext clientContext = factory.createContext(algorithm, secret, null,
+                    "c".getBytes(), "s".getBytes(), server.getHostAddress());
+            CommonContext serverContext = factory.createContext(algorithm, secret, null,
+                    "s".getBytes(), "c".getBytes(), client.getHostAddress());
+            manager.addSecurityContext(clientContext);
+            manager.addSecurityContext(serverContext);
+
+            Operation exchange = new Operation() {
+                @Override
+                public void run(int i) throws Exception {
+                    Request request = Request.newPost();
+                    request.setURI("coap://" + server.getHostAddress() + "/benchmark");
+                    request.setDestination(server);
+                    request.setDestinationPort(5683);
+                    request.setType(CoAP.Type.CON);
+                    request.setMID(i & 0xFFFF);
+                    request.setToken(token);
+                    request.setPayload(payload);
+
+                    long start = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    byte[] datagram = new OscoapComposer().writeRequest(request);
+                    ProtectedDatagramReader reader = new ProtectedDatagramReader(datagram);
+                    Request received = (Request) reader.read();
+                    received.setSource(client);
+                    received.setSourcePort(5683);
+                    received = new OscoapParser().parseRequest(received, reader);
+                    allocated[0] += allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+
+                    Response response = new Response(CoAP.ResponseCode.CONTENT);
+                    response.setDestination(client);
+                    response.setDestinationPort(5683);
+                    response.setType(CoAP.Type.ACK);
+                    response.setMID(received.getMID());
+                    response.setToken(received.getToken());
+                    response.setPayload(payload);
+
+                    start = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    datagram = new OscoapComposer().writeResponse(response);
+                    reader = new ProtectedDatagramReader(datagram);
+                    Response receivedResponse = (Response) reader.read();
+                    receivedResponse.setSource(server);
+                    receivedResponse.setSourcePort(5683);
+                    sink += new OscoapParser().parseResponse(receivedResponse, reader).getPayloadSize();
+                    allocated[0] += allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+                }
+            };
+            for (boolean pooled : new boolean[]{false, true}) {
+                BufferPool.setEnabled(pooled);
+                allocated[0] = 0;
+                measure("  " + algorithm + (pooled ? " with pool" : " without pool"), count, exchange);
+                // bytes of all rounds, two messages per operation
+                System.out.println("    allocated: " + allocated[0] / ((WARM_UP_ROUNDS + ROUNDS) * count * 2L) + " bytes/message");
+            }
+            manager.removeSecurityContext(clientContext);
+            manager.removeSecurityContext(serverContext);
+        }
+        BufferPool.setEnabled(true);
+        root.setLevel(level);
+    }
+
+    static CommonContext createContext(byte[] recipientID, String host) {
+        byte[] senderID = Arrays.copyOf(recipientID, recipientID.length);
+        senderID[0] = 's';
+        CommonContext context = new CommonContext(AlgorithmID.AES_CCM_64_64_128, new byte[32], null, host);
+        context.setSenderContext(new SenderContext(senderID, new byte[16], new byte[7]));
+        context.setRecipientContext(new RecipientContext(recipientID, new byte[16], new byte[7]));
+        return context;
+    }
+
+    /**
+     * Runs the operation count times per round and prints the average time.
+     */
+    static void measure(String name, int count, Operation operation) throws Exception {
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int round = 0; round < WARM_UP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                operation.run(round * count + i);
+            }
+            long time = System.nanoTime() - start;
+            if (round >= WARM_UP_ROUNDS) {
+                total += time;
+                best = Math.min(best, time);
+            }
+        }
+        System.out.println(name + ": " + (total / ROUNDS / count) + " ns/op (best " + (best / count) + " ns/op)");
+    }
+
+    /**
+     * Visits the indexes in another order than 0, 1, 2 ..., so the lookups are not cache friendly.
+     */
+    static int scatter(int i, int count) {
+        return (int) ((i * 2654435761L) % count);
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
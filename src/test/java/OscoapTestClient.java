@@ -200,7 +200,7 @@ public class OscoapTestClient {
     private void setDefaultSecurityContext() {
         SecurityContextManager scm = SecurityContextManager.getInstance();
         CommonContext cc = scm.getSecurityContextByHost(this.foreignHost);
-        byte[] sequenceNumber = cc.getSenderContext().getSequenceNumber();
+        long sequenceNumber = cc.getSenderContext().getSequenceNumber();
 
         CommonContext testContext = OscoapHelper
                 .getSecurityContextForClientDefault(this.foreignHost.getHost());
@@ -214,7 +214,7 @@ public class OscoapTestClient {
         // create debug security contexts for server
         SecurityContextManager scm = SecurityContextManager.getInstance();
         CommonContext cc = scm.getSecurityContextByHost(this.foreignHost.getHost());
-        byte[] sequenceNumber = cc.getSenderContext().getSequenceNumber();
+        long sequenceNumber = cc.getSenderContext().getSequenceNumber();
 
         CommonContext testContext;
         switch (context) {
@@ -244,8 +244,8 @@ public class OscoapTestClient {
                         .getSecurityContextForClientDefault(this.foreignHost.getHost());
 
                 // Wird zwar über den Test schon abgefragt, aber sicher ist sicher
-                if (sequenceNumber.length > 0 && sequenceNumber[0] > 0) {
-                    sequenceNumber[0] = (byte) (sequenceNumber[0] - 1);
+                if (sequenceNumber > 0) {
+                    sequenceNumber = sequenceNumber - 1;
                 }
 
                 testContext.getSenderContext().setSequenceNumber(sequenceNumber);
@@ -644,8 +644,8 @@ public class OscoapTestClient {
     private void performTest14() {
         SecurityContextManager scm = SecurityContextManager.getInstance();
         CommonContext cc = scm.getSecurityContextByHost(this.foreignHost);
-        byte[] sequenceNumber = cc.getSenderContext().getSequenceNumber();
-        if (sequenceNumber.length < 1 || (sequenceNumber.length == 1 && sequenceNumber[0] == 0)) {
+        long sequenceNumber = cc.getSenderContext().getSequenceNumber();
+        if (sequenceNumber == 0) {
             System.out.println("Do not run this test as the first one, there must be a sequence number > 0!");
             return;
         }
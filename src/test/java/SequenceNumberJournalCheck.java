@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks of the SequenceNumberJournal, which are started by hand like
+ * OscoapBenchmark: restart, a record cut off by a crash, compaction and a
+ * context, which is imported again. Prints the result of every check and
+ * exits with 1, if one failed.
+ *
+ * Created by Luka Dschaak on 26.07.2017.
+ */
+public class SequenceNumberJournalCheck {
+
+    private static final byte[] MASTER_SECRET = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("oscoap-journal", ".log");
+        file.deleteOnExit();
+
+        checkRestart(file);
+        checkCutOff(file);
+        checkCompaction(file);
+        checkImportAgain(file);
+
+        System.out.println(failed ? "FAILED" : "all checks passed");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * The sender continues behind the reserved block, the replay window is restored.
+     */
+    private static void checkRestart(File file) throws Exception {
+        file.delete();
+        SequenceNumberJournal journal = new SequenceNumberJournal(file, 100, 0);
+        CommonContext context = createContext();
+        journal.register(context);
+        for (int i = 0; i < 5; i++) {
+            context.getSenderContext().nextSequenceNumber();
+        }
+        context.getRecipientContext().updateReplayWindow(42);
+        journal.close();
+
+        journal = new SequenceNumberJournal(file, 100, 0);
+        CommonContext restarted = createContext();
+        journal.register(restarted);
+        check("restart: sender continues behind the block",
+                restarted.getSenderContext().nextSequenceNumber() >= 100);
+        check("restart: replay window restored",
+                !restarted.getRecipientContext().compareReplayWindow(42));
+        journal.close();
+    }
+
+    /**
+     * A record, which was not written completely, is cut off, the records before are kept.
+     */
+    private static void checkCutOff(File file) throws Exception {
+        file.delete();
+        SequenceNumberJournal journal = new SequenceNumberJournal(file, 100, 0);
+        CommonContext context = createContext();
+        journal.register(context);
+        context.getSenderContext().nextSequenceNumber();
+        journal.close();
+        long valid = file.length();
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            // the beginning of a reservation record
+            out.write(new byte[]{1, 1, 's', 0, 0});
+        }
+
+        journal = new SequenceNumberJournal(file, 100, 0);
+        CommonContext restarted = createContext();
+        journal.register(restarted);
+        check("cut off: torn record removed", file.length() == valid);
+        check("cut off: records before kept", restarted.getSenderContext().nextSequenceNumber() >= 100);
+        journal.close();
+    }
+
+    /**
+     * The journal is compacted, when it is twice as long as after the last compaction.
+     */
+    private static void checkCompaction(File file) throws Exception {
+        file.delete();
+        int contexts = 50;
+        long minCompactSize = 1024;
+        // a reservation for every message
+        SequenceNumberJournal journal = new SequenceNumberJournal(file, 1, 0, minCompactSize);
+        CommonContext[] registered = new CommonContext[contexts];
+        for (int i = 0; i < contexts; i++) {
+            registered[i] = createContext(new byte[]{'r', (byte) i}, new byte[]{'s', (byte) i}, "10.0.0." + i);
+            journal.register(registered[i]);
+        }
+        long maxLength = 0;
+        for (int message = 0; message < 100; message++) {
+            for (CommonContext context : registered) {
+                context.getSenderContext().nextSequenceNumber();
+            }
+            maxLength = Math.max(maxLength, file.length());
+        }
+        journal.close();
+        // 50 contexts with 2 records of 16 bytes are 1600 bytes after compaction
+        check("compaction: length bounded (" + maxLength + " bytes)", maxLength <= 2 * 1600 + 16);
+
+        journal = new SequenceNumberJournal(file, 1, 0, minCompactSize);
+        CommonContext restarted = createContext(new byte[]{'r', 7}, new byte[]{'s', 7}, "10.0.0.7");
+        journal.register(restarted);
+        check("compaction: state kept", restarted.getSenderContext().nextSequenceNumber() >= 100);
+        journal.close();
+    }
+
+    /**
+     * A context of the same provisioning record, which replaces a used one,
+     * continues behind the numbers of the old one.
+     */
+    private static void checkImportAgain(File file) throws Exception {
+        file.delete();
+        SequenceNumberJournal journal = new SequenceNumberJournal(file, 100, 0);
+        SecurityContextManager manager = SecurityContextManager.getInstance();
+        manager.setSequenceNumberJournal(journal);
+        try {
+            CommonContext context = createContext();
+            manager.setSecurityContexts(Arrays.asList(context));
+            long last = -1;
+            for (int i = 0; i < 5; i++) {
+                last = context.getSenderContext().nextSequenceNumber();
+            }
+
+            CommonContext imported = createContext();
+            manager.setSecurityContexts(Arrays.asList(imported));
+            check("import again: no sequence number used twice",
+                    imported.getSenderContext().nextSequenceNumber() > last);
+            for (int i = 5; i < 100; i++) {
+                context.getSenderContext().nextSequenceNumber();
+            }
+            check("import again: old sender stops behind its block",
+                    context.getSenderContext().nextSequenceNumber() == -1);
+        } finally {
+            manager.setSecurityContexts(Arrays.<CommonContext>asList());
+            manager.setSequenceNumberJournal(null);
+            journal.close();
+        }
+    }
+
+    private static CommonContext createContext() throws Exception {
+        return createContext(new byte[]{'r'}, new byte[]{'s'}, "10.0.0.1");
+    }
+
+    private static CommonContext createContext(byte[] recipientID, byte[] senderID, String host) throws Exception {
+        return new SecurityContextFactory().createContext(AeadAlgorithm.AES_CCM_64_64_128, MASTER_SECRET, null,
+                senderID, recipientID, host);
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "ok      " : "FAILED  ") + name);
+        failed |= !ok;
+    }
+}